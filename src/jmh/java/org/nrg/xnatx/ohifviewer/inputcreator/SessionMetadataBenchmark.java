@@ -0,0 +1,439 @@
+/*********************************************************************
+ * Copyright (c) 2023, Institute of Cancer Research
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * (1) Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ * (2) Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ * (3) Neither the name of the Institute of Cancer Research nor the
+ *     names of its contributors may be used to endorse or promote
+ *     products derived from this software without specific prior
+ *     written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+package org.nrg.xnatx.ohifviewer.inputcreator;
+
+import com.google.gson.Gson;
+import icr.etherj.dicom.DicomToolkit;
+import icr.etherj.dicom.SopInstance;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomElement;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.VR;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures each stage of session JSON creation on synthetic DICOM headers
+ * built in memory, so no files are read: deriving an instance from a header,
+ * the instance metadata alone, parsing and formatting decimal strings,
+ * merging the instances into studies and series, and serialising the session
+ * with Gson and with the {@link SessionJsonSerializer} used by
+ * <code>jsonify</code>. The setup fails unless both serialisations of the
+ * session are identical. Sessions of single-frame CT,
+ * enhanced multiframe MR and ultrasound cine are generated with 1,000, 10,000
+ * and 50,000 instances.
+ * <p>
+ * An operation is one pass of the stage over every instance of the session.
+ * Run with <code>./gradlew jmh</code>, which applies the gc profiler for the
+ * allocation rate and writes the results as JSON to
+ * <code>build/reports/jmh/results.json</code>. Add
+ * <code>-PjmhInclude=SessionMetadataBenchmark</code> to run only this suite.
+ *
+ * @author jamesd
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@State(Scope.Benchmark)
+public class SessionMetadataBenchmark
+{
+	private static final String ScanUrl =
+		"/data/experiments/XNAT_E00001/scans/";
+	private static final String UidRoot = "1.2.826.0.1.3680043.2.1125.";
+	private static final int MrFrames = 8;
+	private static final int UsFrames = 60;
+
+	@Param({"CT", "MR", "US"})
+	public String modality;
+
+	@Param({"1000", "10000", "50000"})
+	public int instances;
+
+	private final List<File> files = new ArrayList<>();
+	private final List<DicomObject> headers = new ArrayList<>();
+	private final Map<String,String> seriesUidToScanIdMap = new HashMap<>();
+	private final List<SopInstance> sops = new ArrayList<>();
+	private final List<OhifViewerInputInstance> viewerInstances =
+		new ArrayList<>();
+	private OhifViewerInput session;
+	private Gson gson;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		int seriesSize = getSeriesSize();
+		for (int i=0; i<instances; i++)
+		{
+			int series = i/seriesSize;
+			String seriesUid = UidRoot+"2."+series;
+			seriesUidToScanIdMap.put(seriesUid, Integer.toString(series+1));
+			files.add(new File("/data/archive/PROJECT/arc001/SESSION/SCANS/"+
+				(series+1)+"/DICOM/"+i+".dcm"));
+			headers.add(createHeader(seriesUid, series, i%seriesSize));
+		}
+		DicomToolkit toolkit = DicomToolkit.getToolkit();
+		CustomDicomReceiver receiver = createReceiver();
+		receiver.notifyScanStart();
+		for (int i=0; i<instances; i++)
+		{
+			sops.add(toolkit.createSopInstance(files.get(i), headers.get(i)));
+			ScannedInstance scanned = receiver.prepare(files.get(i),
+				headers.get(i));
+			viewerInstances.add(scanned.getInstance());
+			receiver.merge(scanned);
+		}
+		receiver.notifyScanFinish();
+		session = receiver.getOhifViewerInput();
+		gson = SessionJsonFormat.createGson();
+		checkSerializer();
+	}
+
+	/**
+	 * Derives the study, series and instance of each header, as done for each
+	 * file read.
+	 */
+	@Benchmark
+	public void prepare(Blackhole bh)
+	{
+		CustomDicomReceiver receiver = createReceiver();
+		for (int i=0; i<instances; i++)
+		{
+			bh.consume(receiver.prepare(files.get(i), headers.get(i)));
+		}
+	}
+
+	@Benchmark
+	public void instanceMetadata(Blackhole bh)
+	{
+		for (SopInstance sop : sops)
+		{
+			bh.consume(new OhifViewerInputInstanceMetadata(sop));
+		}
+	}
+
+	@Benchmark
+	public void parseDecimalStrings(Blackhole bh)
+	{
+		for (DicomObject dcm : headers)
+		{
+			bh.consume(DataUtils.getDSArray(dcm, Tag.WindowWidth, 0));
+			bh.consume(DataUtils.getDSArray(dcm, Tag.WindowCenter, 0));
+			bh.consume(DataUtils.getDSValue(dcm, Tag.RescaleIntercept, 0.0));
+			bh.consume(DataUtils.getDSValue(dcm, Tag.RescaleSlope, 1.0));
+		}
+	}
+
+	@Benchmark
+	public void formatDecimalStrings(Blackhole bh)
+	{
+		for (OhifViewerInputInstance instance : viewerInstances)
+		{
+			bh.consume(instance.getImagePositionPatient());
+			bh.consume(instance.getImageOrientationPatient());
+			bh.consume(instance.getPixelSpacing());
+		}
+	}
+
+	/**
+	 * Merges freshly prepared instances into studies and series and orders
+	 * them, as done once every file has been read.
+	 */
+	@Benchmark
+	public OhifViewerInput merge(PreparedSession prepared)
+	{
+		CustomDicomReceiver receiver = prepared.receiver;
+		receiver.notifyScanStart();
+		for (ScannedInstance scanned : prepared.scanned)
+		{
+			receiver.merge(scanned);
+		}
+		receiver.notifyScanFinish();
+		return receiver.getOhifViewerInput();
+	}
+
+	@Benchmark
+	public long serialize() throws IOException
+	{
+		CountingWriter writer = new CountingWriter();
+		gson.toJson(session, OhifViewerInput.class, gson.newJsonWriter(writer));
+		return writer.count;
+	}
+
+	@Benchmark
+	public long serializeDirect() throws IOException
+	{
+		CountingWriter writer = new CountingWriter();
+		new SessionJsonSerializer(writer).write(session);
+		return writer.count;
+	}
+
+	/**
+	 * Golden check that the hand-written serializer writes exactly what Gson
+	 * writes for the session.
+	 */
+	private void checkSerializer()
+	{
+		try
+		{
+			StringWriter expected = new StringWriter();
+			gson.toJson(session, OhifViewerInput.class,
+				gson.newJsonWriter(expected));
+			StringWriter actual = new StringWriter();
+			new SessionJsonSerializer(actual).write(session);
+			if (!expected.toString().equals(actual.toString()))
+			{
+				throw new IllegalStateException(
+					"SessionJsonSerializer output differs from Gson for "+
+						modality+" with "+instances+" instances");
+			}
+		}
+		catch (IOException ex)
+		{
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private CustomDicomReceiver createReceiver()
+	{
+		return new CustomDicomReceiver("XNAT_E00001", ScanUrl,
+			seriesUidToScanIdMap);
+	}
+
+	private int getSeriesSize()
+	{
+		switch (modality)
+		{
+			case "MR":
+				return 50;
+			case "US":
+				return 10;
+			default:
+				return 500;
+		}
+	}
+
+	private DicomObject createHeader(String seriesUid, int series, int index)
+	{
+		DicomObject dcm = new BasicDicomObject();
+		dcm.putString(Tag.SOPInstanceUID, VR.UI,
+			UidRoot+"3."+series+"."+(index+1));
+		dcm.putString(Tag.StudyInstanceUID, VR.UI, UidRoot+"1");
+		dcm.putString(Tag.SeriesInstanceUID, VR.UI, seriesUid);
+		dcm.putString(Tag.FrameOfReferenceUID, VR.UI, UidRoot+"4."+series);
+		dcm.putString(Tag.Modality, VR.CS, modality);
+		dcm.putString(Tag.PatientName, VR.PN, "Benchmark^Patient");
+		dcm.putString(Tag.PatientID, VR.LO, "BENCH001");
+		dcm.putString(Tag.PatientBirthDate, VR.DA, "19700101");
+		dcm.putString(Tag.PatientSex, VR.CS, "O");
+		dcm.putString(Tag.StudyDate, VR.DA, "20230101");
+		dcm.putString(Tag.StudyTime, VR.TM, "120000");
+		dcm.putString(Tag.StudyDescription, VR.LO, "Benchmark study");
+		dcm.putString(Tag.AccessionNumber, VR.SH, "ACC001");
+		dcm.putString(Tag.SeriesDescription, VR.LO, modality+" series "+series);
+		dcm.putInt(Tag.SeriesNumber, VR.IS, series+1);
+		dcm.putInt(Tag.InstanceNumber, VR.IS, index+1);
+		dcm.putInt(Tag.AcquisitionNumber, VR.IS, 1);
+		switch (modality)
+		{
+			case "MR":
+				addEnhancedMr(dcm, index);
+				break;
+			case "US":
+				addUsCine(dcm);
+				break;
+			default:
+				addCt(dcm, index);
+		}
+		return dcm;
+	}
+
+	private void addCt(DicomObject dcm, int index)
+	{
+		dcm.putString(Tag.SOPClassUID, VR.UI, "1.2.840.10008.5.1.4.1.1.2");
+		dcm.putStrings(Tag.ImageType, VR.CS,
+			new String[] {"ORIGINAL", "PRIMARY", "AXIAL"});
+		addImagePixel(dcm, 512, 512, 16, 12, 0, 1, "MONOCHROME2");
+		dcm.putDoubles(Tag.ImagePositionPatient, VR.DS,
+			new double[] {-249.51171875, -249.51171875, -index*1.25});
+		dcm.putDoubles(Tag.ImageOrientationPatient, VR.DS,
+			new double[] {1.0, 0.0, 0.0, 0.0, 1.0, 0.0});
+		dcm.putDoubles(Tag.PixelSpacing, VR.DS,
+			new double[] {0.9765625, 0.9765625});
+		dcm.putString(Tag.SliceThickness, VR.DS, "1.25");
+		dcm.putString(Tag.WindowCenter, VR.DS, "40\\-600");
+		dcm.putString(Tag.WindowWidth, VR.DS, "400\\1500");
+		dcm.putString(Tag.RescaleIntercept, VR.DS, "-1024");
+		dcm.putString(Tag.RescaleSlope, VR.DS, "1");
+		dcm.putString(Tag.RescaleType, VR.LO, "HU");
+	}
+
+	private void addEnhancedMr(DicomObject dcm, int index)
+	{
+		dcm.putString(Tag.SOPClassUID, VR.UI, "1.2.840.10008.5.1.4.1.1.4.1");
+		dcm.putStrings(Tag.ImageType, VR.CS,
+			new String[] {"ORIGINAL", "PRIMARY", "M", "NONE"});
+		addImagePixel(dcm, 256, 256, 16, 12, 0, 1, "MONOCHROME2");
+		dcm.putInt(Tag.NumberOfFrames, VR.IS, MrFrames);
+
+		DicomObject shared = new BasicDicomObject();
+		DicomObject pixelMeasures = new BasicDicomObject();
+		pixelMeasures.putDoubles(Tag.PixelSpacing, VR.DS,
+			new double[] {0.9375, 0.9375});
+		pixelMeasures.putString(Tag.SliceThickness, VR.DS, "3");
+		shared.putNestedDicomObject(Tag.PixelMeasuresSequence, pixelMeasures);
+		DicomObject orientation = new BasicDicomObject();
+		orientation.putDoubles(Tag.ImageOrientationPatient, VR.DS,
+			new double[] {1.0, 0.0, 0.0, 0.0, 1.0, 0.0});
+		shared.putNestedDicomObject(Tag.PlaneOrientationSequence, orientation);
+		DicomObject voiLut = new BasicDicomObject();
+		voiLut.putString(Tag.WindowCenter, VR.DS, "600");
+		voiLut.putString(Tag.WindowWidth, VR.DS, "1200");
+		shared.putNestedDicomObject(Tag.FrameVOILUTSequence, voiLut);
+		dcm.putNestedDicomObject(Tag.SharedFunctionalGroupsSequence, shared);
+
+		DicomElement perFrame = dcm.putSequence(
+			Tag.PerFrameFunctionalGroupsSequence);
+		for (int frame=0; frame<MrFrames; frame++)
+		{
+			DicomObject frameGroups = new BasicDicomObject();
+			DicomObject position = new BasicDicomObject();
+			position.putDoubles(Tag.ImagePositionPatient, VR.DS,
+				new double[] {-120.0, -120.0, (index*MrFrames+frame)*3.0});
+			frameGroups.putNestedDicomObject(Tag.PlanePositionSequence, position);
+			DicomObject content = new BasicDicomObject();
+			content.putInt(Tag.InStackPositionNumber, VR.UL, frame+1);
+			frameGroups.putNestedDicomObject(Tag.FrameContentSequence, content);
+			perFrame.addDicomObject(frameGroups);
+		}
+	}
+
+	private void addUsCine(DicomObject dcm)
+	{
+		dcm.putString(Tag.SOPClassUID, VR.UI, "1.2.840.10008.5.1.4.1.1.3.1");
+		dcm.putStrings(Tag.ImageType, VR.CS,
+			new String[] {"ORIGINAL", "PRIMARY", "ABDOMINAL", "0001"});
+		addImagePixel(dcm, 600, 800, 8, 8, 0, 3, "YBR_FULL_422");
+		dcm.putInt(Tag.PlanarConfiguration, VR.US, 0);
+		dcm.putInt(Tag.NumberOfFrames, VR.IS, UsFrames);
+		dcm.putString(Tag.FrameTime, VR.DS, "33.3333");
+		dcm.putInt(Tag.CineRate, VR.IS, 30);
+	}
+
+	private void addImagePixel(DicomObject dcm, int rows, int columns,
+		int bitsAllocated, int bitsStored, int pixelRepresentation,
+		int samplesPerPixel, String photometricInterpretation)
+	{
+		dcm.putInt(Tag.Rows, VR.US, rows);
+		dcm.putInt(Tag.Columns, VR.US, columns);
+		dcm.putInt(Tag.BitsAllocated, VR.US, bitsAllocated);
+		dcm.putInt(Tag.BitsStored, VR.US, bitsStored);
+		dcm.putInt(Tag.HighBit, VR.US, bitsStored-1);
+		dcm.putInt(Tag.PixelRepresentation, VR.US, pixelRepresentation);
+		dcm.putInt(Tag.SamplesPerPixel, VR.US, samplesPerPixel);
+		dcm.putString(Tag.PhotometricInterpretation, VR.CS,
+			photometricInterpretation);
+	}
+
+	/**
+	 * Instances prepared before each merge, as merging adds them to the series
+	 * they were prepared with.
+	 */
+	@State(Scope.Thread)
+	public static class PreparedSession
+	{
+		private final List<ScannedInstance> scanned = new ArrayList<>();
+		private CustomDicomReceiver receiver;
+
+		@Setup(Level.Invocation)
+		public void prepare(SessionMetadataBenchmark benchmark)
+		{
+			scanned.clear();
+			receiver = benchmark.createReceiver();
+			for (int i=0; i<benchmark.instances; i++)
+			{
+				scanned.add(receiver.prepare(benchmark.files.get(i),
+					benchmark.headers.get(i)));
+			}
+		}
+	}
+
+	private static final class CountingWriter extends Writer
+	{
+		private long count = 0;
+
+		@Override
+		public void write(char[] cbuf, int off, int len)
+		{
+			count += len;
+		}
+
+		@Override
+		public void write(String str, int off, int len)
+		{
+			count += len;
+		}
+
+		@Override
+		public void flush()
+		{}
+
+		@Override
+		public void close()
+		{}
+	}
+}
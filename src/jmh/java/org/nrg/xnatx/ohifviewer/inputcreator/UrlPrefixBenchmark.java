@@ -0,0 +1,236 @@
+/*********************************************************************
+ * Copyright (c) 2023, Institute of Cancer Research
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * (1) Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ * (2) Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ * (3) Neither the name of the Institute of Cancer Research nor the
+ *     names of its contributors may be used to endorse or promote
+ *     products derived from this software without specific prior
+ *     written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+package org.nrg.xnatx.ohifviewer.inputcreator;
+
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares a full URL string per instance with URL prefixes shared by the
+ * instances of a scan, on a session of 5,000 instances in 10 scans. Run with
+ * the gc profiler for the allocation per operation, the document size of each
+ * format is reported as the documentChars counter.
+ *
+ * @author jamesd
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UrlPrefixBenchmark
+{
+	private static final int ScanCount = 10;
+	private static final int InstancesPerScan = 500;
+	private static final String ScanUrl =
+		"/data/experiments/XNAT_E00001/scans/";
+
+	private final List<String> scanIds = new ArrayList<>();
+	private final List<String> files = new ArrayList<>();
+	private OhifViewerInputInstanceMetadata metadata;
+	private OhifViewerInput session;
+	private Gson expandedGson;
+	private Gson hoistedGson;
+
+	@Setup
+	public void setup()
+	{
+		expandedGson = SessionJsonFormat.createExpandedGson();
+		hoistedGson = SessionJsonFormat.createGson();
+		metadata = expandedGson.fromJson(createMetadataJson(0),
+			OhifViewerInputInstanceMetadata.class);
+		for (int i=0; i<ScanCount; i++)
+		{
+			scanIds.add(Integer.toString(i+1));
+		}
+		for (int i=0; i<InstancesPerScan; i++)
+		{
+			files.add(String.format("1.2.826.0.1.3680043.2.1125.%d.dcm", i));
+		}
+		session = expandedGson.fromJson(createSessionJson(),
+			OhifViewerInput.class);
+	}
+
+	/**
+	 * Builds the URLs as instances did before prefixes were shared.
+	 */
+	@Benchmark
+	public void fullUrlPerInstance(Blackhole bh)
+	{
+		for (String scanId : scanIds)
+		{
+			for (String file : files)
+			{
+				bh.consume(ScanUrl+scanId+"/resources/"+"DICOM"+"/files/"+file);
+			}
+		}
+	}
+
+	@Benchmark
+	public void sharedUrlPrefix(Blackhole bh)
+	{
+		for (String scanId : scanIds)
+		{
+			String prefix = OhifViewerInputInstance.createUrlPrefix(ScanUrl,
+				scanId, "DICOM");
+			for (String file : files)
+			{
+				bh.consume(new OhifViewerInputInstance(metadata, prefix, file));
+			}
+		}
+	}
+
+	@Benchmark
+	public void writeExpanded(DocumentSize size) throws IOException
+	{
+		CountingWriter writer = new CountingWriter();
+		expandedGson.toJson(session, OhifViewerInput.class,
+			expandedGson.newJsonWriter(writer));
+		size.documentChars = writer.count;
+	}
+
+	@Benchmark
+	public void writeHoisted(DocumentSize size) throws IOException
+	{
+		CountingWriter writer = new CountingWriter();
+		hoistedGson.toJson(session, OhifViewerInput.class,
+			hoistedGson.newJsonWriter(writer));
+		size.documentChars = writer.count;
+	}
+
+	private String createSessionJson()
+	{
+		StringBuilder sb = new StringBuilder(
+			"{\"transactionId\":\"XNAT_E00001\",\"studies\":[{\"series\":[");
+		for (int i=0; i<ScanCount; i++)
+		{
+			if (i > 0)
+			{
+				sb.append(',');
+			}
+			sb.append("{\"Modality\":\"CT\",\"SeriesInstanceUID\":\"1.2.3.")
+				.append(i).append("\",\"SeriesNumber\":").append(i+1)
+				.append(",\"instances\":[");
+			String prefix = OhifViewerInputInstance.createUrlPrefix(ScanUrl,
+				scanIds.get(i), "DICOM");
+			for (int j=0; j<InstancesPerScan; j++)
+			{
+				if (j > 0)
+				{
+					sb.append(',');
+				}
+				sb.append("{\"metadata\":").append(createMetadataJson(j))
+					.append(",\"url\":\"").append(prefix).append(files.get(j))
+					.append("\"}");
+			}
+			sb.append("]}");
+		}
+		return sb.append("],\"StudyInstanceUID\":\"1.2.3\"}]}").toString();
+	}
+
+	private String createMetadataJson(int index)
+	{
+		return "{\"AcquisitionNumber\":1,\"BitsAllocated\":16,"+
+			"\"BitsStored\":12,\"Columns\":512,"+
+			"\"FrameOfReferenceUID\":\"1.2.3.4\",\"HighBit\":11,"+
+			"\"ImageOrientationPatient\":[1.0,0.0,0.0,0.0,1.0,0.0],"+
+			"\"ImagePositionPatient\":[-250.0,-250.0,"+(index*1.25)+"],"+
+			"\"ImageType\":[\"ORIGINAL\",\"PRIMARY\",\"AXIAL\"],"+
+			"\"InstanceNumber\":"+(index+1)+",\"NumberOfFrames\":1,"+
+			"\"PhotometricInterpretation\":\"MONOCHROME2\","+
+			"\"PixelRepresentation\":0,\"PixelSpacing\":[0.98,0.98],"+
+			"\"RescaleIntercept\":-1024.0,\"RescaleSlope\":1.0,"+
+			"\"RescaleType\":\"HU\",\"Rows\":512,\"SamplesPerPixel\":1,"+
+			"\"SOPClassUID\":\"1.2.840.10008.5.1.4.1.1.2\","+
+			"\"SOPInstanceUID\":\"1.2.3.4.5."+index+"\","+
+			"\"WindowWidth\":[400.0],\"WindowCenter\":[40.0]}";
+	}
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class DocumentSize
+	{
+		public long documentChars;
+
+		@Setup(Level.Iteration)
+		public void reset()
+		{
+			documentChars = 0;
+		}
+	}
+
+	private static final class CountingWriter extends Writer
+	{
+		private long count = 0;
+
+		@Override
+		public void write(char[] cbuf, int off, int len)
+		{
+			count += len;
+		}
+
+		@Override
+		public void write(String str, int off, int len)
+		{
+			count += len;
+		}
+
+		@Override
+		public void flush()
+		{}
+
+		@Override
+		public void close()
+		{}
+	}
+}
@@ -0,0 +1,264 @@
+/*********************************************************************
+ * Copyright (c) 2023, Institute of Cancer Research
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * (1) Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ * (2) Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ * (3) Neither the name of the Institute of Cancer Research nor the
+ *     names of its contributors may be used to endorse or promote
+ *     products derived from this software without specific prior
+ *     written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+package org.nrg.xnatx.ohifviewer;
+
+import org.apache.commons.lang3.StringUtils;
+import org.nrg.xdat.XDAT;
+import org.nrg.xdat.preferences.SiteConfigPreferences;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Access to the OHIF viewer site settings. The settings are stored in the
+ * site configuration by the forms in the plugin's site-settings.yaml so they
+ * are read by name and fall back to their defaults when unset or invalid.
+ *
+ * @author jamesd
+ */
+public class ViewerPreferences
+{
+	/** Number of threads used to read DICOM headers during JSON creation. */
+	public static final String MetadataScanParallelism =
+		"ohifMetadataScanParallelism";
+
+	/** Number of sessions whose JSON is generated at once by bulk jobs. */
+	public static final String MetadataGenerationThreads =
+		"ohifMetadataGenerationThreads";
+
+	/** Number of sessions waiting for a generation thread. */
+	public static final String MetadataGenerationQueueSize =
+		"ohifMetadataGenerationQueueSize";
+
+	/** Whether sessions are rejected, rather than run by the submitter, when
+	 * the generation queue is full. */
+	public static final String MetadataGenerationRejectWhenFull =
+		"ohifMetadataGenerationRejectWhenFull";
+
+	/** Seconds without events before a session's JSON is rebuilt. */
+	public static final String RegenerationQuietSeconds =
+		"ohifRegenerationQuietSeconds";
+
+	/** Whether session JSON is created from the scans' DICOM catalogs. */
+	public static final String MetadataUseCatalogs = "ohifMetadataUseCatalogs";
+
+	/** Whether unchanged scans are reused when session JSON is rebuilt. */
+	public static final String MetadataIncremental = "ohifMetadataIncremental";
+
+	/** Whether session JSON is written as scans are read. */
+	public static final String MetadataStreaming = "ohifMetadataStreaming";
+
+	/** Size in megabytes of the in-memory cache of session JSON. */
+	public static final String SessionJsonCacheMegabytes =
+		"ohifSessionJsonCacheMegabytes";
+
+	/** Whether cached session JSON is held outside the heap. */
+	public static final String SessionJsonCacheOffHeap =
+		"ohifSessionJsonCacheOffHeap";
+
+	private static final Logger logger = LoggerFactory.getLogger(
+		ViewerPreferences.class);
+
+	/**
+	 * Returns the boolean value of the named site setting or
+	 * <code>defaultValue</code> if it is not set.
+	 * @param name the setting name
+	 * @param defaultValue the default value
+	 * @return the setting value
+	 */
+	public static boolean getBoolean(String name, boolean defaultValue)
+	{
+		String value = getString(name);
+		if (StringUtils.isBlank(value))
+		{
+			return defaultValue;
+		}
+		return Boolean.parseBoolean(value.trim());
+	}
+
+	/**
+	 * Returns the integer value of the named site setting or
+	 * <code>defaultValue</code> if it is not set, is not an integer or is
+	 * lower than <code>minValue</code>.
+	 * @param name the setting name
+	 * @param defaultValue the default value
+	 * @param minValue the lowest value accepted
+	 * @return the setting value
+	 */
+	public static int getInt(String name, int defaultValue, int minValue)
+	{
+		String value = getString(name);
+		if (StringUtils.isBlank(value))
+		{
+			return defaultValue;
+		}
+		try
+		{
+			int intValue = Integer.parseInt(value.trim());
+			return (intValue >= minValue) ? intValue : defaultValue;
+		}
+		catch (NumberFormatException ex)
+		{
+			logger.warn("Invalid value for site setting {}: {}", name, value);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Returns the number of threads to use when reading DICOM headers for
+	 * session JSON creation. A value of one uses the single threaded scan.
+	 * @return the parallelism
+	 */
+	public static int getMetadataScanParallelism()
+	{
+		return getInt(MetadataScanParallelism, 1, 1);
+	}
+
+	/**
+	 * Returns the number of sessions whose JSON is generated at once by bulk
+	 * generation. Each session's DICOM headers are read on the scan threads,
+	 * so this bounds the merging, serialisation and compression work.
+	 * @return the number of threads
+	 */
+	public static int getMetadataGenerationThreads()
+	{
+		return getInt(MetadataGenerationThreads,
+			Math.min(Runtime.getRuntime().availableProcessors(), 4), 1);
+	}
+
+	/**
+	 * Returns the number of sessions that may wait for a generation thread
+	 * before back-pressure is applied.
+	 * @return the queue capacity
+	 */
+	public static int getMetadataGenerationQueueSize()
+	{
+		return getInt(MetadataGenerationQueueSize, 64, 1);
+	}
+
+	/**
+	 * Returns whether a session submitted for generation while the queue is
+	 * full is rejected, to be retried later, rather than generated on the
+	 * submitting thread.
+	 * @return true to reject
+	 */
+	public static boolean isMetadataGenerationRejectWhenFull()
+	{
+		return getBoolean(MetadataGenerationRejectWhenFull, false);
+	}
+
+	/**
+	 * Returns the time a session must go without workflow events before its
+	 * JSON is rebuilt, so a burst of events causes a single rebuild. Zero
+	 * rebuilds at the next check of the queue.
+	 * @return the quiet period in seconds
+	 */
+	public static int getRegenerationQuietSeconds()
+	{
+		return getInt(RegenerationQuietSeconds, 15, 0);
+	}
+
+	/**
+	 * Returns whether the JSON of each scan is stored with a fingerprint of its
+	 * files so that rebuilding a session only reads the scans that changed.
+	 * @return true to rebuild incrementally
+	 */
+	public static boolean isMetadataIncremental()
+	{
+		return getBoolean(MetadataIncremental, true);
+	}
+
+	/**
+	 * Returns whether session JSON is written as each scan is read instead of
+	 * building the whole session in memory first.
+	 * @return true to stream
+	 */
+	public static boolean isMetadataStreaming()
+	{
+		return getBoolean(MetadataStreaming, true);
+	}
+
+	/**
+	 * Returns the size budget of the cache of compressed session JSON served to
+	 * the viewer. Zero disables the cache.
+	 * @return the budget in megabytes
+	 */
+	public static int getSessionJsonCacheMegabytes()
+	{
+		return getInt(SessionJsonCacheMegabytes, 64, 0);
+	}
+
+	/**
+	 * Returns whether cached session JSON is held in direct buffers outside
+	 * the Java heap.
+	 * @return true to cache off heap
+	 */
+	public static boolean isSessionJsonCacheOffHeap()
+	{
+		return getBoolean(SessionJsonCacheOffHeap, false);
+	}
+
+	/**
+	 * Returns whether session JSON is created from the files listed in the
+	 * scans' DICOM resource catalogs rather than by searching the session's
+	 * SCANS directory.
+	 * @return true to use the catalogs
+	 */
+	public static boolean isMetadataUseCatalogs()
+	{
+		return getBoolean(MetadataUseCatalogs, false);
+	}
+
+	private static String getString(String name)
+	{
+		SiteConfigPreferences prefs = XDAT.getSiteConfigPreferences();
+		if (prefs == null)
+		{
+			return null;
+		}
+		try
+		{
+			return prefs.getValue(name);
+		}
+		catch (RuntimeException ex)
+		{
+			logger.debug("Site setting {} not available: {}", name,
+				ex.getMessage());
+			return null;
+		}
+	}
+
+	private ViewerPreferences()
+	{}
+}
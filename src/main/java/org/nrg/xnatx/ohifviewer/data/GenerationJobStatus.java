@@ -0,0 +1,232 @@
+/*********************************************************************
+ * Copyright (c) 2023, Institute of Cancer Research
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * (1) Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ * (2) Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ * (3) Neither the name of the Institute of Cancer Research nor the
+ *     names of its contributors may be used to endorse or promote
+ *     products derived from this software without specific prior
+ *     written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+package org.nrg.xnatx.ohifviewer.data;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.swagger.annotations.ApiModelProperty;
+import java.util.Date;
+import java.util.Map;
+import org.nrg.xnatx.ohifviewer.entity.OhifGenerationJob;
+import org.nrg.xnatx.ohifviewer.entity.OhifGenerationJobItem;
+
+/**
+ * The status and progress of a session JSON generation job.
+ *
+ * @author jamesd
+ */
+public class GenerationJobStatus
+{
+	@ApiModelProperty(value = "Job ID", required = true)
+	@JsonProperty("id")
+	private final long id;
+
+	@ApiModelProperty(value = "Scope of the job", allowableValues = "Site,Project,Subject", required = true)
+	@JsonProperty("scope")
+	private final String scope;
+
+	@ApiModelProperty(value = "Project ID", required = false)
+	@JsonProperty("projectId")
+	private final String projectId;
+
+	@ApiModelProperty(value = "Subject ID", required = false)
+	@JsonProperty("subjectId")
+	private final String subjectId;
+
+	@ApiModelProperty(value = "User that submitted the job", required = true)
+	@JsonProperty("username")
+	private final String username;
+
+	@ApiModelProperty(value = "Job status", allowableValues = "Queued,Running,Complete,Cancelled", required = true)
+	@JsonProperty("status")
+	private final String status;
+
+	@ApiModelProperty(value = "Time the job was submitted", required = true)
+	@JsonProperty("submitted")
+	private final Date submitted;
+
+	@ApiModelProperty(value = "Time the job status last changed", required = true)
+	@JsonProperty("updated")
+	private final Date updated;
+
+	@ApiModelProperty(value = "Whether sessions with up to date JSON are skipped", required = true)
+	@JsonProperty("staleOnly")
+	private final boolean staleOnly;
+
+	@ApiModelProperty(value = "Whether every session of the job has been counted. Site-wide jobs add sessions a page at a time.", required = true)
+	@JsonProperty("enumerated")
+	private final boolean enumerated;
+
+	@ApiModelProperty(value = "Number of sessions", required = true)
+	@JsonProperty("total")
+	private final long total;
+
+	@ApiModelProperty(value = "Number of sessions waiting to be generated, including retries", required = true)
+	@JsonProperty("pending")
+	private final long pending;
+
+	@ApiModelProperty(value = "Number of sessions being generated", required = true)
+	@JsonProperty("running")
+	private final long running;
+
+	@ApiModelProperty(value = "Number of sessions regenerated", required = true)
+	@JsonProperty("complete")
+	private final long complete;
+
+	@ApiModelProperty(value = "Number of sessions skipped as their JSON was up to date", required = true)
+	@JsonProperty("skipped")
+	private final long skipped;
+
+	@ApiModelProperty(value = "Number of sessions that failed every attempt", required = true)
+	@JsonProperty("failed")
+	private final long failed;
+
+	@ApiModelProperty(value = "Number of sessions not generated due to cancellation", required = true)
+	@JsonProperty("cancelled")
+	private final long cancelled;
+
+	public GenerationJobStatus(OhifGenerationJob job,
+		Map<OhifGenerationJobItem.Status,Long> counts)
+	{
+		id = job.getId();
+		scope = String.valueOf(job.getScope());
+		projectId = job.getProjectId();
+		subjectId = job.getSubjectId();
+		username = job.getUsername();
+		status = String.valueOf(job.getStatus());
+		submitted = job.getCreated();
+		updated = job.getTimestamp();
+		staleOnly = job.isStaleOnly();
+		enumerated = job.isEnumerated();
+		pending = count(counts, OhifGenerationJobItem.Status.Pending);
+		running = count(counts, OhifGenerationJobItem.Status.Running);
+		complete = count(counts, OhifGenerationJobItem.Status.Complete);
+		skipped = count(counts, OhifGenerationJobItem.Status.Skipped);
+		failed = count(counts, OhifGenerationJobItem.Status.Failed);
+		cancelled = count(counts, OhifGenerationJobItem.Status.Cancelled);
+		total = pending+running+complete+skipped+failed+cancelled;
+	}
+
+	public long getCancelled()
+	{
+		return cancelled;
+	}
+
+	public long getComplete()
+	{
+		return complete;
+	}
+
+	public boolean isEnumerated()
+	{
+		return enumerated;
+	}
+
+	public long getFailed()
+	{
+		return failed;
+	}
+
+	public long getId()
+	{
+		return id;
+	}
+
+	public long getPending()
+	{
+		return pending;
+	}
+
+	public String getProjectId()
+	{
+		return projectId;
+	}
+
+	public long getRunning()
+	{
+		return running;
+	}
+
+	public String getScope()
+	{
+		return scope;
+	}
+
+	public long getSkipped()
+	{
+		return skipped;
+	}
+
+	public boolean isStaleOnly()
+	{
+		return staleOnly;
+	}
+
+	public String getStatus()
+	{
+		return status;
+	}
+
+	public String getSubjectId()
+	{
+		return subjectId;
+	}
+
+	public Date getSubmitted()
+	{
+		return submitted;
+	}
+
+	public long getTotal()
+	{
+		return total;
+	}
+
+	public Date getUpdated()
+	{
+		return updated;
+	}
+
+	public String getUsername()
+	{
+		return username;
+	}
+
+	private static long count(Map<OhifGenerationJobItem.Status,Long> counts,
+		OhifGenerationJobItem.Status itemStatus)
+	{
+		Long count = counts.get(itemStatus);
+		return (count != null) ? count : 0;
+	}
+}
@@ -0,0 +1,195 @@
+/*********************************************************************
+ * Copyright (c) 2023, Institute of Cancer Research
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * (1) Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ * (2) Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ * (3) Neither the name of the Institute of Cancer Research nor the
+ *     names of its contributors may be used to endorse or promote
+ *     products derived from this software without specific prior
+ *     written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+package org.nrg.xnatx.ohifviewer.data;
+
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import org.nrg.framework.orm.hibernate.AbstractHibernateDAO;
+import org.nrg.xnatx.ohifviewer.entity.OhifGenerationJobItem;
+import org.nrg.xnatx.ohifviewer.entity.OhifGenerationJobItem.Status;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public class OhifGenerationJobItemRepository
+	extends AbstractHibernateDAO<OhifGenerationJobItem>
+{
+	/**
+	 * Returns a job's pending items that are due to run.
+	 * @param jobId the job ID
+	 * @param now the current time
+	 * @param maxResults the maximum number of items
+	 * @return the items
+	 */
+	@SuppressWarnings("unchecked")
+	public List<OhifGenerationJobItem> findDue(long jobId, Date now,
+		int maxResults)
+	{
+		return getSession().createQuery(
+				"from OhifGenerationJobItem where jobId = :jobId "+
+				"and status = :pending and nextAttempt <= :now order by id")
+			.setLong("jobId", jobId)
+			.setParameter("pending", Status.Pending)
+			.setTimestamp("now", now)
+			.setMaxResults(maxResults)
+			.list();
+	}
+
+	/**
+	 * Returns the number of a job's items in each status.
+	 * @param jobId the job ID
+	 * @return the counts by status, without statuses no item has
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<Status,Long> countByStatus(long jobId)
+	{
+		List<Object[]> rows = getSession().createQuery(
+				"select status, count(*) from OhifGenerationJobItem "+
+				"where jobId = :jobId group by status")
+			.setLong("jobId", jobId)
+			.list();
+		Map<Status,Long> counts = new EnumMap<>(Status.class);
+		for (Object[] row : rows)
+		{
+			counts.put((Status) row[0], ((Number) row[1]).longValue());
+		}
+		return counts;
+	}
+
+	/**
+	 * Returns the number of a job's items in a status.
+	 * @param jobId the job ID
+	 * @param status the status
+	 * @return the count
+	 */
+	public long countByStatus(long jobId, Status status)
+	{
+		return ((Number) getSession().createQuery(
+				"select count(*) from OhifGenerationJobItem "+
+				"where jobId = :jobId and status = :status")
+			.setLong("jobId", jobId)
+			.setParameter("status", status)
+			.uniqueResult()).longValue();
+	}
+
+	/**
+	 * Returns a job's items in a status.
+	 * @param jobId the job ID
+	 * @param status the status
+	 * @param maxResults the maximum number of items
+	 * @return the items
+	 */
+	@SuppressWarnings("unchecked")
+	public List<OhifGenerationJobItem> findByStatus(long jobId, Status status,
+		int maxResults)
+	{
+		return getSession().createQuery(
+				"from OhifGenerationJobItem where jobId = :jobId "+
+				"and status = :status order by id")
+			.setLong("jobId", jobId)
+			.setParameter("status", status)
+			.setMaxResults(maxResults)
+			.list();
+	}
+
+	/**
+	 * Sets the status of every item of a job in one status to another.
+	 * @param jobId the job ID
+	 * @param from the current status
+	 * @param to the new status
+	 * @return the number of items updated
+	 */
+	public int updateStatus(long jobId, Status from, Status to)
+	{
+		return getSession().createQuery(
+				"update OhifGenerationJobItem set status = :to, "+
+				"timestamp = :timestamp where jobId = :jobId and status = :from")
+			.setParameter("to", to)
+			.setTimestamp("timestamp", new Date())
+			.setLong("jobId", jobId)
+			.setParameter("from", from)
+			.executeUpdate();
+	}
+
+	/**
+	 * Returns running items claimed before a time to pending, or fails them if
+	 * they have used their attempts.
+	 * @param claimedBefore the time
+	 * @param maxAttempts the maximum number of attempts
+	 * @param error the error recorded for failed items
+	 * @return the number of items updated
+	 */
+	public int reclaimRunning(Date claimedBefore, int maxAttempts, String error)
+	{
+		Date now = new Date();
+		int failed = getSession().createQuery(
+				"update OhifGenerationJobItem set status = :failed, "+
+				"lastError = :error, timestamp = :timestamp "+
+				"where status = :running and claimed < :claimedBefore "+
+				"and attempts >= :maxAttempts")
+			.setParameter("failed", Status.Failed)
+			.setString("error", error)
+			.setTimestamp("timestamp", now)
+			.setParameter("running", Status.Running)
+			.setTimestamp("claimedBefore", claimedBefore)
+			.setInteger("maxAttempts", maxAttempts)
+			.executeUpdate();
+		return failed+getSession().createQuery(
+				"update OhifGenerationJobItem set status = :pending, "+
+				"nextAttempt = :timestamp, timestamp = :timestamp "+
+				"where status = :running and claimed < :claimedBefore")
+			.setParameter("pending", Status.Pending)
+			.setTimestamp("timestamp", now)
+			.setParameter("running", Status.Running)
+			.setTimestamp("claimedBefore", claimedBefore)
+			.executeUpdate();
+	}
+
+	/**
+	 * Returns items left running, by a restart, to pending.
+	 * @return the number of items updated
+	 */
+	public int resetRunning()
+	{
+		return getSession().createQuery(
+				"update OhifGenerationJobItem set status = :pending, "+
+				"timestamp = :timestamp where status = :running")
+			.setParameter("pending", Status.Pending)
+			.setTimestamp("timestamp", new Date())
+			.setParameter("running", Status.Running)
+			.executeUpdate();
+	}
+}
@@ -0,0 +1,134 @@
+/*********************************************************************
+ * Copyright (c) 2023, Institute of Cancer Research
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * (1) Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ * (2) Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ * (3) Neither the name of the Institute of Cancer Research nor the
+ *     names of its contributors may be used to endorse or promote
+ *     products derived from this software without specific prior
+ *     written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+package org.nrg.xnatx.ohifviewer.data;
+
+import java.util.Date;
+import java.util.List;
+import org.nrg.framework.orm.hibernate.AbstractHibernateDAO;
+import org.nrg.xnatx.ohifviewer.entity.OhifGenerationJob;
+import org.nrg.xnatx.ohifviewer.entity.OhifGenerationJobItem;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public class OhifGenerationJobRepository
+	extends AbstractHibernateDAO<OhifGenerationJob>
+{
+	/**
+	 * Returns the queued and running jobs, oldest first.
+	 * @return the jobs
+	 */
+	@SuppressWarnings("unchecked")
+	public List<OhifGenerationJob> findActive()
+	{
+		return getSession().createQuery(
+				"from OhifGenerationJob where status in (:statuses) order by id")
+			.setParameterList("statuses", new OhifGenerationJob.Status[]
+				{OhifGenerationJob.Status.Queued, OhifGenerationJob.Status.Running})
+			.list();
+	}
+
+	/**
+	 * Returns the most recently submitted jobs, newest first.
+	 * @param maxResults the maximum number of jobs
+	 * @return the jobs
+	 */
+	@SuppressWarnings("unchecked")
+	public List<OhifGenerationJob> findRecent(int maxResults)
+	{
+		return getSession().createQuery(
+				"from OhifGenerationJob order by id desc")
+			.setMaxResults(maxResults)
+			.list();
+	}
+
+	/**
+	 * Returns a page of image session IDs in ID order, read directly from the
+	 * session table without loading the sessions.
+	 * @param after the ID the page starts after or null for the first page
+	 * @param maxResults the page size
+	 * @return the IDs
+	 */
+	@SuppressWarnings("unchecked")
+	public List<String> findImageSessionIds(String after, int maxResults)
+	{
+		return getSession().createSQLQuery(
+				"select id from xnat_imagesessiondata where id > :after "+
+				"order by id")
+			.setString("after", (after != null) ? after : "")
+			.setMaxResults(maxResults)
+			.list();
+	}
+
+	/**
+	 * Marks active, fully enumerated jobs with no pending or running items
+	 * complete.
+	 * @return the number of jobs completed
+	 */
+	public int completeFinished()
+	{
+		return getSession().createQuery(
+				"update OhifGenerationJob j set j.status = :complete, "+
+				"j.timestamp = :timestamp where j.status in (:active) "+
+				"and j.enumerated = :enumerated and not exists "+
+				"(from OhifGenerationJobItem i where i.jobId = j.id "+
+				"and i.status in (:unfinished))")
+			.setParameter("complete", OhifGenerationJob.Status.Complete)
+			.setTimestamp("timestamp", new Date())
+			.setParameterList("active", new OhifGenerationJob.Status[]
+				{OhifGenerationJob.Status.Queued, OhifGenerationJob.Status.Running})
+			.setBoolean("enumerated", true)
+			.setParameterList("unfinished", new OhifGenerationJobItem.Status[]
+				{OhifGenerationJobItem.Status.Pending,
+					OhifGenerationJobItem.Status.Running})
+			.executeUpdate();
+	}
+
+	/**
+	 * Sets the status of a job.
+	 * @param id the job ID
+	 * @param status the status
+	 * @return the number of jobs updated
+	 */
+	public int updateStatus(long id, OhifGenerationJob.Status status)
+	{
+		return getSession().createQuery(
+				"update OhifGenerationJob set status = :status, "+
+				"timestamp = :timestamp where id = :id")
+			.setParameter("status", status)
+			.setTimestamp("timestamp", new Date())
+			.setLong("id", id)
+			.executeUpdate();
+	}
+}
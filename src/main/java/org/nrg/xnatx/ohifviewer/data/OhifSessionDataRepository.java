@@ -34,10 +34,119 @@
  *********************************************************************/
 package org.nrg.xnatx.ohifviewer.data;
 
+import java.sql.Blob;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import org.hibernate.type.StandardBasicTypes;
 import org.nrg.framework.orm.hibernate.AbstractHibernateDAO;
 import org.nrg.xnatx.ohifviewer.entity.OhifSessionData;
 import org.springframework.stereotype.Repository;
 
 @Repository
 public class OhifSessionDataRepository extends AbstractHibernateDAO<OhifSessionData>
-{}
+{
+	private static final int VersionBatchSize = 500;
+
+	/**
+	 * Returns the IDs of stored data that only has legacy uncompressed JSON.
+	 * @param maxResults the maximum number of IDs
+	 * @return the IDs
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Long> findUncompressedIds(int maxResults)
+	{
+		return getSession().createQuery(
+				"select id from OhifSessionData where sessionJsonGzip is null "+
+				"and sessionJson is not null order by id")
+			.setMaxResults(maxResults)
+			.list();
+	}
+
+	/**
+	 * Returns the revision, content hash and last update time of a session's
+	 * stored data without loading the entity or its JSON.
+	 * @param sessionId the session ID
+	 * @return the row of revision, content hash and timestamp or null if the
+	 * session has no data
+	 */
+	public Object[] findJsonVersion(String sessionId)
+	{
+		return (Object[]) getSession().createQuery(
+				"select revision, contentHash, timestamp from OhifSessionData "+
+				"where sessionId = :sessionId")
+			.setString("sessionId", sessionId)
+			.uniqueResult();
+	}
+
+	/**
+	 * Returns the fingerprint of the files a session's stored JSON was created
+	 * from without loading the entity or its JSON.
+	 * @param sessionId the session ID
+	 * @return the fingerprint or null if the session has no data or its JSON
+	 * has no fingerprint
+	 */
+	public String findFingerprint(String sessionId)
+	{
+		return (String) getSession().createQuery(
+				"select fingerprint from OhifSessionData "+
+				"where sessionId = :sessionId")
+			.setString("sessionId", sessionId)
+			.uniqueResult();
+	}
+
+	/**
+	 * Returns the session ID, revision, content hash and last update time of
+	 * the stored data of each of the sessions that has any, without loading
+	 * the entities or their JSON. The IDs are queried in batches to bound the
+	 * size of the statement.
+	 * @param sessionIds the session IDs
+	 * @return the rows of session ID, revision, content hash and timestamp
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Object[]> findJsonVersions(Collection<String> sessionIds)
+	{
+		List<Object[]> rows = new ArrayList<>();
+		List<String> ids = new ArrayList<>(sessionIds);
+		for (int i=0; i<ids.size(); i+=VersionBatchSize)
+		{
+			rows.addAll(getSession().createQuery(
+					"select sessionId, revision, contentHash, timestamp "+
+					"from OhifSessionData where sessionId in (:sessionIds)")
+				.setParameterList("sessionIds",
+					ids.subList(i, Math.min(i+VersionBatchSize, ids.size())))
+				.list());
+		}
+		return rows;
+	}
+
+	/**
+	 * Replaces the revision, fingerprint and JSON of a session's stored data in place,
+	 * without loading the entity or its current JSON. Any legacy uncompressed
+	 * JSON is cleared.
+	 * @param sessionId the session ID
+	 * @param revision the JSON revision
+	 * @param contentHash the hash of the uncompressed JSON
+	 * @param fingerprint the fingerprint of the session's files or null
+	 * @param sessionJsonGzip the gzip compressed JSON
+	 * @return the number of rows updated, zero if the session has no data
+	 */
+	public int updateSessionJson(String sessionId, String revision,
+		String contentHash, String fingerprint, Blob sessionJsonGzip)
+	{
+		return getSession().createQuery(
+				"update OhifSessionData set revision = :revision, "+
+				"contentHash = :contentHash, fingerprint = :fingerprint, "+
+				"sessionJsonGzip = :sessionJsonGzip, sessionJson = null, "+
+				"timestamp = :timestamp where sessionId = :sessionId")
+			.setString("revision", revision)
+			.setString("contentHash", contentHash)
+			.setString("fingerprint", fingerprint)
+			.setParameter("sessionJsonGzip", sessionJsonGzip,
+				StandardBasicTypes.BLOB)
+			.setTimestamp("timestamp", new Date())
+			.setString("sessionId", sessionId)
+			.executeUpdate();
+	}
+}
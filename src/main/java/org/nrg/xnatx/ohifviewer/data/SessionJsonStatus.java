@@ -0,0 +1,112 @@
+/*********************************************************************
+ * Copyright (c) 2023, Institute of Cancer Research
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * (1) Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ * (2) Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ * (3) Neither the name of the Institute of Cancer Research nor the
+ *     names of its contributors may be used to endorse or promote
+ *     products derived from this software without specific prior
+ *     written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+package org.nrg.xnatx.ohifviewer.data;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.swagger.annotations.ApiModelProperty;
+
+/**
+ * The availability of a session's stored JSON, as returned for a set of
+ * sessions.
+ *
+ * @author jamesd
+ */
+public class SessionJsonStatus
+{
+	@ApiModelProperty(value = "Session ID", required = true)
+	@JsonProperty("ID")
+	private final String id;
+
+	@ApiModelProperty(value = "Session label", required = true)
+	@JsonProperty("label")
+	private final String label;
+
+	@ApiModelProperty(value = "Whether JSON is stored for the session", required = true)
+	@JsonProperty("exists")
+	private final boolean exists;
+
+	@ApiModelProperty(value = "Revision of the stored JSON", required = false)
+	@JsonProperty("revision")
+	private final String revision;
+
+	@ApiModelProperty(value = "Whether the stored JSON is up to date and can be used", required = true)
+	@JsonProperty("valid")
+	private final boolean valid;
+
+	@ApiModelProperty(value = "ETag of the JSON sent without Content-Encoding, gzip encoded responses append -gz to it", required = false)
+	@JsonProperty("eTag")
+	private final String eTag;
+
+	public SessionJsonStatus(String id, String label, boolean exists,
+		String revision, boolean valid, String eTag)
+	{
+		this.id = id;
+		this.label = label;
+		this.exists = exists;
+		this.revision = revision;
+		this.valid = valid;
+		this.eTag = eTag;
+	}
+
+	public String getETag()
+	{
+		return eTag;
+	}
+
+	public String getId()
+	{
+		return id;
+	}
+
+	public String getLabel()
+	{
+		return label;
+	}
+
+	public String getRevision()
+	{
+		return revision;
+	}
+
+	public boolean isExists()
+	{
+		return exists;
+	}
+
+	public boolean isValid()
+	{
+		return valid;
+	}
+}
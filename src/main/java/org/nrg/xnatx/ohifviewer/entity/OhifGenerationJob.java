@@ -0,0 +1,123 @@
+package org.nrg.xnatx.ohifviewer.entity;
+
+import org.nrg.framework.orm.hibernate.AbstractHibernateEntity;
+
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.Index;
+import javax.persistence.Table;
+
+/**
+ * A queued request to generate the session JSON of every image session in the
+ * site, a project or a subject. The sessions are held as
+ * {@link OhifGenerationJobItem}s so a run interrupted by a restart resumes with
+ * the sessions still to do. A site-wide job adds its items a page of session
+ * IDs at a time as they are needed, recording the last ID added as a
+ * checkpoint. A stale-only job skips sessions whose stored JSON was created
+ * from the files they have now.
+ */
+@Entity
+@Table(indexes = {@Index(columnList = "status")})
+public class OhifGenerationJob extends AbstractHibernateEntity {
+    public enum Scope {
+        Site, Project, Subject
+    }
+
+    public enum Status {
+        Queued, Running, Complete, Cancelled
+    }
+
+    @Enumerated(EnumType.STRING)
+    private Scope scope;
+
+    private String projectId;
+
+    private String subjectId;
+
+    // User the sessions are generated as
+    private String username;
+
+    @Enumerated(EnumType.STRING)
+    private Status status;
+
+    // Whether sessions with up to date JSON are skipped
+    private boolean staleOnly;
+
+    // Whether every session has an item. Site jobs add items a page at a time.
+    private boolean enumerated;
+
+    // Highest session ID with an item while enumerating
+    private String sessionCursor;
+
+    public Scope getScope() {
+        return scope;
+    }
+
+    public void setScope(Scope scope) {
+        this.scope = scope;
+    }
+
+    public String getProjectId() {
+        return projectId;
+    }
+
+    public void setProjectId(String projectId) {
+        this.projectId = projectId;
+    }
+
+    public String getSubjectId() {
+        return subjectId;
+    }
+
+    public void setSubjectId(String subjectId) {
+        this.subjectId = subjectId;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public boolean isStaleOnly() {
+        return staleOnly;
+    }
+
+    public void setStaleOnly(boolean staleOnly) {
+        this.staleOnly = staleOnly;
+    }
+
+    public boolean isEnumerated() {
+        return enumerated;
+    }
+
+    public void setEnumerated(boolean enumerated) {
+        this.enumerated = enumerated;
+    }
+
+    public String getSessionCursor() {
+        return sessionCursor;
+    }
+
+    public void setSessionCursor(String sessionCursor) {
+        this.sessionCursor = sessionCursor;
+    }
+
+    /**
+     * @return true if the job is queued or running
+     */
+    public boolean isActive() {
+        return (status == Status.Queued) || (status == Status.Running);
+    }
+}
@@ -0,0 +1,106 @@
+package org.nrg.xnatx.ohifviewer.entity;
+
+import org.nrg.framework.orm.hibernate.AbstractHibernateEntity;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.persistence.UniqueConstraint;
+import java.util.Date;
+
+/**
+ * The generation of a single session's JSON within an
+ * {@link OhifGenerationJob}, with the attempts made so far.
+ */
+@Entity
+@Table(uniqueConstraints = {
+        @UniqueConstraint(columnNames = {"jobId", "sessionId"})},
+    indexes = {@Index(columnList = "status, nextAttempt")})
+public class OhifGenerationJobItem extends AbstractHibernateEntity {
+    public static final int MaxErrorLength = 1024;
+
+    public enum Status {
+        Pending, Running, Complete, Skipped, Failed, Cancelled
+    }
+
+    private long jobId;
+
+    private String sessionId;
+
+    @Enumerated(EnumType.STRING)
+    private Status status;
+
+    private int attempts;
+
+    // Earliest time the item may be run, later than its failure while backing off
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date nextAttempt;
+
+    // When the item was last claimed, a running item claimed long ago was lost
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date claimed;
+
+    @Column(length = MaxErrorLength)
+    private String lastError;
+
+    public long getJobId() {
+        return jobId;
+    }
+
+    public void setJobId(long jobId) {
+        this.jobId = jobId;
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public void setSessionId(String sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public Date getNextAttempt() {
+        return nextAttempt;
+    }
+
+    public void setNextAttempt(Date nextAttempt) {
+        this.nextAttempt = nextAttempt;
+    }
+
+    public Date getClaimed() {
+        return claimed;
+    }
+
+    public void setClaimed(Date claimed) {
+        this.claimed = claimed;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void setLastError(String lastError) {
+        this.lastError = lastError;
+    }
+}
@@ -0,0 +1,59 @@
+package org.nrg.xnatx.ohifviewer.entity;
+
+import org.nrg.framework.orm.hibernate.AbstractHibernateEntity;
+
+import javax.persistence.Entity;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+/**
+ * The session JSON fragment of a single scan, stored with a fingerprint of the
+ * scan's files so that unchanged scans are not re-read when the session JSON
+ * is rebuilt.
+ */
+@Entity
+@Table(uniqueConstraints = {
+        @UniqueConstraint(columnNames = {"sessionId", "scanId"})})
+public class OhifScanData extends AbstractHibernateEntity {
+    private String sessionId;
+
+    private String scanId;
+
+    private String fingerprint;
+
+    @Lob
+    private String scanJson;
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public void setSessionId(String sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    public String getScanId() {
+        return scanId;
+    }
+
+    public void setScanId(String scanId) {
+        this.scanId = scanId;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public void setFingerprint(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    public String getScanJson() {
+        return scanJson;
+    }
+
+    public void setScanJson(String scanJson) {
+        this.scanJson = scanJson;
+    }
+}
@@ -6,6 +6,7 @@ import javax.persistence.Entity;
 import javax.persistence.Lob;
 import javax.persistence.Table;
 import javax.persistence.UniqueConstraint;
+import java.sql.Blob;
 import java.sql.Clob;
 
 @Entity
@@ -16,9 +17,21 @@ public class OhifSessionData extends AbstractHibernateEntity {
 
     private String revision;
 
+    // SHA-256 of the UTF-8 JSON
+    private String contentHash;
+
+    // Fingerprint of the scans and files the JSON was created from, null if
+    // the JSON was migrated or created before fingerprints were kept
+    private String fingerprint;
+
+    // Legacy uncompressed JSON, null once compressed
     @Lob
     private Clob sessionJson;
 
+    // UTF-8 JSON, gzip compressed
+    @Lob
+    private Blob sessionJsonGzip;
+
     public String getSessionId() {
         return sessionId;
     }
@@ -35,6 +48,22 @@ public class OhifSessionData extends AbstractHibernateEntity {
         this.revision = revision;
     }
 
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public void setFingerprint(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
     public Clob getSessionJson() {
         return sessionJson;
     }
@@ -42,4 +71,12 @@ public class OhifSessionData extends AbstractHibernateEntity {
     public void setSessionJson(Clob sessionJson) {
         this.sessionJson = sessionJson;
     }
+
+    public Blob getSessionJsonGzip() {
+        return sessionJsonGzip;
+    }
+
+    public void setSessionJsonGzip(Blob sessionJsonGzip) {
+        this.sessionJsonGzip = sessionJsonGzip;
+    }
 }
@@ -47,8 +47,7 @@ import org.nrg.xft.exception.XFTInitException;
 import org.nrg.xft.security.UserI;
 import org.nrg.xnat.helpers.merge.AnonUtils;
 import org.nrg.xnat.turbine.utils.ArchivableItem;
-import org.nrg.xnatx.ohifviewer.inputcreator.JsonMetadataHandler;
-import org.nrg.xnatx.plugin.PluginException;
+import org.nrg.xnatx.ohifviewer.inputcreator.SessionRebuildQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
@@ -74,19 +73,19 @@ public class OhifViewerEventListener
 		OhifViewerEventListener.class);
 
 	private final AnonUtils anonUtils;
-	private final JsonMetadataHandler jsonHandler;
+	private final SessionRebuildQueue rebuildQueue;
 	private final Map<String, Boolean> triggerPipelines = new HashMap<>();
 	private final Map<String, Boolean> triggerPipelinesSubject = new HashMap<>();
 
 	@Inject
-	public OhifViewerEventListener(EventBus eventBus, AnonUtils anonUtils, JsonMetadataHandler jsonHandler)
+	public OhifViewerEventListener(EventBus eventBus, AnonUtils anonUtils, SessionRebuildQueue rebuildQueue)
 	{
 		eventBus.on(
 			R(WorkflowStatusEvent.class.getName()+
 				"[.]?("+PersistentWorkflowUtils.COMPLETE+")"),
 			this);
 		this.anonUtils = anonUtils;
-		this.jsonHandler = jsonHandler;
+		this.rebuildQueue = rebuildQueue;
 		createTriggers();
 		logger.info("OHIF Viewer event listener initialised");
 	}
@@ -190,7 +189,7 @@ public class OhifViewerEventListener
 			for (final XnatSubjectassessordata expt : ((XnatSubjectdata) item)
 					.getExperiments_experiment(XnatImagesessiondata.SCHEMA_ELEMENT_NAME))
 			{
-				logger.debug("Rebuilding viewer JSON metadata for ID: {} User: {} Trigger event: {} (subject)",
+				logger.debug("Queueing viewer JSON metadata rebuild for ID: {} User: {} Trigger event: {} (subject)",
 						expt.getId(), user.getUsername(), pipelineName);
 				generateJson((XnatImagesessiondata) expt, user);
 			}
@@ -198,21 +197,15 @@ public class OhifViewerEventListener
 		else if (item instanceof XnatImagesessiondata)
 		{
 
-			logger.debug("Rebuilding viewer JSON metadata for ID: {} User: {} Trigger event: {}",
+			logger.debug("Queueing viewer JSON metadata rebuild for ID: {} User: {} Trigger event: {}",
 					id, user.getUsername(), pipelineName);
 			generateJson((XnatImagesessiondata) item, user);
 		}
 	}
 
 	private void generateJson(XnatImagesessiondata item, UserI user) {
-		try
-		{
-			jsonHandler.createAndStoreJsonConfig(item, user, true);
-		}
-		catch (PluginException ex)
-		{
-			logger.warn(ex.getMessage(), ex);
-		}
+		// Rebuilt off the event thread once the session's events stop
+		rebuildQueue.submit(item.getId(), user);
 	}
 
 }
@@ -11,6 +11,7 @@ import org.nrg.xnat.services.archive.ResourceSurveyService;
 import org.nrg.xnat.services.messaging.archive.AbstractResourceMitigationEventHandlerMethod;
 import org.nrg.xnat.services.messaging.archive.ResourceMitigationEventProperties;
 import org.nrg.xnatx.ohifviewer.inputcreator.JsonMetadataHandler;
+import org.nrg.xnatx.ohifviewer.inputcreator.SessionRebuildQueue;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.stereotype.Component;
 
@@ -21,14 +22,17 @@ import java.util.List;
 public class OhifViewerResourceMitigationEventHandlerMethod extends AbstractResourceMitigationEventHandlerMethod {
     private final ResourceSurveyService resourceSurveyService;
     private final JsonMetadataHandler   metadataHandler;
+    private final SessionRebuildQueue   rebuildQueue;
 
     public OhifViewerResourceMitigationEventHandlerMethod(final ResourceSurveyService resourceSurveyService,
                                                           final JsonMetadataHandler metadataHandler,
+                                                          final SessionRebuildQueue rebuildQueue,
                                                           final SerializerService serializer,
                                                           final NamedParameterJdbcTemplate template) {
         super(serializer, template);
         this.resourceSurveyService = resourceSurveyService;
         this.metadataHandler       = metadataHandler;
+        this.rebuildQueue          = rebuildQueue;
     }
 
     @Override
@@ -61,7 +65,15 @@ public class OhifViewerResourceMitigationEventHandlerMethod extends AbstractReso
         if (!requests.isEmpty()) {
             log.info("There are {} outstanding resource survey requests for image session {}: OHIF metadata shouldn't be regenerated until all outstanding requests have completed", requests.size(), sessionId);
         } else {
-            log.info("There are no outstanding resource survey requests for image session {}: OHIF metadata can be safely regenerated now", sessionId);
+            log.info("There are no outstanding resource survey requests for image session {}: scheduling OHIF metadata regeneration", sessionId);
+            // Shares any rebuild already queued for the session
+            rebuildQueue.submit(sessionId, requester).whenComplete((result, error) -> {
+                if (error == null) {
+                    log.info("OHIF viewer metadata for imaging session ID {} regenerated after resource mitigation", sessionId);
+                } else {
+                    log.warn("Failed to regenerate OHIF viewer metadata for imaging session ID {} after resource mitigation", sessionId, error);
+                }
+            });
         }
         return true;
     }
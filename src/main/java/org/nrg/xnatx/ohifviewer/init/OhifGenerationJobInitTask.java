@@ -0,0 +1,43 @@
+package org.nrg.xnatx.ohifviewer.init;
+
+import org.nrg.xnat.initialization.tasks.AbstractInitializingTask;
+import org.nrg.xnat.initialization.tasks.InitializingTaskException;
+import org.nrg.xnat.services.XnatAppInfo;
+import org.nrg.xnatx.ohifviewer.inputcreator.OhifGenerationJobRunner;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Starts the session JSON generation job queue once the site is initialised,
+ * resuming any jobs left unfinished by a restart.
+ */
+@Component
+public class OhifGenerationJobInitTask extends AbstractInitializingTask {
+    private final XnatAppInfo appInfo;
+    private final OhifGenerationJobRunner jobRunner;
+
+    @Autowired
+    public OhifGenerationJobInitTask(final XnatAppInfo appInfo,
+                                     final OhifGenerationJobRunner jobRunner) {
+        this.appInfo = appInfo;
+        this.jobRunner = jobRunner;
+    }
+
+    @Override
+    public String getTaskName() {
+        return "OHIF session JSON generation job init task";
+    }
+
+    @Override
+    protected void callImpl() throws InitializingTaskException {
+        if (!appInfo.isInitialized()) {
+            throw new InitializingTaskException(InitializingTaskException.Level.RequiresInitialization);
+        }
+        try {
+            jobRunner.start();
+        } catch (Exception e) {
+            throw new InitializingTaskException(InitializingTaskException.Level.Warn,
+                    "Unable to start the OHIF session JSON generation queue", e);
+        }
+    }
+}
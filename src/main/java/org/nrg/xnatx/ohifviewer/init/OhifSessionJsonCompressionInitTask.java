@@ -0,0 +1,57 @@
+package org.nrg.xnatx.ohifviewer.init;
+
+import org.nrg.xnat.initialization.tasks.AbstractInitializingTask;
+import org.nrg.xnat.initialization.tasks.InitializingTaskException;
+import org.nrg.xnat.services.XnatAppInfo;
+import org.nrg.xnatx.ohifviewer.service.OhifSessionDataService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Compresses session JSON stored before it was held gzip compressed. Sessions
+ * are converted in small batches, each in its own transaction, and sessions
+ * not yet converted are still served from their uncompressed JSON.
+ */
+@Component
+public class OhifSessionJsonCompressionInitTask extends AbstractInitializingTask {
+    private static final Logger logger = LoggerFactory.getLogger(OhifSessionJsonCompressionInitTask.class);
+    private static final int BATCH_SIZE = 20;
+
+    private final XnatAppInfo appInfo;
+    private final OhifSessionDataService sessionDataService;
+
+    @Autowired
+    public OhifSessionJsonCompressionInitTask(final XnatAppInfo appInfo,
+                                              final OhifSessionDataService sessionDataService) {
+        this.appInfo = appInfo;
+        this.sessionDataService = sessionDataService;
+    }
+
+    @Override
+    public String getTaskName() {
+        return "OHIF session JSON compression init task";
+    }
+
+    @Override
+    protected void callImpl() throws InitializingTaskException {
+        if (!appInfo.isInitialized()) {
+            throw new InitializingTaskException(InitializingTaskException.Level.RequiresInitialization);
+        }
+        try {
+            int total = 0;
+            int count;
+            do {
+                count = sessionDataService.compressSessionJson(BATCH_SIZE);
+                total += count;
+            } while (count == BATCH_SIZE);
+            if (total > 0) {
+                logger.info("Compressed stored JSON for {} sessions", total);
+            }
+        } catch (Exception e) {
+            throw new InitializingTaskException(InitializingTaskException.Level.Warn,
+                    "Unable to compress stored OHIF session JSON", e);
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*********************************************************************
+ * Copyright (c) 2023, Institute of Cancer Research
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * (1) Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ * (2) Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ * (3) Neither the name of the Institute of Cancer Research nor the
+ *     names of its contributors may be used to endorse or promote
+ *     products derived from this software without specific prior
+ *     written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+package org.nrg.xnatx.ohifviewer.inputcreator;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.nrg.xnatx.ohifviewer.ViewerPreferences;
+import org.nrg.xnatx.plugin.PluginCode;
+import org.nrg.xnatx.plugin.PluginException;
+
+/**
+ * Priority scheduler of session JSON builds. A build runs once it holds one
+ * of a fixed number of slots, one more than the generation threads, and
+ * waiting builds are granted slots in {@link BuildPriority} order, oldest
+ * first within a class. The extra slot is never granted to bulk builds, so a
+ * build a user is waiting for starts without waiting for a bulk build to
+ * finish unless other interactive or event builds hold it.
+ * <p>
+ * A waiting build is promoted one class for every aging period it has waited,
+ * so event and bulk builds are delayed but never starved by a steady stream
+ * of higher priority builds. Aging only orders the waiters, a bulk build
+ * never takes the reserved slot however long it has waited. A build's
+ * priority is held by its {@link Ticket}, which is raised when a request of
+ * higher priority joins the build. The time each build waits for its slot is
+ * recorded by the class it is granted the slot at.
+ *
+ * @author jamesd
+ */
+final class BuildScheduler
+{
+	static final long AgingMillis = 30*1000L;
+	private static final int ReservedSlots = 1;
+	private static final long RecheckMillis = 1000;
+
+	// Guarded by this
+	private final List<Waiter> waiters = new ArrayList<>();
+	private final Map<BuildPriority,WaitStats> stats =
+		new EnumMap<>(BuildPriority.class);
+	private int running = 0;
+	private long sequence = 0;
+
+	BuildScheduler()
+	{
+		for (BuildPriority priority : BuildPriority.values())
+		{
+			stats.put(priority, new WaitStats());
+		}
+	}
+
+	/**
+	 * Returns a ticket for a build of the given priority.
+	 * @param priority the priority class
+	 * @return the ticket
+	 */
+	Ticket newTicket(BuildPriority priority)
+	{
+		return new Ticket(priority);
+	}
+
+	/**
+	 * Runs the build once it is granted a slot.
+	 * @param ticket the build's ticket, holding its priority class
+	 * @param build the build
+	 * @throws PluginException if interrupted while waiting or the build fails
+	 */
+	void run(Ticket ticket, SessionBuildRegistry.Build build)
+		throws PluginException
+	{
+		acquire(ticket);
+		try
+		{
+			build.run();
+		}
+		finally
+		{
+			release();
+		}
+	}
+
+	/**
+	 * Returns the number of builds holding slots and, for each priority
+	 * class, the builds waiting and the number, mean and maximum of the waits
+	 * for a slot.
+	 * @return the statistics by name
+	 */
+	synchronized Map<String,Object> getStatistics()
+	{
+		Map<String,Object> result = new LinkedHashMap<>();
+		result.put("slots", getSlots());
+		result.put("running", running);
+		for (BuildPriority priority : BuildPriority.values())
+		{
+			int waiting = 0;
+			for (Waiter waiter : waiters)
+			{
+				if (waiter.ticket.priority == priority)
+				{
+					waiting++;
+				}
+			}
+			WaitStats classStats = stats.get(priority);
+			Map<String,Object> classResult = new LinkedHashMap<>();
+			classResult.put("waiting", waiting);
+			classResult.put("started", classStats.count);
+			classResult.put("meanWaitMillis", (classStats.count > 0)
+				? classStats.totalMillis/classStats.count : 0);
+			classResult.put("maxWaitMillis", classStats.maxMillis);
+			result.put(priority.name().toLowerCase(), classResult);
+		}
+		return result;
+	}
+
+	private synchronized void acquire(Ticket ticket)
+		throws PluginException
+	{
+		Waiter waiter = new Waiter(ticket, System.currentTimeMillis(),
+			sequence++);
+		waiters.add(waiter);
+		try
+		{
+			while (next() != waiter)
+			{
+				// Timed so that aging is seen without a release
+				wait(RecheckMillis);
+			}
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new PluginException(
+				"Interrupted waiting to create session JSON",
+				PluginCode.HttpInternalError, ex);
+		}
+		finally
+		{
+			waiters.remove(waiter);
+			// The next waiter may be eligible now this one has left
+			notifyAll();
+		}
+		running++;
+		long waited = System.currentTimeMillis()-waiter.since;
+		WaitStats classStats = stats.get(ticket.priority);
+		classStats.count++;
+		classStats.totalMillis += waited;
+		classStats.maxMillis = Math.max(classStats.maxMillis, waited);
+	}
+
+	private synchronized void release()
+	{
+		running--;
+		notifyAll();
+	}
+
+	/**
+	 * Returns the waiter to grant the next free slot, or null if there is no
+	 * free slot it may take.
+	 */
+	private Waiter next()
+	{
+		int slots = getSlots();
+		if (running >= slots)
+		{
+			return null;
+		}
+		// Only the reserved slot is free, which bulk builds may not take
+		boolean reservedOnly = (running >= slots-ReservedSlots);
+		long now = System.currentTimeMillis();
+		Waiter best = null;
+		int bestRank = Integer.MAX_VALUE;
+		for (Waiter waiter : waiters)
+		{
+			if (reservedOnly && (waiter.ticket.priority == BuildPriority.Bulk))
+			{
+				continue;
+			}
+			int rank = waiter.rank(now);
+			if ((rank < bestRank) ||
+				 ((rank == bestRank) && (waiter.order < best.order)))
+			{
+				best = waiter;
+				bestRank = rank;
+			}
+		}
+		return best;
+	}
+
+	private static int getSlots()
+	{
+		return ViewerPreferences.getMetadataGenerationThreads()+ReservedSlots;
+	}
+
+	/**
+	 * The priority class of a build, which may be raised while it waits.
+	 */
+	final class Ticket
+	{
+		// Guarded by the scheduler
+		private BuildPriority priority;
+
+		private Ticket(BuildPriority priority)
+		{
+			this.priority = priority;
+		}
+
+		/**
+		 * @return the current priority class
+		 */
+		BuildPriority getPriority()
+		{
+			synchronized (BuildScheduler.this)
+			{
+				return priority;
+			}
+		}
+
+		/**
+		 * Raises the priority class if the given class is higher, so a build
+		 * shared by requests waits at the highest of their priorities.
+		 * @param requested the priority class of a request sharing the build
+		 */
+		void raise(BuildPriority requested)
+		{
+			synchronized (BuildScheduler.this)
+			{
+				if (requested.ordinal() < priority.ordinal())
+				{
+					priority = requested;
+					// A waiting build may now be eligible
+					BuildScheduler.this.notifyAll();
+				}
+			}
+		}
+	}
+
+	private static final class Waiter
+	{
+		private final Ticket ticket;
+		private final long since;
+		private final long order;
+
+		Waiter(Ticket ticket, long since, long order)
+		{
+			this.ticket = ticket;
+			this.since = since;
+			this.order = order;
+		}
+
+		int rank(long now)
+		{
+			int ordinal = ticket.priority.ordinal();
+			int promotion = (int) Math.min((now-since)/AgingMillis, ordinal);
+			return ordinal-promotion;
+		}
+	}
+
+	private static final class WaitStats
+	{
+		private long count = 0;
+		private long totalMillis = 0;
+		private long maxMillis = 0;
+	}
+}
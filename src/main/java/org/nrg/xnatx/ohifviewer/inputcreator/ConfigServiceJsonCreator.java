@@ -37,10 +37,16 @@ package org.nrg.xnatx.ohifviewer.inputcreator;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.nrg.xdat.XDAT;
+import org.nrg.xdat.model.XnatImagescandataI;
 import org.nrg.xdat.om.XnatImagesessiondata;
 import org.nrg.xft.security.UserI;
+import org.nrg.xnatx.ohifviewer.ViewerPreferences;
 import org.nrg.xnatx.ohifviewer.ViewerUtils;
 import org.nrg.xnatx.plugin.PluginCode;
 import org.nrg.xnatx.plugin.PluginException;
@@ -60,6 +66,9 @@ public class ConfigServiceJsonCreator
 	private static final String xnatArchivePath =
 		XDAT.getSiteConfigPreferences().getArchivePath();
 
+	private List<ScanFragment> fragments = null;
+	private GenerationMetrics metrics = null;
+
 	public Path create(String sessionId) throws PluginException
 	{
 		return create(sessionId, null);
@@ -80,6 +89,33 @@ public class ConfigServiceJsonCreator
 	}
 
 	public Path create(XnatImagesessiondata sessionData) throws PluginException
+	{
+		JsonBuffer json = new JsonBuffer();
+		create(sessionData, null, json);
+		try
+		{
+			return json.toTempFile();
+		}
+		catch (IOException ex)
+		{
+			throw new PluginException("Jsonifier exception:\n" + ex.getMessage(),
+				PluginCode.IO, ex);
+		}
+	}
+
+	/**
+	 * Creates the session JSON in memory, reusing the stored fragments of scans
+	 * whose files are unchanged. The fragments of all scans are available from
+	 * {@link #getFragments()} afterwards.
+	 * @param sessionData the session
+	 * @param previousFragments the stored fragments by scan ID or null to read
+	 * every scan without creating fragments
+	 * @param json the destination for the JSON
+	 * @throws PluginException
+	 */
+	void create(XnatImagesessiondata sessionData,
+		Map<String,ScanFragment> previousFragments, JsonBuffer json)
+		throws PluginException
 	{
 		if (sessionData == null)
 		{
@@ -102,12 +138,32 @@ public class ConfigServiceJsonCreator
 		String xnatExperimentScanUrl = "/data/experiments/"+sessionId+"/scans/";
 		logger.info("xnatExperimentScanUrl: {}", xnatExperimentScanUrl);
 
-		Path jsonFilePath;
+		int parallelism = ViewerPreferences.getMetadataScanParallelism();
 		try
 		{
-			CreateOhifViewerMetadata jsonCreator = new CreateOhifViewerMetadata(
-				xnatScanPath, xnatExperimentScanUrl, seriesUidToScanIdMap);
-			jsonFilePath = jsonCreator.jsonify(sessionId);
+			CreateOhifViewerMetadata jsonCreator;
+			if (ViewerPreferences.isMetadataUseCatalogs())
+			{
+				jsonCreator = new CreateOhifViewerMetadata(
+					"DICOM catalogs of "+sessionId, getCatalogScanFiles(sessionData),
+					xnatExperimentScanUrl, seriesUidToScanIdMap, parallelism);
+			}
+			else
+			{
+				jsonCreator = new CreateOhifViewerMetadata(xnatScanPath,
+					xnatExperimentScanUrl, seriesUidToScanIdMap, parallelism);
+			}
+			if (previousFragments != null)
+			{
+				jsonCreator.setPreviousFragments(previousFragments);
+			}
+			jsonCreator.setStreaming(ViewerPreferences.isMetadataStreaming());
+			if (metrics != null)
+			{
+				jsonCreator.setMetrics(metrics);
+			}
+			jsonCreator.jsonify(sessionId, json);
+			fragments = jsonCreator.getFragments();
 			clearLegacyJsonFile(xnatArchivePath, proj, expLabel, sessionId);
 		}
 		catch (IOException ex)
@@ -116,7 +172,83 @@ public class ConfigServiceJsonCreator
 			throw new PluginException("Jsonifier exception:\n" + ex.getMessage(),
 				PluginCode.IO, ex);
 		}
-		return jsonFilePath;
+	}
+
+	/**
+	 * Returns the fingerprint of the inputs to the session's JSON: the JSON
+	 * revision, the session's scan list and the number of files of each scan
+	 * with their paths, sizes and modification times. Only directories or
+	 * catalogs are read, never the DICOM files, so an unchanged session can
+	 * be recognised without reading its headers.
+	 * @param sessionData the session
+	 * @return the fingerprint
+	 * @throws PluginException
+	 */
+	String fingerprint(XnatImagesessiondata sessionData) throws PluginException
+	{
+		if (sessionData == null)
+		{
+			throw new PluginException("SessionData must not be null",
+				PluginCode.HttpUnprocessableEntity);
+		}
+		boolean useCatalogs = ViewerPreferences.isMetadataUseCatalogs();
+		StringBuilder sb = new StringBuilder();
+		sb.append(JsonMetadataHandler.JsonRevision).append('\t')
+			.append(useCatalogs ? "catalogs" : "scans").append('\n');
+		Map<String,String> seriesUidToScanIdMap = new TreeMap<>(
+			PluginUtils.getImageScanUidIdMap(sessionData));
+		for (Map.Entry<String,String> entry : seriesUidToScanIdMap.entrySet())
+		{
+			sb.append(entry.getKey()).append('\t').append(entry.getValue())
+				.append('\n');
+		}
+		List<ScanFiles> scans = useCatalogs
+			? getCatalogScanFiles(sessionData)
+			: ScanFiles.fromScanPath(
+				PluginUtils.getExperimentPath(sessionData)+"SCANS");
+		for (ScanFiles scan : scans)
+		{
+			sb.append(scan.getLabel()).append('\t')
+				.append(ScanFragment.fingerprint(scan.list())).append('\n');
+		}
+		return scans.size()+":"+DigestUtils.sha1Hex(sb.toString());
+	}
+
+	/**
+	 * Returns the fragments of each scan from the last incremental creation.
+	 * @return the fragments or null
+	 */
+	List<ScanFragment> getFragments()
+	{
+		return fragments;
+	}
+
+	/**
+	 * Sets the metrics to which the phase times and counts of creation are
+	 * added.
+	 * @param metrics the build's metrics
+	 */
+	void setMetrics(GenerationMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	private List<ScanFiles> getCatalogScanFiles(
+		XnatImagesessiondata sessionData)
+	{
+		List<ScanFiles> scans = new ArrayList<>();
+		for (XnatImagescandataI scanData : sessionData.getScans_scan())
+		{
+			List<String> catalogPaths = PluginUtils.getScanCatalogs(sessionData,
+				scanData);
+			if (catalogPaths.isEmpty())
+			{
+				logger.debug("No DICOM catalogs for scan {}", scanData.getId());
+				continue;
+			}
+			scans.add(ScanFiles.fromCatalogs(scanData.getId(), catalogPaths));
+		}
+		return scans;
 	}
 
 	private void clearLegacyJsonFile(String xnatArchivePath, String proj,
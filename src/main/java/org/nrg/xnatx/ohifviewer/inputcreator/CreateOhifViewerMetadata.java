@@ -36,26 +36,22 @@ package org.nrg.xnatx.ohifviewer.inputcreator;
 
 
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.stream.JsonWriter;
-import icr.etherj.PathScan;
 import icr.etherj.dicom.DicomReceiver;
-import icr.etherj.dicom.DicomToolkit;
 import icr.etherj.dicom.Patient;
 import icr.etherj.dicom.PatientRoot;
 import icr.etherj.dicom.Series;
 import icr.etherj.dicom.SopInstance;
 import icr.etherj.dicom.Study;
 import java.io.ByteArrayOutputStream;
-import java.io.FileWriter;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.nio.file.Files;
+import java.io.Writer;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import org.dcm4che2.data.DicomObject;
 import org.nrg.xnatx.ohifviewer.ViewerUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -69,19 +65,58 @@ public class CreateOhifViewerMetadata
 {
 	private static final Logger logger = LoggerFactory.getLogger(
 		CreateOhifViewerMetadata.class);
-	private static final DicomToolkit dcmTk = DicomToolkit.getToolkit();
 
-	private final String xnatScanPath;
+	private final String description;
+	private final List<ScanFiles> scans;
 	private final String xnatExperimentScanUrl;
 	private final Map<String,String> seriesUidToScanIdMap;
+	private final int parallelism;
+	private final DicomHeaderReader headerReader = new DicomHeaderReader();
+	private Map<String,ScanFragment> previousFragments = null;
+	private List<ScanFragment> fragments = null;
+	private int reusedScanCount = 0;
+	private boolean streaming = false;
+	private GenerationMetrics metrics = new GenerationMetrics();
 
 	public CreateOhifViewerMetadata(final String xnatScanPath,
 		final String xnatExperimentScanUrl,
 		final Map<String,String> seriesUidToScanIdMap)
 	{
-		this.xnatScanPath = xnatScanPath;
+		this(xnatScanPath, xnatExperimentScanUrl, seriesUidToScanIdMap, 1);
+	}
+
+	/**
+	 * @param xnatScanPath path to the session's SCANS directory
+	 * @param xnatExperimentScanUrl URL prefix for the session's scans
+	 * @param seriesUidToScanIdMap map of series UID to scan ID
+	 * @param parallelism number of threads used to read DICOM headers, a value
+	 * of one reads on the calling thread
+	 */
+	public CreateOhifViewerMetadata(final String xnatScanPath,
+		final String xnatExperimentScanUrl,
+		final Map<String,String> seriesUidToScanIdMap, final int parallelism)
+	{
+		this(xnatScanPath, ScanFiles.fromScanPath(xnatScanPath),
+			xnatExperimentScanUrl, seriesUidToScanIdMap, parallelism);
+	}
+
+	/**
+	 * @param description description of the file source for logging
+	 * @param scans the files of each scan
+	 * @param xnatExperimentScanUrl URL prefix for the session's scans
+	 * @param seriesUidToScanIdMap map of series UID to scan ID
+	 * @param parallelism number of threads used to read DICOM headers, a value
+	 * of one reads on the calling thread
+	 */
+	CreateOhifViewerMetadata(final String description,
+		final List<ScanFiles> scans, final String xnatExperimentScanUrl,
+		final Map<String,String> seriesUidToScanIdMap, final int parallelism)
+	{
+		this.description = description;
+		this.scans = scans;
 		this.xnatExperimentScanUrl = xnatExperimentScanUrl;
 		this.seriesUidToScanIdMap = seriesUidToScanIdMap;
+		this.parallelism = parallelism;
 	}
 
 	/**
@@ -92,27 +127,323 @@ public class CreateOhifViewerMetadata
 	 */
 	public Path jsonify(final String transactionId) throws IOException
 	{
-		OhifViewerInput ovi = scanPathAndCreateInput(transactionId, xnatScanPath, xnatExperimentScanUrl, seriesUidToScanIdMap);
+		JsonBuffer json = new JsonBuffer();
+		jsonify(transactionId, json);
+		return json.toTempFile();
+	}
+
+	/**
+	 * Create the serialized JSON in memory.
+	 * @param transactionId
+	 * @param json the destination, which is reset before use
+	 * @throws IOException
+	 */
+	void jsonify(final String transactionId, JsonBuffer json) throws IOException
+	{
+		logger.info("DICOM search: {}", description);
+		Gson gson = SessionJsonFormat.createGson();
+		json.reset();
+		boolean written = false;
+		if (streaming)
+		{
+			written = streamJson(transactionId, gson, json);
+			if (!written)
+			{
+				logger.info("Series spans scans in {}, creating JSON in memory",
+					description);
+				json.reset();
+			}
+		}
+		if (!written)
+		{
+			OhifViewerInput ovi = scanAndCreateInput(transactionId, gson);
 
-		// Convert the Java object to a JSON string
-		Gson gson = new GsonBuilder().serializeSpecialFloatingPointValues().create();
-		Path jsonFilePath = Files.createTempFile("ohif", null);
-		logger.debug("Temp file named {} created for storing serialized JSON", jsonFilePath.toString());
-		try (JsonWriter writer = new JsonWriter(new FileWriter(jsonFilePath.toFile()))) {
-			gson.toJson(ovi, OhifViewerInput.class, writer);
+			// Convert the Java object to a JSON string
+			long start = System.nanoTime();
+			new SessionJsonSerializer(json).write(ovi);
+			metrics.addTime(GenerationMetrics.Phase.Serialize, start);
 		}
-		return jsonFilePath;
+		long start = System.nanoTime();
+		json.flush();
+		metrics.addTime(GenerationMetrics.Phase.Serialize, start);
+		metrics.addBytesRead(headerReader.getBytesRead());
+		logger.info("DICOM headers read from {} files: {} of {} bytes read, {}% saved",
+			headerReader.getFileCount(), headerReader.getBytesRead(),
+			headerReader.getFileBytes(),
+			String.format("%.1f", headerReader.getSavedPercent()));
 	}
 
-	private OhifViewerInput scanPathAndCreateInput(String transactionId, String xnatScanPath, String xnatExperimentScanUrl, Map<String,String> seriesUidToScanIdMap) throws IOException {
-		logger.info("DICOM search: {}", xnatScanPath);
+	/**
+	 * Returns the fragments of each scan created by the last call to
+	 * {@link #jsonify(String)}, or null if fragments are not in use.
+	 * @return the fragments in scan order
+	 */
+	List<ScanFragment> getFragments()
+	{
+		return fragments;
+	}
+
+	/**
+	 * Returns the number of scans whose stored fragments were reused by the
+	 * last call to {@link #jsonify(String)}.
+	 * @return the number of scans not read
+	 */
+	int getReusedScanCount()
+	{
+		return reusedScanCount;
+	}
+
+	/**
+	 * Enables incremental creation. Scans whose files match the fingerprint of
+	 * their previous fragment are not read and the stored fragment is used in
+	 * their place. The fragments of all scans are then available from
+	 * {@link #getFragments()}.
+	 * @param previousFragments the stored fragments by scan ID, may be empty
+	 */
+	void setPreviousFragments(Map<String,ScanFragment> previousFragments)
+	{
+		this.previousFragments = previousFragments;
+	}
+
+	/**
+	 * Enables writing the JSON as each scan is read rather than building the
+	 * whole session in memory first. Peak memory then depends on the size of
+	 * the scans read at once rather than of the session. If a series turns out
+	 * to span scans the session is read again and built in memory.
+	 * @param streaming true to stream
+	 */
+	void setStreaming(boolean streaming)
+	{
+		this.streaming = streaming;
+	}
 
-		CustomDicomReceiver dcmRec = new CustomDicomReceiver(transactionId, xnatExperimentScanUrl, seriesUidToScanIdMap);
-		PathScan<DicomObject> pathScan = dcmTk.createPathScan();
-		pathScan.addContext(dcmRec);
-		pathScan.scan(xnatScanPath, true);
+	/**
+	 * Sets the metrics to which the phase times and counts of
+	 * {@link #jsonify(String)} are added.
+	 * @param metrics the build's metrics
+	 */
+	void setMetrics(GenerationMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Returns the reader used for the DICOM headers, which reports the bytes
+	 * read against the total size of the files.
+	 * @return the reader
+	 */
+	public DicomHeaderReader getHeaderReader()
+	{
+		return headerReader;
+	}
+
+	private OhifViewerInput scanAndCreateInput(String transactionId, Gson gson)
+		throws IOException
+	{
+		final CustomDicomReceiver dcmRec = new CustomDicomReceiver(transactionId, xnatExperimentScanUrl, seriesUidToScanIdMap);
+		dcmRec.notifyScanStart();
+		readScans(dcmRec, gson, scans.size(), new ScanSink()
+		{
+			@Override
+			public boolean add(ScannedInstance scanned)
+			{
+				dcmRec.merge(scanned);
+				return true;
+			}
+
+			@Override
+			public void endScan()
+			{}
+		});
+		dcmRec.notifyScanFinish();
 		OhifViewerInput ovi = dcmRec.getOhifViewerInput();
 
 		return ovi;
 	}
+
+	private boolean streamJson(String transactionId, Gson gson, Writer writer)
+		throws IOException
+	{
+		CustomDicomReceiver dcmRec = new CustomDicomReceiver(transactionId,
+			xnatExperimentScanUrl, seriesUidToScanIdMap);
+		final SessionJsonStreamWriter streamWriter = new SessionJsonStreamWriter(
+			writer, transactionId);
+		// Enough scans at once to keep the workers busy
+		int batchSize = Math.max(parallelism, 1)*2;
+		boolean complete = readScans(dcmRec, gson, batchSize, new ScanSink()
+		{
+			@Override
+			public boolean add(ScannedInstance scanned) throws IOException
+			{
+				return streamWriter.merge(scanned);
+			}
+
+			@Override
+			public void endScan() throws IOException
+			{
+				streamWriter.endScan();
+			}
+		});
+		if (complete)
+		{
+			long start = System.nanoTime();
+			streamWriter.finish();
+			metrics.addTime(GenerationMetrics.Phase.Serialize, start);
+		}
+		return complete;
+	}
+
+	/**
+	 * Reads the scans in batches and passes their instances to the sink in
+	 * scan order. With previous fragments set, unchanged scans are not read
+	 * and the fragments of all scans are collected.
+	 * @return false if the sink stopped early
+	 */
+	private boolean readScans(CustomDicomReceiver dcmRec, Gson gson,
+		int batchSize, ScanSink sink) throws IOException
+	{
+		DicomFileScanner scanner = new DicomFileScanner(parallelism, headerReader);
+		boolean incremental = (previousFragments != null);
+		fragments = incremental ? new ArrayList<ScanFragment>(scans.size()) : null;
+		reusedScanCount = 0;
+		for (int from=0; from<scans.size(); from+=batchSize)
+		{
+			long start = System.nanoTime();
+			List<ScanFiles> batch = new ArrayList<>();
+			for (ScanFiles scan : scans.subList(from,
+				Math.min(from+batchSize, scans.size())))
+			{
+				batch.add(ScanFiles.timed(scan, metrics));
+			}
+			List<String> fingerprints = new ArrayList<>(batch.size());
+			List<List<OhifViewerInputStudy>> reused = new ArrayList<>(batch.size());
+			List<ScanFiles> toRead = new ArrayList<>();
+			for (ScanFiles scan : batch)
+			{
+				if (!incremental)
+				{
+					reused.add(null);
+					toRead.add(scan);
+					continue;
+				}
+				List<File> files = scan.list();
+				String fingerprint = ScanFragment.fingerprint(files);
+				fingerprints.add(fingerprint);
+				List<OhifViewerInputStudy> studies = getReusableFragment(
+					scan.getLabel(), fingerprint, dcmRec, gson);
+				reused.add(studies);
+				if (studies == null)
+				{
+					toRead.add(ScanFiles.fromFiles(scan.getLabel(), files));
+				}
+				else
+				{
+					reusedScanCount++;
+				}
+			}
+
+			List<ScannedInstance[]> results = scanner.read(toRead, dcmRec);
+			for (ScannedInstance[] scanResults : results)
+			{
+				int skipped = 0;
+				for (ScannedInstance scanned : scanResults)
+				{
+					skipped += (scanned == null) ? 1 : 0;
+				}
+				metrics.addFiles(scanResults.length, skipped);
+			}
+			metrics.addTime(GenerationMetrics.Phase.Read, start);
+			start = System.nanoTime();
+			int readIdx = 0;
+			for (int i=0; i<batch.size(); i++)
+			{
+				List<OhifViewerInputStudy> studies = reused.get(i);
+				String scanId = batch.get(i).getLabel();
+				List<ScannedInstance> instances;
+				if (studies != null)
+				{
+					fragments.add(new ScanFragment(scanId, fingerprints.get(i),
+						previousFragments.get(scanId).getJson()));
+					instances = CustomDicomReceiver.getFragmentInstances(studies);
+				}
+				else if (incremental)
+				{
+					studies = createFragment(dcmRec, results.get(readIdx++));
+					fragments.add(new ScanFragment(scanId, fingerprints.get(i),
+						gson.toJson(studies, ScanFragment.StudyListType)));
+					// Splice the new scan exactly as a stored fragment would be
+					instances = CustomDicomReceiver.getFragmentInstances(studies);
+				}
+				else
+				{
+					instances = Arrays.asList(results.get(readIdx++));
+				}
+				for (ScannedInstance scanned : instances)
+				{
+					if ((scanned != null) && (scanned.getInstance() != null))
+					{
+						metrics.addInstance();
+					}
+					if (!sink.add(scanned))
+					{
+						metrics.addTime(GenerationMetrics.Phase.Serialize, start);
+						return false;
+					}
+				}
+				sink.endScan();
+			}
+			metrics.addTime(GenerationMetrics.Phase.Serialize, start);
+		}
+		if (incremental)
+		{
+			logger.info("Reused stored metadata for {} of {} scans",
+				reusedScanCount, scans.size());
+		}
+		return true;
+	}
+
+	private List<OhifViewerInputStudy> createFragment(CustomDicomReceiver dcmRec,
+		ScannedInstance[] scanResults)
+	{
+		CustomDicomReceiver scanRec = dcmRec.createScanReceiver();
+		scanRec.notifyScanStart();
+		for (ScannedInstance scanned : scanResults)
+		{
+			scanRec.merge(scanned);
+		}
+		scanRec.notifyScanFinish();
+		return scanRec.getOhifViewerInput().getStudies();
+	}
+
+	private List<OhifViewerInputStudy> getReusableFragment(String scanId,
+		String fingerprint, CustomDicomReceiver dcmRec, Gson gson)
+	{
+		ScanFragment previous = previousFragments.get(scanId);
+		if ((previous == null) ||
+			 !fingerprint.equals(previous.getFingerprint()))
+		{
+			return null;
+		}
+		List<OhifViewerInputStudy> studies = previous.parse(gson);
+		if ((studies == null) || !dcmRec.isFragmentCurrent(studies))
+		{
+			return null;
+		}
+		return studies;
+	}
+
+	/**
+	 * Receives the instances of each scan in scan order.
+	 */
+	private interface ScanSink
+	{
+		/**
+		 * @param scanned the metadata for a single file, may be null
+		 * @return false to stop reading
+		 * @throws IOException
+		 */
+		boolean add(ScannedInstance scanned) throws IOException;
+
+		void endScan() throws IOException;
+	}
 }
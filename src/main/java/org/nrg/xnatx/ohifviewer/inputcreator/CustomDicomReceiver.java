@@ -9,6 +9,8 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class CustomDicomReceiver implements PathScanContext<DicomObject> {
     private static final Logger logger = LoggerFactory.getLogger(
@@ -16,6 +18,9 @@ public class CustomDicomReceiver implements PathScanContext<DicomObject> {
 
     private final String xnatExperimentScanUrl;
     private final Map<String,String> seriesUidToScanIdMap;
+    // URL prefixes by resource then scan ID, shared by their instances
+    private final ConcurrentMap<String,ConcurrentMap<String,String>> urlPrefixes =
+            new ConcurrentHashMap<>();
 
     private Map<String, OhifViewerInputStudy> studyMap;
     private Map<String, OhifViewerInputInstance> sopInstMap;
@@ -39,12 +44,17 @@ public class CustomDicomReceiver implements PathScanContext<DicomObject> {
 
     @Override
     public void notifyItemFound(File file, DicomObject dcm) {
-        processSopInst(toolkit.createSopInstance(file, dcm));
+        merge(prepare(file, dcm));
     }
 
     @Override
     public void notifyScanFinish() {
         List<OhifViewerInputStudy> oviStudyList = new ArrayList<>(studyMap.values());
+        for (OhifViewerInputStudy study : oviStudyList) {
+            for (OhifViewerInputSeries series : study.getSerializedSeries()) {
+                series.orderInstances();
+            }
+        }
 
         ohifViewerInput.setStudies(oviStudyList);
     }
@@ -55,40 +65,155 @@ public class CustomDicomReceiver implements PathScanContext<DicomObject> {
         sopInstMap = new HashMap<>();
     }
 
-    private void processSopInst(SopInstance sopInst)
-    {
-        String uid = sopInst.getUid();
+    /**
+     * Derives the viewer metadata for a single file. Safe to call from any
+     * thread, the result is added to the tree by {@link #merge(ScannedInstance)}.
+     * @param file the DICOM file
+     * @param dcm the DICOM object read from the file
+     * @return the derived metadata or null if the SOP class is not displayable
+     */
+    ScannedInstance prepare(File file, DicomObject dcm) {
+        SopInstance sopInst = toolkit.createSopInstance(file, dcm);
+        if (!ViewerUtils.isDisplayableSopClass(sopInst.getSopClassUid())) {
+            return null;
+        }
+
+        OhifViewerInputStudy study = new OhifViewerInputStudy(
+                toolkit.createStudy(sopInst), toolkit.createPatient(sopInst));
+        study.allocateStudyTime(sopInst);
+        OhifViewerInputSeries series = new OhifViewerInputSeries(
+                toolkit.createSeries(sopInst));
 
-        if (sopInstMap.containsKey(uid) ||
-                !ViewerUtils.isDisplayableSopClass(sopInst.getSopClassUid())) {
+        String seriesUid = sopInst.getSeriesUid();
+        String scanId = seriesUidToScanIdMap.get(seriesUid);
+        OhifViewerInputInstance instance = null;
+        if ((scanId != null) && !scanId.isEmpty()) {
+            instance = new OhifViewerInputInstance(sopInst,
+                    getUrlPrefix(scanId, sopInst.getSopClassUid()));
+        }
+        return new ScannedInstance(sopInst.getUid(), sopInst.getStudyUid(),
+                seriesUid, study, series, instance);
+    }
+
+    private String getUrlPrefix(final String scanId, String sopClassUid) {
+        final String resource = OhifViewerInputInstance.getResourceType(sopClassUid);
+        return urlPrefixes.computeIfAbsent(resource, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(scanId, k -> OhifViewerInputInstance.createUrlPrefix(
+                        xnatExperimentScanUrl, scanId, resource));
+    }
+
+    /**
+     * Adds the metadata for a single file to the tree. Studies, series and
+     * instances keep the order in which they are first merged.
+     * @param scanned the metadata, null is ignored
+     */
+    void merge(ScannedInstance scanned)
+    {
+        if (scanned == null) {
+            return;
+        }
+        String uid = scanned.getUid();
+        if (sopInstMap.containsKey(uid)) {
             return;
         }
 
-        String studyUid = sopInst.getStudyUid();
+        String studyUid = scanned.getStudyUid();
         OhifViewerInputStudy study = studyMap.get(studyUid);
         if (study == null) {
-            study = new OhifViewerInputStudy(toolkit.createStudy(sopInst),
-                    toolkit.createPatient(sopInst));
-            study.allocateStudyTime(sopInst);
+            study = scanned.getStudy();
             studyMap.put(studyUid, study);
         }
 
-        String seriesUid = sopInst.getSeriesUid();
+        String seriesUid = scanned.getSeriesUid();
         OhifViewerInputSeries series = study.getSeries(seriesUid);
         if (series == null) {
-            series = new OhifViewerInputSeries(toolkit.createSeries(sopInst));
+            series = scanned.getSeries();
             study.addSeries(series);
         }
 
-        String scanId = seriesUidToScanIdMap.get(seriesUid);
-        if ((scanId == null) || scanId.isEmpty())
+        OhifViewerInputInstance instance = scanned.getInstance();
+        if (instance == null)
         {
             logger.warn("Series UID "+seriesUid+" has a null or empty scan ID");
             return;
         }
 
-        OhifViewerInputInstance instance = new OhifViewerInputInstance(sopInst, xnatExperimentScanUrl, scanId);
         series.addInstances(instance);
         sopInstMap.put(uid, instance);
     }
+
+    /**
+     * Returns a receiver for a single scan with the same scan URL and scan ID
+     * mapping.
+     * @return the receiver
+     */
+    CustomDicomReceiver createScanReceiver() {
+        return new CustomDicomReceiver(ohifViewerInput.getTransactionId(),
+                xnatExperimentScanUrl, seriesUidToScanIdMap);
+    }
+
+    /**
+     * Returns the instances of a scan's fragment in the order they were merged
+     * when the scan was read, ready to be merged again.
+     * @param studies the studies of the fragment
+     * @return the instances, with a null instance for each series without any
+     */
+    static List<ScannedInstance> getFragmentInstances(
+            List<OhifViewerInputStudy> studies)
+    {
+        List<ScannedInstance> scanned = new ArrayList<>();
+        for (OhifViewerInputStudy study : studies) {
+            OhifViewerInputStudy studyAttrs = study.copyAttributes();
+            String studyUid = study.getStudyInstanceUid();
+            for (OhifViewerInputSeries series : study.getSerializedSeries()) {
+                OhifViewerInputSeries seriesAttrs = series.copyAttributes();
+                String seriesUid = series.getSeriesInstanceUid();
+                List<OhifViewerInputInstance> instances = series.getInstances();
+                if (instances.isEmpty()) {
+                    scanned.add(new ScannedInstance(null, studyUid, seriesUid,
+                            studyAttrs, seriesAttrs, null));
+                    continue;
+                }
+                for (OhifViewerInputInstance instance : instances) {
+                    scanned.add(new ScannedInstance(instance.getSopInstanceUid(),
+                            studyUid, seriesUid, studyAttrs, seriesAttrs, instance));
+                }
+            }
+        }
+        return scanned;
+    }
+
+    /**
+     * Returns true if the instance URLs of a stored fragment match the
+     * current scan IDs of its series.
+     * @param studies the studies of the fragment
+     * @return true if the fragment can be reused
+     */
+    boolean isFragmentCurrent(List<OhifViewerInputStudy> studies)
+    {
+        for (OhifViewerInputStudy study : studies) {
+            for (OhifViewerInputSeries series : study.getSerializedSeries()) {
+                String scanId = seriesUidToScanIdMap.get(
+                        series.getSeriesInstanceUid());
+                List<OhifViewerInputInstance> instances = series.getInstances();
+                if ((scanId == null) || scanId.isEmpty()) {
+                    if (!instances.isEmpty()) {
+                        return false;
+                    }
+                    continue;
+                }
+                if (instances.isEmpty()) {
+                    return false;
+                }
+                String prefix = xnatExperimentScanUrl+scanId+"/resources/";
+                for (OhifViewerInputInstance instance : instances) {
+                    String urlPrefix = instance.getUrlPrefix();
+                    if ((urlPrefix == null) || !urlPrefix.startsWith(prefix)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
 }
@@ -0,0 +1,292 @@
+/*********************************************************************
+ * Copyright (c) 2023, Institute of Cancer Research
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * (1) Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ * (2) Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ * (3) Neither the name of the Institute of Cancer Research nor the
+ *     names of its contributors may be used to endorse or promote
+ *     products derived from this software without specific prior
+ *     written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+package org.nrg.xnatx.ohifviewer.inputcreator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.dcm4che2.data.DicomObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the DICOM headers of a session's files and derives the viewer metadata
+ * of each file using a {@link CustomDicomReceiver}.
+ * <p>
+ * With a parallelism greater than one the files are read on a shared, bounded
+ * fork-join pool. Work is split across scans and, for scans with many files,
+ * across ranges of files. Each file is reduced to a {@link ScannedInstance} on
+ * the worker thread and the results are returned in scan and file order, so
+ * merging them gives a tree identical to that of a single threaded scan.
+ *
+ * @author jamesd
+ */
+class DicomFileScanner
+{
+	private static final Logger logger = LoggerFactory.getLogger(
+		DicomFileScanner.class);
+	// Files read by a single task before it stops splitting
+	private static final int LeafSize = 32;
+	private static final AtomicInteger threadCount = new AtomicInteger();
+	private static final Object poolLock = new Object();
+	private static ForkJoinPool sharedPool = null;
+
+	/**
+	 * Returns the pool shared by all JSON creation, replacing it if the
+	 * requested parallelism has changed.
+	 * @param parallelism the number of worker threads
+	 * @return the pool
+	 */
+	static ForkJoinPool getPool(int parallelism)
+	{
+		synchronized (poolLock)
+		{
+			if ((sharedPool == null) ||
+				 (sharedPool.getParallelism() != parallelism))
+			{
+				if (sharedPool != null)
+				{
+					// Tasks already submitted still run to completion
+					sharedPool.shutdown();
+				}
+				logger.info("Creating DICOM scan pool with parallelism {}",
+					parallelism);
+				sharedPool = new ForkJoinPool(parallelism,
+					(ForkJoinPool pool) ->
+					{
+						ForkJoinWorkerThread thread =
+							ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(
+								pool);
+						thread.setName("ohif-dicom-scan-"+
+							threadCount.incrementAndGet());
+						return thread;
+					},
+					null, false);
+			}
+			return sharedPool;
+		}
+	}
+
+	/**
+	 * Stops the shared pool's threads. A later scan creates a new pool.
+	 */
+	static void shutdownPool()
+	{
+		synchronized (poolLock)
+		{
+			if (sharedPool != null)
+			{
+				sharedPool.shutdownNow();
+				sharedPool = null;
+			}
+		}
+	}
+
+	private final int parallelism;
+	private final DicomHeaderReader reader;
+
+	/**
+	 * @param parallelism the number of threads used to read files, a value of
+	 * one reads on the calling thread
+	 * @param reader the reader used for every file
+	 */
+	DicomFileScanner(int parallelism, DicomHeaderReader reader)
+	{
+		this.parallelism = parallelism;
+		this.reader = reader;
+	}
+
+	/**
+	 * Reads all files of the scans without merging them.
+	 * @param scans the scans to read
+	 * @param receiver the receiver used to derive the metadata of each file
+	 * @return the metadata of each scan's files in scan order, with nulls for
+	 * files that are not displayable DICOM
+	 */
+	List<ScannedInstance[]> read(List<ScanFiles> scans,
+		CustomDicomReceiver receiver)
+	{
+		if (parallelism <= 1)
+		{
+			List<ScannedInstance[]> results = new ArrayList<>(scans.size());
+			for (ScanFiles scan : scans)
+			{
+				List<File> files = scan.list();
+				ScannedInstance[] scanResults = new ScannedInstance[files.size()];
+				for (int i=0; i<scanResults.length; i++)
+				{
+					scanResults[i] = read(files.get(i), receiver, reader);
+				}
+				results.add(scanResults);
+			}
+			return results;
+		}
+		try
+		{
+			return getPool(parallelism).invoke(
+				new SessionTask(scans, receiver, reader));
+		}
+		catch (RejectedExecutionException ex)
+		{
+			// Pool replaced by a settings change between lookup and submission
+			return getPool(parallelism).invoke(
+				new SessionTask(scans, receiver, reader));
+		}
+	}
+
+	private static ScannedInstance read(File file,
+		CustomDicomReceiver receiver, DicomHeaderReader reader)
+	{
+		try
+		{
+			DicomObject dcm = reader.read(file);
+			return (dcm != null) ? receiver.prepare(file, dcm) : null;
+		}
+		catch (IOException ex)
+		{
+			logger.debug("Not read as DICOM: {}", file.getPath());
+		}
+		catch (RuntimeException ex)
+		{
+			logger.warn("Error reading DICOM file "+file.getPath(), ex);
+		}
+		return null;
+	}
+
+	private static final class SessionTask
+		extends RecursiveTask<List<ScannedInstance[]>>
+	{
+		private final List<ScanFiles> scans;
+		private final CustomDicomReceiver receiver;
+		private final DicomHeaderReader reader;
+
+		SessionTask(List<ScanFiles> scans, CustomDicomReceiver receiver,
+			DicomHeaderReader reader)
+		{
+			this.scans = scans;
+			this.receiver = receiver;
+			this.reader = reader;
+		}
+
+		@Override
+		protected List<ScannedInstance[]> compute()
+		{
+			List<ScanTask> tasks = new ArrayList<>();
+			for (ScanFiles scan : scans)
+			{
+				tasks.add(new ScanTask(scan, receiver, reader));
+			}
+			invokeAll(tasks);
+			List<ScannedInstance[]> results = new ArrayList<>(tasks.size());
+			for (ScanTask task : tasks)
+			{
+				results.add(task.join());
+			}
+			return results;
+		}
+	}
+
+	private static final class ScanTask extends RecursiveTask<ScannedInstance[]>
+	{
+		private final ScanFiles scan;
+		private final CustomDicomReceiver receiver;
+		private final DicomHeaderReader reader;
+
+		ScanTask(ScanFiles scan, CustomDicomReceiver receiver,
+			DicomHeaderReader reader)
+		{
+			this.scan = scan;
+			this.receiver = receiver;
+			this.reader = reader;
+		}
+
+		@Override
+		protected ScannedInstance[] compute()
+		{
+			List<File> files = scan.list();
+			logger.debug("Reading {} files for scan {}", files.size(),
+				scan.getLabel());
+			ScannedInstance[] results = new ScannedInstance[files.size()];
+			new FileRangeTask(files, results, 0, files.size(), receiver, reader)
+				.invoke();
+			return results;
+		}
+	}
+
+	private static final class FileRangeTask extends RecursiveAction
+	{
+		private final List<File> files;
+		private final ScannedInstance[] results;
+		private final int from;
+		private final int to;
+		private final CustomDicomReceiver receiver;
+		private final DicomHeaderReader reader;
+
+		FileRangeTask(List<File> files, ScannedInstance[] results, int from,
+			int to, CustomDicomReceiver receiver, DicomHeaderReader reader)
+		{
+			this.files = files;
+			this.results = results;
+			this.from = from;
+			this.to = to;
+			this.receiver = receiver;
+			this.reader = reader;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if ((to-from) <= LeafSize)
+			{
+				for (int i=from; i<to; i++)
+				{
+					results[i] = read(files.get(i), receiver, reader);
+				}
+				return;
+			}
+			int mid = (from+to) >>> 1;
+			invokeAll(
+				new FileRangeTask(files, results, from, mid, receiver, reader),
+				new FileRangeTask(files, results, mid, to, receiver, reader));
+		}
+	}
+}
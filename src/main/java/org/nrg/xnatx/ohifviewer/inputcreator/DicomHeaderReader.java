@@ -0,0 +1,214 @@
+/*********************************************************************
+ * Copyright (c) 2023, Institute of Cancer Research
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * (1) Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ * (2) Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ * (3) Neither the name of the Institute of Cancer Research nor the
+ *     names of its contributors may be used to endorse or promote
+ *     products derived from this software without specific prior
+ *     written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+package org.nrg.xnatx.ohifviewer.inputcreator;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.LongAdder;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.io.DicomInputHandler;
+import org.dcm4che2.io.DicomInputStream;
+
+/**
+ * Reads only the DICOM header attributes needed for the viewer metadata.
+ * Parsing stops at the first top level element of the pixel data group
+ * (7FE0,xxxx) so pixel data is never read from disk, and the values of top
+ * level private elements are skipped rather than parsed. The bytes read and
+ * the total size of the files are counted so the I/O saved can be verified.
+ * <p>
+ * Instances are thread safe and normally shared by all files of a session.
+ *
+ * @author jamesd
+ */
+public class DicomHeaderReader
+{
+	// Small buffer so little is read ahead of the stop tag
+	private static final int BufferSize = 16384;
+	private static final long PixelDataGroup = 0x7FE00000L;
+
+	private final LongAdder bytesRead = new LongAdder();
+	private final LongAdder fileBytes = new LongAdder();
+	private final LongAdder fileCount = new LongAdder();
+
+	/**
+	 * Reads the header of a DICOM file.
+	 * @param file the file
+	 * @return the header attributes or null if the file is not a DICOM
+	 * composite object
+	 * @throws IOException if the file cannot be read or is not DICOM
+	 */
+	public DicomObject read(File file) throws IOException
+	{
+		try (CountingInputStream counter = new CountingInputStream(
+			new FileInputStream(file)))
+		{
+			try
+			{
+				DicomInputStream dis = new DicomInputStream(
+					new BufferedInputStream(counter, BufferSize));
+				dis.setHandler(new HeaderInputHandler());
+				DicomObject dcm = dis.readDicomObject();
+				return ((dcm != null) && dcm.contains(Tag.SOPClassUID))
+					? dcm : null;
+			}
+			finally
+			{
+				bytesRead.add(counter.getCount());
+				fileBytes.add(file.length());
+				fileCount.increment();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of bytes read from disk
+	 */
+	public long getBytesRead()
+	{
+		return bytesRead.sum();
+	}
+
+	/**
+	 * @return the total size of the files read
+	 */
+	public long getFileBytes()
+	{
+		return fileBytes.sum();
+	}
+
+	/**
+	 * @return the number of files read
+	 */
+	public long getFileCount()
+	{
+		return fileCount.sum();
+	}
+
+	/**
+	 * @return the percentage of the total file size that was not read
+	 */
+	public double getSavedPercent()
+	{
+		long total = getFileBytes();
+		return (total > 0) ? 100.0*(total-getBytesRead())/total : 0.0;
+	}
+
+	private static final class HeaderInputHandler implements DicomInputHandler
+	{
+		@Override
+		public boolean readValue(DicomInputStream in) throws IOException
+		{
+			if (in.level() == 0)
+			{
+				long tag = in.tag() & 0xffffffffL;
+				if (tag >= PixelDataGroup)
+				{
+					return false;
+				}
+				int length = in.valueLength();
+				if (((tag & 0x00010000L) != 0) && (length >= 0))
+				{
+					skipFully(in, length);
+					return true;
+				}
+			}
+			return in.readValue(in);
+		}
+
+		private void skipFully(InputStream in, long length) throws IOException
+		{
+			long remaining = length;
+			while (remaining > 0)
+			{
+				long skipped = in.skip(remaining);
+				if (skipped <= 0)
+				{
+					if (in.read() < 0)
+					{
+						throw new IOException("Unexpected end of stream");
+					}
+					skipped = 1;
+				}
+				remaining -= skipped;
+			}
+		}
+	}
+
+	/**
+	 * Counts bytes read from the underlying stream. Skipped bytes are not
+	 * counted as they are not read from disk.
+	 */
+	private static final class CountingInputStream extends FilterInputStream
+	{
+		private long count = 0;
+
+		CountingInputStream(InputStream in)
+		{
+			super(in);
+		}
+
+		long getCount()
+		{
+			return count;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			int value = super.read();
+			if (value >= 0)
+			{
+				count++;
+			}
+			return value;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			int n = super.read(b, off, len);
+			if (n > 0)
+			{
+				count += n;
+			}
+			return n;
+		}
+	}
+}
@@ -0,0 +1,203 @@
+/*********************************************************************
+ * Copyright (c) 2023, Institute of Cancer Research
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * (1) Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ * (2) Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ * (3) Neither the name of the Institute of Cancer Research nor the
+ *     names of its contributors may be used to endorse or promote
+ *     products derived from this software without specific prior
+ *     written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+package org.nrg.xnatx.ohifviewer.inputcreator;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timings and counts of the phases of a single session JSON build. Phase
+ * times are accumulated so a phase run more than once, as when streaming
+ * falls back to building in memory, is counted in full. Scans are listed by
+ * the workers reading them, so the walk time is summed across threads and
+ * overlaps the read phase when the scans are read in parallel.
+ *
+ * @author jamesd
+ */
+final class GenerationMetrics
+{
+	/**
+	 * Phases of a build.
+	 */
+	enum Phase
+	{
+		/** Fingerprinting the session's files before they are read. */
+		Fingerprint,
+		/** Walking scan directories or reading DICOM resource catalogs. */
+		Walk,
+		/** Parsing DICOM headers and checking stored scan fragments. */
+		Read,
+		/** Merging instances into series and serializing the JSON. */
+		Serialize,
+		/** Loading and storing scan fragments. */
+		Fragments,
+		/** Writing the compressed session JSON to the database. */
+		Store
+	}
+
+	private final long[] phaseNanos = new long[Phase.values().length];
+	private final AtomicLong listNanos = new AtomicLong();
+	private long filesScanned = 0;
+	private long filesSkipped = 0;
+	private long instancesEmitted = 0;
+	private long bytesRead = 0;
+	private long bytesWritten = 0;
+	private long totalNanos = 0;
+
+	/**
+	 * Adds time spent in a phase. Only the walk phase may be added from more
+	 * than one thread.
+	 * @param phase the phase
+	 * @param startNanos the {@link System#nanoTime()} the phase started
+	 */
+	void addTime(Phase phase, long startNanos)
+	{
+		long elapsed = System.nanoTime()-startNanos;
+		if (phase == Phase.Walk)
+		{
+			listNanos.addAndGet(elapsed);
+		}
+		else
+		{
+			phaseNanos[phase.ordinal()] += elapsed;
+		}
+	}
+
+	/**
+	 * Returns the time spent in each phase.
+	 * @return the milliseconds by phase
+	 */
+	Map<Phase,Long> getPhaseMillis()
+	{
+		Map<Phase,Long> result = new EnumMap<>(Phase.class);
+		for (Phase phase : Phase.values())
+		{
+			long nanos = (phase == Phase.Walk)
+				? listNanos.get() : phaseNanos[phase.ordinal()];
+			result.put(phase, nanos/1000000L);
+		}
+		return result;
+	}
+
+	/**
+	 * Adds the results of reading a scan.
+	 * @param files the number of files read
+	 * @param skipped the number of files that were not DICOM or not
+	 * displayable
+	 */
+	void addFiles(int files, int skipped)
+	{
+		filesScanned += files;
+		filesSkipped += skipped;
+	}
+
+	void addInstance()
+	{
+		instancesEmitted++;
+	}
+
+	void addBytesRead(long bytes)
+	{
+		bytesRead += bytes;
+	}
+
+	void setBytesWritten(long bytes)
+	{
+		bytesWritten = bytes;
+	}
+
+	/**
+	 * Sets the wall time of the whole build.
+	 * @param startNanos the {@link System#nanoTime()} the build started
+	 */
+	void setTotal(long startNanos)
+	{
+		totalNanos = System.nanoTime()-startNanos;
+	}
+
+	long getFilesScanned()
+	{
+		return filesScanned;
+	}
+
+	long getFilesSkipped()
+	{
+		return filesSkipped;
+	}
+
+	long getInstancesEmitted()
+	{
+		return instancesEmitted;
+	}
+
+	long getBytesRead()
+	{
+		return bytesRead;
+	}
+
+	long getBytesWritten()
+	{
+		return bytesWritten;
+	}
+
+	long getTotalMillis()
+	{
+		return totalNanos/1000000L;
+	}
+
+	/**
+	 * Returns the metrics as space separated name=value pairs for a single
+	 * log line.
+	 * @return the metrics
+	 */
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("totalMs=").append(getTotalMillis());
+		for (Map.Entry<Phase,Long> entry : getPhaseMillis().entrySet())
+		{
+			sb.append(' ').append(entry.getKey().name().toLowerCase())
+				.append("Ms=").append(entry.getValue());
+		}
+		sb.append(" filesScanned=").append(filesScanned)
+			.append(" filesSkipped=").append(filesSkipped)
+			.append(" instances=").append(instancesEmitted)
+			.append(" bytesRead=").append(bytesRead)
+			.append(" bytesWritten=").append(bytesWritten);
+		return sb.toString();
+	}
+}
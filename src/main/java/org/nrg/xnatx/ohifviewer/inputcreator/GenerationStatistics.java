@@ -0,0 +1,180 @@
+/*********************************************************************
+ * Copyright (c) 2023, Institute of Cancer Research
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * (1) Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ * (2) Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ * (3) Neither the name of the Institute of Cancer Research nor the
+ *     names of its contributors may be used to endorse or promote
+ *     products derived from this software without specific prior
+ *     written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+package org.nrg.xnatx.ohifviewer.inputcreator;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Rolling statistics of session JSON builds. The phase times and counts of
+ * the most recent builds are kept in fixed size windows from which the 50th,
+ * 95th and 99th percentiles are computed on request, so the percentiles
+ * follow the current behaviour of the server rather than its whole uptime.
+ * Totals are kept since startup.
+ * <p>
+ * Instances are thread safe.
+ *
+ * @author jamesd
+ */
+final class GenerationStatistics
+{
+	static final int WindowSize = 1024;
+
+	private final Map<String,RollingHistogram> histograms =
+		new LinkedHashMap<>();
+	private long builds = 0;
+	private long filesScanned = 0;
+	private long filesSkipped = 0;
+	private long instancesEmitted = 0;
+	private long bytesRead = 0;
+	private long bytesWritten = 0;
+
+	GenerationStatistics()
+	{
+		histograms.put("totalMillis", new RollingHistogram(WindowSize));
+		for (GenerationMetrics.Phase phase : GenerationMetrics.Phase.values())
+		{
+			histograms.put(phaseKey(phase), new RollingHistogram(WindowSize));
+		}
+		histograms.put("filesScanned", new RollingHistogram(WindowSize));
+		histograms.put("instances", new RollingHistogram(WindowSize));
+		histograms.put("bytesRead", new RollingHistogram(WindowSize));
+		histograms.put("bytesWritten", new RollingHistogram(WindowSize));
+	}
+
+	/**
+	 * Records a completed build.
+	 * @param metrics the build's metrics
+	 */
+	synchronized void record(GenerationMetrics metrics)
+	{
+		builds++;
+		filesScanned += metrics.getFilesScanned();
+		filesSkipped += metrics.getFilesSkipped();
+		instancesEmitted += metrics.getInstancesEmitted();
+		bytesRead += metrics.getBytesRead();
+		bytesWritten += metrics.getBytesWritten();
+		histograms.get("totalMillis").record(metrics.getTotalMillis());
+		for (Map.Entry<GenerationMetrics.Phase,Long> entry :
+			metrics.getPhaseMillis().entrySet())
+		{
+			histograms.get(phaseKey(entry.getKey())).record(entry.getValue());
+		}
+		histograms.get("filesScanned").record(metrics.getFilesScanned());
+		histograms.get("instances").record(metrics.getInstancesEmitted());
+		histograms.get("bytesRead").record(metrics.getBytesRead());
+		histograms.get("bytesWritten").record(metrics.getBytesWritten());
+	}
+
+	/**
+	 * Returns the totals since startup and the percentiles of each phase time
+	 * and count over the recent builds.
+	 * @return the statistics by name
+	 */
+	synchronized Map<String,Object> getStatistics()
+	{
+		Map<String,Object> totals = new LinkedHashMap<>();
+		totals.put("builds", builds);
+		totals.put("filesScanned", filesScanned);
+		totals.put("filesSkipped", filesSkipped);
+		totals.put("instances", instancesEmitted);
+		totals.put("bytesRead", bytesRead);
+		totals.put("bytesWritten", bytesWritten);
+		Map<String,Object> perBuild = new LinkedHashMap<>();
+		for (Map.Entry<String,RollingHistogram> entry : histograms.entrySet())
+		{
+			perBuild.put(entry.getKey(), entry.getValue().getSummary());
+		}
+		Map<String,Object> result = new LinkedHashMap<>();
+		result.put("windowSize", WindowSize);
+		result.put("totals", totals);
+		result.put("perBuild", perBuild);
+		return result;
+	}
+
+	private static String phaseKey(GenerationMetrics.Phase phase)
+	{
+		return phase.name().toLowerCase()+"Millis";
+	}
+
+	/**
+	 * The most recent values of a metric in a ring buffer. Not thread safe.
+	 */
+	private static final class RollingHistogram
+	{
+		private final long[] values;
+		private int count = 0;
+		private int next = 0;
+
+		RollingHistogram(int size)
+		{
+			values = new long[size];
+		}
+
+		void record(long value)
+		{
+			values[next] = value;
+			next = (next+1) % values.length;
+			count = Math.min(count+1, values.length);
+		}
+
+		Map<String,Object> getSummary()
+		{
+			long[] sorted = Arrays.copyOf(values, count);
+			Arrays.sort(sorted);
+			Map<String,Object> summary = new LinkedHashMap<>();
+			summary.put("count", count);
+			summary.put("p50", percentile(sorted, 50));
+			summary.put("p95", percentile(sorted, 95));
+			summary.put("p99", percentile(sorted, 99));
+			summary.put("max", (count > 0) ? sorted[count-1] : 0);
+			return summary;
+		}
+
+		/**
+		 * Nearest rank percentile of sorted values, 0 if there are none.
+		 */
+		private static long percentile(long[] sorted, int percent)
+		{
+			if (sorted.length == 0)
+			{
+				return 0;
+			}
+			int rank = (int) Math.ceil(percent/100.0*sorted.length);
+			return sorted[Math.max(rank, 1)-1];
+		}
+	}
+}
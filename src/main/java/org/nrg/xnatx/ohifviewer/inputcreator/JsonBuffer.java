@@ -0,0 +1,343 @@
+/*********************************************************************
+ * Copyright (c) 2023, Institute of Cancer Research
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * (1) Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ * (2) Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ * (3) Neither the name of the Institute of Cancer Research nor the
+ *     names of its contributors may be used to endorse or promote
+ *     products derived from this software without specific prior
+ *     written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+package org.nrg.xnatx.ohifviewer.inputcreator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * In-memory destination for session JSON. Characters are held UTF-8 encoded,
+ * and optionally gzip compressed, in fixed size chunks so the buffer never
+ * needs copying as it grows, and the number of characters and bytes written is
+ * known when the JSON is handed to the database without a pass through the
+ * local disk.
+ *
+ * @author jamesd
+ */
+final class JsonBuffer extends Writer
+{
+	private static final int ChunkSize = 64*1024;
+
+	private final List<byte[]> chunks = new ArrayList<>();
+	private final boolean gzip;
+	private int lastChunkLength = ChunkSize;
+	private long charCount = 0;
+	private GZIPOutputStream gzipStream = null;
+	private MessageDigest digest = null;
+	private String contentHash = null;
+	private boolean finished = false;
+	private Writer encoder;
+
+	/**
+	 * Creates an uncompressed buffer.
+	 */
+	JsonBuffer()
+	{
+		this(false);
+	}
+
+	/**
+	 * @param gzip true to hold the JSON gzip compressed
+	 */
+	JsonBuffer(boolean gzip)
+	{
+		this.gzip = gzip;
+		encoder = newEncoder();
+	}
+
+	/**
+	 * @return the number of bytes held, compressed if the buffer is gzipped
+	 */
+	long byteLength()
+	{
+		return (chunks.isEmpty())
+			? 0 : (long) (chunks.size()-1)*ChunkSize+lastChunkLength;
+	}
+
+	/**
+	 * Flushes all characters written to the buffer. A gzipped buffer cannot be
+	 * written to once closed.
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		encoder.flush();
+		if ((gzipStream != null) && !finished)
+		{
+			gzipStream.finish();
+			finished = true;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException
+	{
+		encoder.flush();
+	}
+
+	/**
+	 * Returns the SHA-256 hash of the UTF-8 JSON, closing the buffer first.
+	 * The hash is of the uncompressed JSON whether or not it is gzipped.
+	 * @return the hex encoded hash
+	 * @throws IOException
+	 */
+	String getContentHash() throws IOException
+	{
+		close();
+		if (contentHash == null)
+		{
+			contentHash = Hex.encodeHexString(digest.digest());
+		}
+		return contentHash;
+	}
+
+	/**
+	 * Returns a stream over the bytes held, closing the buffer first.
+	 * @return the UTF-8 bytes, gzip compressed if the buffer is gzipped
+	 * @throws IOException
+	 */
+	InputStream getInputStream() throws IOException
+	{
+		close();
+		return new ChunkInputStream();
+	}
+
+	/**
+	 * Returns a reader over the characters written, closing the buffer first.
+	 * @return the reader
+	 * @throws IOException
+	 */
+	Reader getReader() throws IOException
+	{
+		InputStream is = getInputStream();
+		return new InputStreamReader(gzip ? new GZIPInputStream(is) : is,
+			StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return true if the bytes held are gzip compressed
+	 */
+	boolean isGzip()
+	{
+		return gzip;
+	}
+
+	/**
+	 * @return the number of characters written
+	 */
+	long length()
+	{
+		return charCount;
+	}
+
+	/**
+	 * Writes the buffer to a new temp file.
+	 * @return the path to the file
+	 * @throws IOException
+	 */
+	Path toTempFile() throws IOException
+	{
+		Path path = Files.createTempFile("ohif", null);
+		try (InputStream is = gzip
+				? new GZIPInputStream(getInputStream()) : getInputStream())
+		{
+			Files.copy(is, path, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (IOException | RuntimeException ex)
+		{
+			Files.deleteIfExists(path);
+			throw ex;
+		}
+		return path;
+	}
+
+	/**
+	 * Discards everything written.
+	 */
+	void reset()
+	{
+		chunks.clear();
+		lastChunkLength = ChunkSize;
+		charCount = 0;
+		finished = false;
+		contentHash = null;
+		encoder = newEncoder();
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException
+	{
+		encoder.write(cbuf, off, len);
+		charCount += len;
+	}
+
+	@Override
+	public void write(int c) throws IOException
+	{
+		encoder.write(c);
+		charCount++;
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException
+	{
+		encoder.write(str, off, len);
+		charCount += len;
+	}
+
+	private Writer newEncoder()
+	{
+		OutputStream os = new ChunkOutputStream();
+		if (gzip)
+		{
+			try
+			{
+				gzipStream = new GZIPOutputStream(os, 8192);
+			}
+			catch (IOException ex)
+			{
+				// Only writes the header to memory
+				throw new IllegalStateException(ex);
+			}
+			os = gzipStream;
+		}
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException ex)
+		{
+			// Required of every Java platform
+			throw new IllegalStateException(ex);
+		}
+		return new OutputStreamWriter(new DigestOutputStream(os, digest),
+			StandardCharsets.UTF_8);
+	}
+
+	private final class ChunkInputStream extends InputStream
+	{
+		private final long length = byteLength();
+		private long position = 0;
+
+		@Override
+		public int available()
+		{
+			return (int) Math.min(length-position, Integer.MAX_VALUE);
+		}
+
+		@Override
+		public int read()
+		{
+			if (position >= length)
+			{
+				return -1;
+			}
+			byte b = chunks.get((int) (position/ChunkSize))[(int) (position%ChunkSize)];
+			position++;
+			return b & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len)
+		{
+			if (len == 0)
+			{
+				return 0;
+			}
+			if (position >= length)
+			{
+				return -1;
+			}
+			int chunkOffset = (int) (position%ChunkSize);
+			int count = (int) Math.min(Math.min(len, ChunkSize-chunkOffset),
+				length-position);
+			System.arraycopy(chunks.get((int) (position/ChunkSize)), chunkOffset,
+				b, off, count);
+			position += count;
+			return count;
+		}
+	}
+
+	private final class ChunkOutputStream extends OutputStream
+	{
+		@Override
+		public void write(int b)
+		{
+			if (lastChunkLength == ChunkSize)
+			{
+				chunks.add(new byte[ChunkSize]);
+				lastChunkLength = 0;
+			}
+			chunks.get(chunks.size()-1)[lastChunkLength++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len)
+		{
+			while (len > 0)
+			{
+				if (lastChunkLength == ChunkSize)
+				{
+					chunks.add(new byte[ChunkSize]);
+					lastChunkLength = 0;
+				}
+				int count = Math.min(len, ChunkSize-lastChunkLength);
+				System.arraycopy(b, off, chunks.get(chunks.size()-1),
+					lastChunkLength, count);
+				lastChunkLength += count;
+				off += count;
+				len -= count;
+			}
+		}
+	}
+}
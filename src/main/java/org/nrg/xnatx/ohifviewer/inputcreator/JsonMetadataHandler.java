@@ -36,14 +36,18 @@ package org.nrg.xnatx.ohifviewer.inputcreator;
 
 import icr.etherj.StringUtils;
 import lombok.extern.slf4j.Slf4j;
-import org.hibernate.engine.jdbc.ClobProxy;
+import org.hibernate.engine.jdbc.BlobProxy;
+import org.hibernate.exception.ConstraintViolationException;
 import org.nrg.config.entities.Configuration;
 import org.nrg.config.services.ConfigService;
 import org.nrg.framework.constants.Scope;
-import org.nrg.framework.services.SerializerService;
 import org.nrg.xdat.om.XnatImagesessiondata;
 import org.nrg.xft.security.UserI;
+import org.nrg.xnatx.ohifviewer.ViewerPreferences;
+import org.nrg.xnatx.ohifviewer.entity.OhifScanData;
 import org.nrg.xnatx.ohifviewer.entity.OhifSessionData;
+import org.nrg.xnatx.ohifviewer.service.OhifScanDataService;
+import org.nrg.xnatx.ohifviewer.service.OhifSessionJsonVersion;
 import org.nrg.xnatx.ohifviewer.service.OhifSessionDataService;
 import org.nrg.xnatx.plugin.PluginCode;
 import org.nrg.xnatx.plugin.PluginException;
@@ -51,14 +55,21 @@ import org.nrg.xnatx.plugin.PluginUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.stereotype.Service;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 /**
  *
@@ -72,7 +83,7 @@ public class JsonMetadataHandler
 	 * format or content is changed to allow runtime detection of outdated
 	 * metadata
 	 */
-	public static final int JsonRevision = 2;
+	public static final int JsonRevision = 5;
 
 	private static final Logger logger = LoggerFactory.getLogger(
 		JsonMetadataHandler.class);
@@ -82,17 +93,20 @@ public class JsonMetadataHandler
 	private static final String SessionJsonToolPath = "session-json";
 
 	private final OhifSessionDataService ohifSessionDataService;
+	private final OhifScanDataService ohifScanDataService;
 	private final ConfigService configService;
-	private final SerializerService serializer;
+	private final SessionBuildRegistry buildRegistry = new SessionBuildRegistry();
+	private final BuildScheduler buildScheduler = new BuildScheduler();
+	private final GenerationStatistics generationStats = new GenerationStatistics();
 
 	@Autowired
 	public JsonMetadataHandler(final OhifSessionDataService ohifSessionDataService,
-							   final ConfigService configService,
-							   final SerializerService serializer)
+							   final OhifScanDataService ohifScanDataService,
+							   final ConfigService configService)
 	{
 		this.ohifSessionDataService = ohifSessionDataService;
+		this.ohifScanDataService = ohifScanDataService;
 		this.configService = configService;
-		this.serializer = serializer;
 	}
 
 	/**
@@ -104,10 +118,24 @@ public class JsonMetadataHandler
 	 */
 	public void createAndStoreJsonConfig(String sessionId, UserI user)
 		throws PluginException
+	{
+		createAndStoreJsonConfig(sessionId, user, BuildPriority.Interactive);
+	}
+
+	/**
+	 * Create and store JSON metadata for the specified session and user,
+	 * scheduled ahead of or behind other builds by its priority.
+	 * @param sessionId
+	 * @param user
+	 * @param priority
+	 * @throws PluginException
+	 */
+	public void createAndStoreJsonConfig(String sessionId, UserI user,
+		BuildPriority priority) throws PluginException
 	{
 		XnatImagesessiondata sessionData = PluginUtils.getImageSessionData(
 			sessionId, user);
-		createAndStoreJsonConfig(sessionData, user);
+		createAndStoreJsonConfig(sessionData, user, false, priority);
 	}
 
 	/**
@@ -123,6 +151,7 @@ public class JsonMetadataHandler
 	}
 	/**
 	 * Create and store JSON metadata for the specified session and user.
+	 * Concurrent requests for the session share a single build.
 	 * @param sessionData
 	 * @param user
 	 * @param ignoreExisting if true, any previously existing json will be ignored
@@ -131,6 +160,25 @@ public class JsonMetadataHandler
 	 */
 	public void createAndStoreJsonConfig(XnatImagesessiondata sessionData,
 		UserI user, boolean ignoreExisting) throws PluginException
+	{
+		createAndStoreJsonConfig(sessionData, user, ignoreExisting,
+			BuildPriority.Interactive);
+	}
+
+	/**
+	 * Create and store JSON metadata for the specified session and user.
+	 * Concurrent requests for the session share a single build, which waits
+	 * for a build slot granted in priority order. A build shared by requests
+	 * waits at the highest priority among them.
+	 * @param sessionData
+	 * @param user
+	 * @param ignoreExisting if true, any previously existing json will be ignored
+	 * @param priority the priority of the build
+	 * @throws PluginException
+	 */
+	public void createAndStoreJsonConfig(XnatImagesessiondata sessionData,
+		UserI user, boolean ignoreExisting, BuildPriority priority)
+		throws PluginException
 	{
 		if (sessionData == null)
 		{
@@ -143,33 +191,126 @@ public class JsonMetadataHandler
 					PluginCode.HttpUnprocessableEntity);
 		}
 		String sessionId = sessionData.getId();
-		Path jsonPath;
+		// A rebuild ignoring existing JSON follows changed DICOM, so it cannot
+		// share a build that may have read the session before the change
+		BuildScheduler.Ticket ticket = buildScheduler.newTicket(priority);
+		if (!buildRegistry.run(sessionId, ignoreExisting, ticket,
+			() -> buildScheduler.run(ticket,
+				() -> buildAndStoreJson(sessionId, sessionData, ignoreExisting))))
+		{
+			logger.debug("Session {} metadata shared from concurrent creation",
+				sessionId);
+		}
+	}
+
+	/**
+	 * Create and store JSON metadata for the specified session and user unless
+	 * the stored JSON is valid and was created from the session's current
+	 * scans and files, as recorded by its fingerprint. Only the session's
+	 * directories or catalogs are read to decide, not its DICOM files.
+	 * @param sessionId
+	 * @param user
+	 * @param priority the priority of the build
+	 * @return true if the JSON was created, false if it was up to date
+	 * @throws PluginException
+	 */
+	public boolean createAndStoreJsonConfigIfStale(String sessionId, UserI user,
+		BuildPriority priority) throws PluginException
+	{
+		XnatImagesessiondata sessionData = PluginUtils.getImageSessionData(
+			sessionId, user);
+		if (getValidJsonVersion(sessionId) != null)
+		{
+			String stored = ohifSessionDataService.getSessionFingerprint(sessionId);
+			if ((stored != null) &&
+				 stored.equals(new ConfigServiceJsonCreator().fingerprint(sessionData)))
+			{
+				logger.debug("Session {} metadata up to date", sessionId);
+				return false;
+			}
+		}
+		createAndStoreJsonConfig(sessionData, user, false, priority);
+		return true;
+	}
+
+	/**
+	 * Returns the statistics of session JSON creation: the number of builds
+	 * run, the number of requests that shared a concurrent build, the
+	 * number of builds in flight and the waits for a build slot by priority.
+	 * @return the statistics by name
+	 * @see #getGenerationStatistics()
+	 */
+	public Map<String,Object> getBuildStatistics()
+	{
+		Map<String,Object> stats = new LinkedHashMap<>();
+		stats.put("builds", buildRegistry.getBuildCount());
+		stats.put("joins", buildRegistry.getJoinCount());
+		stats.put("inFlight", buildRegistry.getInFlightCount());
+		stats.put("scheduler", buildScheduler.getStatistics());
+		return stats;
+	}
+
+	/**
+	 * Returns the phase times and counts of session JSON creation: totals
+	 * since startup and the 50th, 95th and 99th percentiles over the most
+	 * recent builds.
+	 * @return the statistics by name
+	 */
+	public Map<String,Object> getGenerationStatistics()
+	{
+		return generationStats.getStatistics();
+	}
+
+	private void buildAndStoreJson(String sessionId,
+		XnatImagesessiondata sessionData, boolean ignoreExisting)
+		throws PluginException
+	{
+		long buildStart = System.nanoTime();
+		GenerationMetrics metrics = new GenerationMetrics();
+		JsonBuffer json = new JsonBuffer(true);
+		String fingerprint;
 		try {
-			jsonPath = loadFromConfigOrCreateJsonTempFile(sessionId, sessionData, ignoreExisting);
+			fingerprint = loadFromConfigOrCreateJson(sessionId, sessionData,
+				ignoreExisting, json, metrics);
 		} catch (IOException e) {
 			throw new PluginException("Unable to load or create json for session " + sessionId, e);
 		}
-		try (BufferedReader reader = new BufferedReader(new FileReader(jsonPath.toFile()))) {
+		long start = System.nanoTime();
+		try {
+			try {
+				storeJson(sessionId, fingerprint, json);
+			} catch (DataIntegrityViolationException | ConstraintViolationException e) {
+				// Another node created the row after the update found none,
+				// the update finds it now
+				logger.debug("Session {} JSON created concurrently, updating", sessionId);
+				storeJson(sessionId, fingerprint, json);
+			}
+			logger.debug("Session {} JSON: {} characters stored as {} gzip bytes",
+				sessionId, json.length(), json.byteLength());
+		} catch (IOException e) {
+			throw new PluginException("Failed to store json for session " + sessionId, e);
+		}
+		metrics.addTime(GenerationMetrics.Phase.Store, start);
+		metrics.setBytesWritten(json.byteLength());
+		metrics.setTotal(buildStart);
+		generationStats.record(metrics);
+
+		logger.info("Session metadata created and stored: session={} {}",
+			sessionId, metrics);
+	}
+
+	private void storeJson(String sessionId, String fingerprint, JsonBuffer json)
+		throws IOException
+	{
+		try (InputStream is = json.getInputStream()) {
 			OhifSessionData ohifSessionData = new OhifSessionData();
 			ohifSessionData.setSessionId(sessionId);
 			ohifSessionData.setRevision(Integer.toString(JsonRevision));
-			ohifSessionData.setSessionJson(ClobProxy.generateProxy(reader, Files.size(jsonPath)));
+			ohifSessionData.setContentHash(json.getContentHash());
+			ohifSessionData.setFingerprint(fingerprint);
+			ohifSessionData.setSessionJsonGzip(BlobProxy.generateProxy(is, json.byteLength()));
 			ohifSessionDataService.createOrUpdate(ohifSessionData);
-		} catch (FileNotFoundException e) {
-			throw new PluginException(jsonPath + " Not Found", PluginCode.FileNotFound, e);
-		} catch (IOException e) {
-			throw new PluginException("Failed to load " + jsonPath, e);
-		} finally {
-			// Delete temporary json file
-			try {
-				Files.delete(jsonPath);
-				logger.debug("{} has been deleted", jsonPath);
-			} catch (IOException e) {
-				logger.warn("Failed to delete {}", jsonPath);
-			}
 		}
-
-		logger.info("Session {} metadata created and stored", sessionId);
 	}
 
 	public boolean deleteSessionConfig(String sessionId) {
@@ -180,29 +321,121 @@ public class JsonMetadataHandler
 		}
 		logger.info("Got request to delete OHIF metadata for session ID {}, proceeding", sessionId);
 		ohifSessionDataService.delete(data);
+		ohifScanDataService.deleteScanData(sessionId);
 		return true;
 	}
 
-	private Path loadFromConfigOrCreateJsonTempFile(String sessionId, XnatImagesessiondata sessionData,
-													boolean ignoreExisting)
+	/**
+	 * Writes the stored JSON metadata for a session expanded to the format of
+	 * revision 2, for clients that do not read hoisted series metadata.
+	 * @param sessionId
+	 * @param os the destination of the UTF-8 JSON
+	 * @param gzip true to compress the output
+	 * @throws PluginException
+	 */
+	public void transferExpandedJson(String sessionId, OutputStream os,
+		boolean gzip) throws PluginException
+	{
+		try
+		{
+			OutputStream target = gzip ? new GZIPOutputStream(os) : os;
+			final Writer writer = new OutputStreamWriter(target,
+				StandardCharsets.UTF_8);
+			ohifSessionDataService.readSessionJson(sessionId,
+				reader -> SessionJsonFormat.expand(reader, writer));
+			writer.flush();
+			if (gzip)
+			{
+				((GZIPOutputStream) target).finish();
+			}
+		}
+		catch (IOException ex)
+		{
+			throw new PluginException("Failed to expand JSON for session "+
+				sessionId, ex);
+		}
+	}
+
+	/**
+	 * Returns the fingerprint of the files the JSON was created from, taken
+	 * before they are read so a change made during creation is seen as stale,
+	 * or null if the JSON was migrated from the config service.
+	 */
+	private String loadFromConfigOrCreateJson(String sessionId, XnatImagesessiondata sessionData,
+											boolean ignoreExisting, JsonBuffer json, GenerationMetrics metrics)
 			throws IOException, PluginException {
+		String fingerprint = null;
 		Configuration configuration = configService.getConfig(OhifViewerToolName, SessionJsonToolPath,
 				Scope.Experiment, sessionId);
-		Path jsonPath;
 		if (ignoreExisting || configuration == null || !configuration.isEnabled()) {
 			logger.info("Creating session metadata for {}", sessionId);
 			ConfigServiceJsonCreator creator = new ConfigServiceJsonCreator();
-			jsonPath = creator.create(sessionData);
+			creator.setMetrics(metrics);
+			long start = System.nanoTime();
+			fingerprint = creator.fingerprint(sessionData);
+			metrics.addTime(GenerationMetrics.Phase.Fingerprint, start);
+			if (ViewerPreferences.isMetadataIncremental())
+			{
+				start = System.nanoTime();
+				Map<String,ScanFragment> previous = loadScanFragments(sessionId);
+				metrics.addTime(GenerationMetrics.Phase.Fragments, start);
+				creator.create(sessionData, previous, json);
+				start = System.nanoTime();
+				storeScanFragments(sessionId, creator.getFragments());
+				metrics.addTime(GenerationMetrics.Phase.Fragments, start);
+			}
+			else
+			{
+				creator.create(sessionData, null, json);
+			}
 		} else {
 			logger.info("Migrating session metadata for {}", sessionId);
-			jsonPath = Files.createTempFile("ohif", null);
-			// read from config and minify json
-			serializer.getObjectMapper().writeValue(jsonPath.toFile(), serializer.deserializeJson(configuration.getContents()));
+			// read from config, minify json and hoist series metadata
+			SessionJsonFormat.hoist(configuration.getContents(), json);
 		}
 		if (configuration != null) {
 			disableConfigServiceArtifacts(configuration, sessionId);
 		}
-		return jsonPath;
+		return fingerprint;
+	}
+
+	private Map<String,ScanFragment> loadScanFragments(String sessionId)
+	{
+		Map<String,ScanFragment> fragments = new HashMap<>();
+		for (OhifScanData data : ohifScanDataService.getScanData(sessionId))
+		{
+			fragments.put(data.getScanId(), new ScanFragment(data.getScanId(),
+				data.getFingerprint(), data.getScanJson()));
+		}
+		return fragments;
+	}
+
+	private void storeScanFragments(String sessionId,
+		List<ScanFragment> fragments)
+	{
+		if (fragments == null)
+		{
+			return;
+		}
+		List<OhifScanData> scanData = new ArrayList<>(fragments.size());
+		for (ScanFragment fragment : fragments)
+		{
+			OhifScanData data = new OhifScanData();
+			data.setSessionId(sessionId);
+			data.setScanId(fragment.getScanId());
+			data.setFingerprint(fragment.getFingerprint());
+			data.setScanJson(fragment.getJson());
+			scanData.add(data);
+		}
+		try
+		{
+			ohifScanDataService.replaceScanData(sessionId, scanData);
+		}
+		catch (RuntimeException ex)
+		{
+			// Only costs a full read of the session on the next rebuild
+			logger.warn("Failed to store scan metadata for session "+sessionId, ex);
+		}
 	}
 
 	private void disableConfigServiceArtifacts(Configuration configuration, String sessionId) {
@@ -223,14 +456,41 @@ public class JsonMetadataHandler
 	 */
 	public boolean isJsonValid(String sessionId)
 	{
-		OhifSessionData ohifSessionData = ohifSessionDataService.getSessionData(sessionId);
-		if (ohifSessionData == null)
+		return getValidJsonVersion(sessionId) != null;
+	}
+
+	/**
+	 * Returns the version of the stored JSON metadata if it is present and the
+	 * revision is valid and up to date. Only the revision and validators are
+	 * read, not the JSON.
+	 * @param sessionId
+	 * @return the version or null
+	 */
+	public OhifSessionJsonVersion getValidJsonVersion(String sessionId)
+	{
+		OhifSessionJsonVersion version =
+			ohifSessionDataService.getSessionJsonVersion(sessionId);
+		if (version == null)
 		{
 			logger.debug("JSON not found");
-			return false;
+			return null;
 		}
+		return isRevisionValid(version.getRevision()) ? version : null;
+	}
 
-		String revision = ohifSessionData.getRevision();
+	/**
+	 * Returns <code>true</code> if the stored JSON metadata's revision is valid
+	 * and up to date.
+	 * @param version the version of the stored JSON
+	 * @return
+	 */
+	public boolean isJsonValid(OhifSessionJsonVersion version)
+	{
+		return isRevisionValid(version.getRevision());
+	}
+
+	private boolean isRevisionValid(String revision)
+	{
 		// Check the stored revision. If it doesn't exist, is empty or lower than
 		// the Json
 		if (StringUtils.isNullOrEmpty(revision))
@@ -0,0 +1,298 @@
+/*********************************************************************
+ * Copyright (c) 2023, Institute of Cancer Research
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * (1) Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ * (2) Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ * (3) Neither the name of the Institute of Cancer Research nor the
+ *     names of its contributors may be used to endorse or promote
+ *     products derived from this software without specific prior
+ *     written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+package org.nrg.xnatx.ohifviewer.inputcreator;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PreDestroy;
+import org.nrg.xdat.security.helpers.Users;
+import org.nrg.xft.security.UserI;
+import org.nrg.xnatx.ohifviewer.entity.OhifGenerationJob;
+import org.nrg.xnatx.ohifviewer.entity.OhifGenerationJobItem;
+import org.nrg.xnatx.ohifviewer.service.OhifGenerationExecutor;
+import org.nrg.xnatx.ohifviewer.service.OhifGenerationJobService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Drains the queue of session JSON generation jobs. Due items are claimed in
+ * batches and generated in parallel on the {@link OhifGenerationExecutor},
+ * which may run them on the polling thread when its queue is full or
+ * reject them back to the job queue. Each outcome is recorded as it
+ * completes so a restart loses at most the items then running, which are
+ * returned to the queue by {@link #start()}. Items claimed but not submitted
+ * are returned to the queue, and items left running longer than a lease, by
+ * a lost run or another node, are reclaimed. Failed items are retried with
+ * exponential backoff up to a maximum number of attempts. Site-wide jobs are
+ * given their sessions a page at a time, ahead of the items being claimed.
+ * Stale-only jobs skip sessions whose JSON is up to date with their files.
+ *
+ * @author jamesd
+ */
+@Component
+public class OhifGenerationJobRunner
+{
+	private static final Logger logger = LoggerFactory.getLogger(
+		OhifGenerationJobRunner.class);
+
+	static final int MaxAttempts = 3;
+	private static final long BackoffBaseMillis = 30*1000L;
+	private static final long BackoffMaxMillis = 30*60*1000L;
+	private static final long PollSeconds = 5;
+	private static final int EnumerationPageSize = 500;
+	private static final long LeaseMillis = 60*60*1000L;
+
+	private final OhifGenerationJobService jobService;
+	private final JsonMetadataHandler jsonHandler;
+	private final OhifGenerationExecutor executor;
+	private ScheduledExecutorService poller = null;
+	private volatile boolean stopped = false;
+
+	@Autowired
+	public OhifGenerationJobRunner(final OhifGenerationJobService jobService,
+		final JsonMetadataHandler jsonHandler,
+		final OhifGenerationExecutor executor)
+	{
+		this.jobService = jobService;
+		this.jsonHandler = jsonHandler;
+		this.executor = executor;
+	}
+
+	/**
+	 * Returns items interrupted by a restart to the queue and starts polling
+	 * for due items.
+	 */
+	public synchronized void start()
+	{
+		if ((poller != null) || stopped)
+		{
+			return;
+		}
+		int reset = jobService.resetInterruptedItems();
+		if (reset > 0)
+		{
+			logger.info("Resuming {} interrupted session JSON generations", reset);
+		}
+		poller = Executors.newSingleThreadScheduledExecutor();
+		poller.scheduleWithFixedDelay(this::drain, 0, PollSeconds,
+			TimeUnit.SECONDS);
+	}
+
+	@PreDestroy
+	public synchronized void stop()
+	{
+		stopped = true;
+		if (poller != null)
+		{
+			poller.shutdownNow();
+		}
+		DicomFileScanner.shutdownPool();
+	}
+
+	private void drain()
+	{
+		try
+		{
+			int reclaimed = jobService.reclaimExpiredItems(
+				new Date(System.currentTimeMillis()-LeaseMillis), MaxAttempts);
+			if (reclaimed > 0)
+			{
+				logger.warn("Reclaimed {} session JSON generations running longer than {} minutes",
+					reclaimed, LeaseMillis/60000);
+			}
+			while (!stopped)
+			{
+				jobService.enumerateSessions(EnumerationPageSize);
+				List<OhifGenerationJobItem> items = jobService.claimItems(
+					2*executor.getThreadCount());
+				if (items.isEmpty())
+				{
+					break;
+				}
+				runBatch(items);
+			}
+			int completed = jobService.completeFinishedJobs();
+			if (completed > 0)
+			{
+				logger.info("{} session JSON generation jobs complete", completed);
+			}
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch (Exception ex)
+		{
+			// Keep polling, unsubmitted items stay claimed until their lease expires
+			logger.error("Session JSON generation queue failure", ex);
+		}
+	}
+
+	private void runBatch(List<OhifGenerationJobItem> items)
+		throws InterruptedException
+	{
+		Map<Long,OhifGenerationJob> jobs = new HashMap<>();
+		Map<Long,UserI> users = new HashMap<>();
+		List<Future<Void>> futures = new ArrayList<>();
+		// Items handled so far, those after are released if submission stops
+		int handled = 0;
+		boolean rejected = false;
+		try
+		{
+			for (; handled<items.size(); handled++)
+			{
+				OhifGenerationJobItem item = items.get(handled);
+				OhifGenerationJob job = jobs.computeIfAbsent(item.getJobId(),
+					jobService::retrieve);
+				if (job == null)
+				{
+					logger.warn("Generation job {} of session {} not found",
+						item.getJobId(), item.getSessionId());
+					jobService.failItem(item.getId(), "Generation job not found",
+						null);
+					continue;
+				}
+				UserI user = users.computeIfAbsent(item.getJobId(),
+					jobId -> getJobUser(job));
+				futures.add(executor.submit(() ->
+				{
+					runItem(item, user, job.isStaleOnly());
+					return null;
+				}));
+			}
+		}
+		catch (RejectedExecutionException ex)
+		{
+			rejected = true;
+			logger.info("Generation queue full, {} sessions returned to the job queue",
+				items.size()-handled);
+		}
+		finally
+		{
+			if (handled < items.size())
+			{
+				List<Long> unsubmitted = new ArrayList<>();
+				for (OhifGenerationJobItem item : items.subList(handled, items.size()))
+				{
+					unsubmitted.add(item.getId());
+				}
+				jobService.releaseItems(unsubmitted);
+			}
+		}
+		for (Future<Void> future : futures)
+		{
+			try
+			{
+				future.get();
+			}
+			catch (ExecutionException ex)
+			{
+				// Failures are recorded by runItem
+				logger.debug("Generation task failed", ex.getCause());
+			}
+		}
+		if (rejected)
+		{
+			// Let the executor drain before claiming more
+			Thread.sleep(PollSeconds*1000);
+		}
+	}
+
+	private void runItem(OhifGenerationJobItem item, UserI user,
+		boolean staleOnly)
+	{
+		String sessionId = item.getSessionId();
+		try
+		{
+			if (user == null)
+			{
+				throw new IllegalStateException("Job user not found");
+			}
+			logger.info("ImageSession ID: "+sessionId);
+			boolean skipped = false;
+			if (staleOnly)
+			{
+				skipped = !jsonHandler.createAndStoreJsonConfigIfStale(sessionId,
+					user, BuildPriority.Bulk);
+			}
+			else
+			{
+				jsonHandler.createAndStoreJsonConfig(sessionId, user,
+					BuildPriority.Bulk);
+			}
+			jobService.completeItem(item.getId(), skipped);
+		}
+		catch (Exception ex)
+		{
+			Date retryAt = null;
+			if (item.getAttempts() < MaxAttempts)
+			{
+				long delay = Math.min(
+					BackoffBaseMillis << (item.getAttempts()-1), BackoffMaxMillis);
+				retryAt = new Date(System.currentTimeMillis()+delay);
+			}
+			logger.warn("Session {} JSON generation attempt {} failed{}",
+				sessionId, item.getAttempts(),
+				(retryAt != null) ? ", retrying at "+retryAt : "", ex);
+			jobService.failItem(item.getId(), String.valueOf(ex.getMessage()),
+				retryAt);
+		}
+	}
+
+	private UserI getJobUser(OhifGenerationJob job)
+	{
+		try
+		{
+			return Users.getUser(job.getUsername());
+		}
+		catch (Exception ex)
+		{
+			logger.warn("Unable to load user {} of generation job {}",
+				job.getUsername(), job.getId(), ex);
+			return null;
+		}
+	}
+}
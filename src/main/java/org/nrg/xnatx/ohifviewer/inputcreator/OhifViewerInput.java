@@ -45,6 +45,7 @@ package org.nrg.xnatx.ohifviewer.inputcreator;
 
 import com.google.common.collect.ImmutableList;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class OhifViewerInput
@@ -73,4 +74,13 @@ public class OhifViewerInput
 		this.studies.clear();
 		this.studies.addAll(studies);
 	}
+
+	/**
+	 * Returns the studies without copying, for {@link SessionJsonSerializer}.
+	 * @return the unmodifiable studies
+	 */
+	List<OhifViewerInputStudy> getStudiesView()
+	{
+		return Collections.unmodifiableList(studies);
+	}
 }
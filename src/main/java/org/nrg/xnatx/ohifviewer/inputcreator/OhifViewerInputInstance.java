@@ -53,10 +53,25 @@ public class OhifViewerInputInstance extends OhifViewerInputItem
 		LoggerFactory.getLogger(OhifViewerInputInstance.class);
 
 	private OhifViewerInputInstanceMetadata metadata;
-	private String url;
+	// Shared by the instances of a scan resource
+	private String urlPrefix;
+	private String file;
 
 	public OhifViewerInputInstance(SopInstance sop, String xnatScanUrl,
 		String scanId)
+	{
+		this(sop, (sop != null)
+			? createUrlPrefix(xnatScanUrl, scanId,
+				getResourceType(sop.getSopClassUid()))
+			: null);
+	}
+
+	/**
+	 * Creates the instance with a URL prefix shared with other instances.
+	 * @param sop the SOP instance
+	 * @param urlPrefix the URL of the directory holding the file
+	 */
+	OhifViewerInputInstance(SopInstance sop, String urlPrefix)
 	{
 		if (sop == null)
 		{
@@ -65,11 +80,40 @@ public class OhifViewerInputInstance extends OhifViewerInputItem
 		}
 
 		metadata = new OhifViewerInputInstanceMetadata(sop);
+		this.urlPrefix = urlPrefix;
+		file = new File(sop.getPath()).getName();
+	}
+
+	OhifViewerInputInstance(OhifViewerInputInstanceMetadata metadata,
+		String urlPrefix, String file)
+	{
+		this.metadata = metadata;
+		this.urlPrefix = urlPrefix;
+		this.file = file;
+	}
 
-		String file = new File(sop.getPath()).getName();
-		String SOPClassUID = sop.getSopClassUid();
-		String resource = getResourceType(SOPClassUID);
-		url = xnatScanUrl+scanId+RESOURCES+resource+FILES+file;
+	/**
+	 * Returns the URL of the directory holding the files of a scan resource.
+	 * @param xnatScanUrl the URL of the session's scans
+	 * @param scanId the scan ID
+	 * @param resource the resource label
+	 * @return the URL, ending with a slash
+	 */
+	static String createUrlPrefix(String xnatScanUrl, String scanId,
+		String resource)
+	{
+		return xnatScanUrl+scanId+RESOURCES+resource+FILES;
+	}
+
+	/**
+	 * Returns the label of the scan resource holding files of a SOP class.
+	 * @param sopClassUid the SOP class UID
+	 * @return the resource label
+	 */
+	static String getResourceType(String sopClassUid)
+	{
+		return (SOPModel.isPrimaryImagingSOP(sopClassUid))
+			? "DICOM" : "secondary";
 	}
 
 	public int getColumns()
@@ -117,15 +161,24 @@ public class OhifViewerInputInstance extends OhifViewerInputItem
 		return metadata.getSOPInstanceUID();
 	}
 
-	private String getResourceType(String sopClassUid)
+	public String getUrl()
 	{
-		return (SOPModel.isPrimaryImagingSOP(sopClassUid))
-			? "DICOM" : "secondary";
+		return (file != null) ? urlPrefix+file : null;
 	}
 
-	public String getUrl()
+	OhifViewerInputInstanceMetadata getMetadata()
+	{
+		return metadata;
+	}
+
+	String getUrlPrefix()
+	{
+		return urlPrefix;
+	}
+
+	String getFile()
 	{
-		return url;
+		return file;
 	}
 
 }
@@ -142,6 +142,18 @@ public class OhifViewerInputInstanceMetadata extends OhifViewerInputItem
         return PixelSpacing;
     }
 
+    public double getRescaleIntercept() {
+        return RescaleIntercept;
+    }
+
+    public double getRescaleSlope() {
+        return RescaleSlope;
+    }
+
+    public String getRescaleType() {
+        return RescaleType;
+    }
+
     public int getRows() {
         return Rows;
     }
@@ -150,6 +162,10 @@ public class OhifViewerInputInstanceMetadata extends OhifViewerInputItem
         return SamplesPerPixel;
     }
 
+    public String getSOPClassUID() {
+        return SOPClassUID;
+    }
+
     public String getSOPInstanceUID() {
         return SOPInstanceUID;
     }
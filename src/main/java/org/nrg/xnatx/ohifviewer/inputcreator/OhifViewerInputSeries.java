@@ -52,6 +52,7 @@ import icr.etherj.dicom.Series;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -68,6 +69,7 @@ public class OhifViewerInputSeries extends OhifViewerInputItem
 	private String SeriesInstanceUID;
 	private int SeriesNumber;
 	private String SeriesTime;
+	private SeriesGeometry geometry;
 
 	private final List<OhifViewerInputInstance> instances = new ArrayList<>();
   
@@ -99,6 +101,10 @@ public class OhifViewerInputSeries extends OhifViewerInputItem
 		Modality = ser.getModality();
 	}
 	
+	// Used when deserializing stored fragments
+	private OhifViewerInputSeries()
+	{}
+
 	public void addInstances(OhifViewerInputInstance instance)
 	{
 		instances.add(instance);
@@ -109,6 +115,41 @@ public class OhifViewerInputSeries extends OhifViewerInputItem
 		return ImmutableList.copyOf(instances);
 	}
 
+	/**
+	 * Returns the instances without copying, for
+	 * {@link SessionJsonSerializer}.
+	 * @return the unmodifiable instances
+	 */
+	List<OhifViewerInputInstance> getInstancesView()
+	{
+		return Collections.unmodifiableList(instances);
+	}
+
+	/**
+	 * Sorts the instances into slice order where possible and sets the
+	 * geometry summary. Called once the series is complete.
+	 */
+	void orderInstances()
+	{
+		geometry = SeriesGeometry.orderInstances(instances);
+	}
+
+	/**
+	 * Returns a copy of the series attributes without any instances.
+	 * @return the copy
+	 */
+	OhifViewerInputSeries copyAttributes()
+	{
+		OhifViewerInputSeries copy = new OhifViewerInputSeries();
+		copy.Modality = Modality;
+		copy.SeriesDate = SeriesDate;
+		copy.SeriesDescription = SeriesDescription;
+		copy.SeriesInstanceUID = SeriesInstanceUID;
+		copy.SeriesNumber = SeriesNumber;
+		copy.SeriesTime = SeriesTime;
+		return copy;
+	}
+
 	public String getSeriesDescription()
 	{
 		return SeriesDescription;
@@ -124,4 +165,24 @@ public class OhifViewerInputSeries extends OhifViewerInputItem
 		return SeriesNumber;
 	}
 
+	SeriesGeometry getGeometry()
+	{
+		return geometry;
+	}
+
+	String getModality()
+	{
+		return Modality;
+	}
+
+	String getSeriesDate()
+	{
+		return SeriesDate;
+	}
+
+	String getSeriesTime()
+	{
+		return SeriesTime;
+	}
+
 }
@@ -52,6 +52,7 @@ import icr.etherj.dicom.Patient;
 import icr.etherj.dicom.SopInstance;
 import icr.etherj.dicom.Study;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -96,6 +97,10 @@ public class OhifViewerInputStudy extends OhifViewerInputItem
         }
     }
 
+    // Used when deserializing stored fragments
+    private OhifViewerInputStudy()
+    {}
+
     public void addSeries(OhifViewerInputSeries series)
     {
         if (series != null) {
@@ -126,4 +131,60 @@ public class OhifViewerInputStudy extends OhifViewerInputItem
     {
         return seriesMap.get(seriesInstanceUid);
     }
+
+    /**
+     * Returns a copy of the study attributes without any series.
+     * @return the copy
+     */
+    OhifViewerInputStudy copyAttributes()
+    {
+        OhifViewerInputStudy copy = new OhifViewerInputStudy();
+        copy.PatientID = PatientID;
+        copy.PatientName = PatientName;
+        copy.StudyDate = StudyDate;
+        copy.StudyDescription = StudyDescription;
+        copy.StudyInstanceUID = StudyInstanceUID;
+        copy.StudyTime = StudyTime;
+        return copy;
+    }
+
+    /**
+     * Returns the serialized series list. Unlike {@link #getSeriesList()} this
+     * is populated for studies read back from JSON.
+     * @return the series
+     */
+    List<OhifViewerInputSeries> getSerializedSeries()
+    {
+        return ImmutableList.copyOf(seriesList);
+    }
+
+    /**
+     * Returns the serialized series list without copying, for
+     * {@link SessionJsonSerializer}.
+     * @return the unmodifiable series
+     */
+    List<OhifViewerInputSeries> getSerializedSeriesView()
+    {
+        return Collections.unmodifiableList(seriesList);
+    }
+
+    String getPatientId()
+    {
+        return PatientID;
+    }
+
+    String getStudyDate()
+    {
+        return StudyDate;
+    }
+
+    String getStudyDescription()
+    {
+        return StudyDescription;
+    }
+
+    String getStudyTime()
+    {
+        return StudyTime;
+    }
 }
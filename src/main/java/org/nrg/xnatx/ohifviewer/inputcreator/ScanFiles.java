@@ -0,0 +1,251 @@
+/*********************************************************************
+ * Copyright (c) 2023, Institute of Cancer Research
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * (1) Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ * (2) Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ * (3) Neither the name of the Institute of Cancer Research nor the
+ *     names of its contributors may be used to endorse or promote
+ *     products derived from this software without specific prior
+ *     written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+package org.nrg.xnatx.ohifviewer.inputcreator;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.nrg.xnatx.plugin.PluginException;
+import org.nrg.xnatx.plugin.PluginUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The files of a single scan. Scans found in the SCANS directory are listed in
+ * the same depth-first order used by the etherj <code>PathScan</code>, scans
+ * built from resource catalogs list their files in catalog entry order.
+ *
+ * @author jamesd
+ */
+abstract class ScanFiles
+{
+	private static final Logger logger = LoggerFactory.getLogger(
+		ScanFiles.class);
+
+	/**
+	 * Returns one entry per child of the SCANS directory in directory listing
+	 * order. The directories are not listed until {@link #list()} is called so
+	 * that listing can be done by the worker reading the scan.
+	 * @param xnatScanPath path to the session's SCANS directory
+	 * @return the scans
+	 */
+	static List<ScanFiles> fromScanPath(String xnatScanPath)
+	{
+		List<ScanFiles> scans = new ArrayList<>();
+		File[] contents = new File(xnatScanPath).listFiles();
+		if (contents == null)
+		{
+			return scans;
+		}
+		for (File file : contents)
+		{
+			scans.add(file.isDirectory()
+				? new DirectoryScanFiles(file)
+				: new ListScanFiles(file.getName(),
+					Collections.singletonList(file)));
+		}
+		return scans;
+	}
+
+	/**
+	 * Returns a scan whose files are the entries of its DICOM resource
+	 * catalogs. Only the catalogs are read when listing, so files that are not
+	 * catalogued as DICOM are never opened.
+	 * @param scanId the scan ID
+	 * @param catalogPaths paths to the scan's DICOM resource catalogs
+	 * @return the scan
+	 */
+	static ScanFiles fromCatalogs(String scanId, List<String> catalogPaths)
+	{
+		return new CatalogScanFiles(scanId, catalogPaths);
+	}
+
+	/**
+	 * Returns a scan whose files are already known.
+	 * @param label the scan's label
+	 * @param files the files in scan order
+	 * @return the scan
+	 */
+	static ScanFiles fromFiles(String label, List<File> files)
+	{
+		return new ListScanFiles(label, files);
+	}
+
+	/**
+	 * Returns a scan that adds the time taken to list its files to the walk
+	 * phase of the build's metrics.
+	 * @param scan the scan
+	 * @param metrics the build's metrics
+	 * @return the timed scan
+	 */
+	static ScanFiles timed(ScanFiles scan, GenerationMetrics metrics)
+	{
+		return new TimedScanFiles(scan, metrics);
+	}
+
+	private final String label;
+
+	protected ScanFiles(String label)
+	{
+		this.label = label;
+	}
+
+	/**
+	 * @return the scan's label, normally its directory name
+	 */
+	String getLabel()
+	{
+		return label;
+	}
+
+	/**
+	 * @return the scan's files in scan order
+	 */
+	abstract List<File> list();
+
+	private static final class DirectoryScanFiles extends ScanFiles
+	{
+		private final File dir;
+
+		DirectoryScanFiles(File dir)
+		{
+			super(dir.getName());
+			this.dir = dir;
+		}
+
+		@Override
+		List<File> list()
+		{
+			List<File> files = new ArrayList<>();
+			addFiles(dir, files);
+			return files;
+		}
+
+		private void addFiles(File searchDir, List<File> files)
+		{
+			File[] contents = searchDir.listFiles();
+			if (contents == null)
+			{
+				return;
+			}
+			for (File file : contents)
+			{
+				if (file.isDirectory())
+				{
+					addFiles(file, files);
+				}
+				else
+				{
+					files.add(file);
+				}
+			}
+		}
+	}
+
+	private static final class CatalogScanFiles extends ScanFiles
+	{
+		private final List<String> catalogPaths;
+
+		CatalogScanFiles(String scanId, List<String> catalogPaths)
+		{
+			super(scanId);
+			this.catalogPaths = catalogPaths;
+		}
+
+		@Override
+		List<File> list()
+		{
+			List<File> files = new ArrayList<>();
+			for (String catalogPath : catalogPaths)
+			{
+				try
+				{
+					files.addAll(PluginUtils.getCatalogEntryFiles(catalogPath));
+				}
+				catch (PluginException ex)
+				{
+					logger.warn("Unable to read catalog for scan "+getLabel()+": "+
+						catalogPath, ex);
+				}
+			}
+			return files;
+		}
+	}
+
+	private static final class ListScanFiles extends ScanFiles
+	{
+		private final List<File> files;
+
+		ListScanFiles(String label, List<File> files)
+		{
+			super(label);
+			this.files = files;
+		}
+
+		@Override
+		List<File> list()
+		{
+			return files;
+		}
+	}
+
+	private static final class TimedScanFiles extends ScanFiles
+	{
+		private final ScanFiles scan;
+		private final GenerationMetrics metrics;
+
+		TimedScanFiles(ScanFiles scan, GenerationMetrics metrics)
+		{
+			super(scan.getLabel());
+			this.scan = scan;
+			this.metrics = metrics;
+		}
+
+		@Override
+		List<File> list()
+		{
+			long start = System.nanoTime();
+			try
+			{
+				return scan.list();
+			}
+			finally
+			{
+				metrics.addTime(GenerationMetrics.Phase.Walk, start);
+			}
+		}
+	}
+}
@@ -0,0 +1,124 @@
+/*********************************************************************
+ * Copyright (c) 2023, Institute of Cancer Research
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * (1) Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ * (2) Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ * (3) Neither the name of the Institute of Cancer Research nor the
+ *     names of its contributors may be used to endorse or promote
+ *     products derived from this software without specific prior
+ *     written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+package org.nrg.xnatx.ohifviewer.inputcreator;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import java.io.File;
+import java.lang.reflect.Type;
+import java.util.List;
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * The serialized studies, series and instances of a single scan, stored with a
+ * fingerprint of the scan's files. A rebuild only reads the scans whose
+ * fingerprint has changed and splices the stored fragments of the others back
+ * into the session.
+ *
+ * @author jamesd
+ */
+final class ScanFragment
+{
+	static final Type StudyListType =
+		new TypeToken<List<OhifViewerInputStudy>>(){}.getType();
+
+	/**
+	 * Returns the fingerprint of a scan's files, built from the number of files
+	 * and the path, size and modification time of each file in scan order.
+	 * @param files the files
+	 * @return the fingerprint
+	 */
+	static String fingerprint(List<File> files)
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(JsonMetadataHandler.JsonRevision).append('\n');
+		for (File file : files)
+		{
+			sb.append(file.getPath()).append('\t')
+				.append(file.length()).append('\t')
+				.append(file.lastModified()).append('\n');
+		}
+		return files.size()+":"+DigestUtils.sha1Hex(sb.toString());
+	}
+
+	private final String scanId;
+	private final String fingerprint;
+	private final String json;
+
+	/**
+	 * @param scanId the scan ID
+	 * @param fingerprint the fingerprint of the scan's files
+	 * @param json the serialized list of studies
+	 */
+	ScanFragment(String scanId, String fingerprint, String json)
+	{
+		this.scanId = scanId;
+		this.fingerprint = fingerprint;
+		this.json = json;
+	}
+
+	String getFingerprint()
+	{
+		return fingerprint;
+	}
+
+	String getJson()
+	{
+		return json;
+	}
+
+	String getScanId()
+	{
+		return scanId;
+	}
+
+	/**
+	 * Deserializes the fragment's studies.
+	 * @param gson the Gson used to serialize the fragment
+	 * @return the studies or null if the fragment cannot be read
+	 */
+	List<OhifViewerInputStudy> parse(Gson gson)
+	{
+		try
+		{
+			return gson.fromJson(json, StudyListType);
+		}
+		catch (JsonParseException ex)
+		{
+			return null;
+		}
+	}
+}
@@ -0,0 +1,98 @@
+/*********************************************************************
+ * Copyright (c) 2023, Institute of Cancer Research
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * (1) Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ * (2) Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ * (3) Neither the name of the Institute of Cancer Research nor the
+ *     names of its contributors may be used to endorse or promote
+ *     products derived from this software without specific prior
+ *     written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+package org.nrg.xnatx.ohifviewer.inputcreator;
+
+/**
+ * The viewer metadata derived from a single DICOM file, ready to be merged into
+ * the study/series/instance tree by {@link CustomDicomReceiver}. Holding only
+ * the derived objects lets files be read on any thread without keeping their
+ * <code>DicomObject</code>s alive until the merge.
+ *
+ * @author jamesd
+ */
+final class ScannedInstance
+{
+	private final String uid;
+	private final String studyUid;
+	private final String seriesUid;
+	private final OhifViewerInputStudy study;
+	private final OhifViewerInputSeries series;
+	private final OhifViewerInputInstance instance;
+
+	ScannedInstance(String uid, String studyUid, String seriesUid,
+		OhifViewerInputStudy study, OhifViewerInputSeries series,
+		OhifViewerInputInstance instance)
+	{
+		this.uid = uid;
+		this.studyUid = studyUid;
+		this.seriesUid = seriesUid;
+		this.study = study;
+		this.series = series;
+		this.instance = instance;
+	}
+
+	/**
+	 * @return the instance or null if the series has no scan ID
+	 */
+	OhifViewerInputInstance getInstance()
+	{
+		return instance;
+	}
+
+	OhifViewerInputSeries getSeries()
+	{
+		return series;
+	}
+
+	String getSeriesUid()
+	{
+		return seriesUid;
+	}
+
+	OhifViewerInputStudy getStudy()
+	{
+		return study;
+	}
+
+	String getStudyUid()
+	{
+		return studyUid;
+	}
+
+	String getUid()
+	{
+		return uid;
+	}
+}
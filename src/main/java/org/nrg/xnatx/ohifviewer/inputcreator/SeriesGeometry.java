@@ -0,0 +1,328 @@
+/*********************************************************************
+ * Copyright (c) 2023, Institute of Cancer Research
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * (1) Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ * (2) Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ * (3) Neither the name of the Institute of Cancer Research nor the
+ *     names of its contributors may be used to endorse or promote
+ *     products derived from this software without specific prior
+ *     written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+package org.nrg.xnatx.ohifviewer.inputcreator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Slice order and volume geometry of a series, computed when the series is
+ * complete so the viewer can skip its own sort and volume checks.
+ * <p>
+ * If every instance is a single frame with a valid position and all share the
+ * same orientation, the instances are sorted by the projection of their
+ * position onto the slice normal, the cross product of the row and column
+ * directions, with instance number and SOP instance UID breaking ties. The
+ * series is reconstructable as a volume if it then has at least two slices
+ * with uniform, non-zero spacing and the same rows, columns and pixel spacing
+ * throughout. Otherwise the instance order is left as it is and the series is
+ * not reconstructable.
+ *
+ * @author jamesd
+ */
+final class SeriesGeometry
+{
+	// Relative tolerances for parallel slices and uniform spacing
+	private static final double OrientationTolerance = 1e-4;
+	private static final double SpacingTolerance = 0.01;
+
+	private boolean reconstructable = false;
+	private double[] sliceNormal;
+	private Double sliceSpacing;
+	private Boolean uniformSpacing;
+	private double[] boundingBoxMin;
+	private double[] boundingBoxMax;
+
+	/**
+	 * Sorts the instances of a series into slice order where possible and
+	 * returns the geometry summary.
+	 * @param instances the instances, sorted in place
+	 * @return the summary or null if there are no instances
+	 */
+	static SeriesGeometry orderInstances(List<OhifViewerInputInstance> instances)
+	{
+		if (instances.isEmpty())
+		{
+			return null;
+		}
+		SeriesGeometry geometry = new SeriesGeometry();
+		List<Slice> slices = new ArrayList<>(instances.size());
+		for (OhifViewerInputInstance instance : instances)
+		{
+			Slice slice = Slice.create(instance);
+			if (slice == null)
+			{
+				return geometry;
+			}
+			slices.add(slice);
+		}
+		double[] normal = slices.get(0).normal;
+		for (Slice slice : slices)
+		{
+			if (!isParallel(normal, slice.normal))
+			{
+				return geometry;
+			}
+			slice.distance = dot(slice.position, normal);
+		}
+		Collections.sort(slices, new SliceComparator());
+		for (int i=0; i<slices.size(); i++)
+		{
+			instances.set(i, slices.get(i).instance);
+		}
+
+		geometry.sliceNormal = normal;
+		geometry.setBoundingBox(slices);
+		if (slices.size() < 2)
+		{
+			return geometry;
+		}
+		int count = slices.size();
+		double first = slices.get(0).distance;
+		double last = slices.get(count-1).distance;
+		double mean = (last-first)/(count-1);
+		geometry.sliceSpacing = mean;
+		boolean uniform = (mean > 0);
+		for (int i=1; uniform && (i<count); i++)
+		{
+			double spacing = slices.get(i).distance-slices.get(i-1).distance;
+			uniform = Math.abs(spacing-mean) <= SpacingTolerance*mean;
+		}
+		geometry.uniformSpacing = uniform;
+		geometry.reconstructable = uniform && haveSameGrid(slices);
+		return geometry;
+	}
+
+	public double[] getBoundingBoxMax()
+	{
+		return boundingBoxMax;
+	}
+
+	public double[] getBoundingBoxMin()
+	{
+		return boundingBoxMin;
+	}
+
+	public double[] getSliceNormal()
+	{
+		return sliceNormal;
+	}
+
+	public Double getSliceSpacing()
+	{
+		return sliceSpacing;
+	}
+
+	public Boolean isUniformSpacing()
+	{
+		return uniformSpacing;
+	}
+
+	public boolean isReconstructable()
+	{
+		return reconstructable;
+	}
+
+	private void setBoundingBox(List<Slice> slices)
+	{
+		double[] min = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+		double[] max = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+		for (Slice slice : slices)
+		{
+			double[] p = slice.position;
+			double[] r = scale(slice.row, slice.width);
+			double[] c = scale(slice.column, slice.height);
+			double[][] corners = {p, add(p, r), add(p, c), add(add(p, r), c)};
+			for (double[] corner : corners)
+			{
+				for (int i=0; i<3; i++)
+				{
+					min[i] = Math.min(min[i], corner[i]);
+					max[i] = Math.max(max[i], corner[i]);
+				}
+			}
+		}
+		boundingBoxMin = min;
+		boundingBoxMax = max;
+	}
+
+	private static double[] add(double[] a, double[] b)
+	{
+		return new double[] {a[0]+b[0], a[1]+b[1], a[2]+b[2]};
+	}
+
+	private static double[] cross(double[] a, double[] b)
+	{
+		return new double[] {
+			a[1]*b[2]-a[2]*b[1],
+			a[2]*b[0]-a[0]*b[2],
+			a[0]*b[1]-a[1]*b[0]};
+	}
+
+	private static double dot(double[] a, double[] b)
+	{
+		return a[0]*b[0]+a[1]*b[1]+a[2]*b[2];
+	}
+
+	private static boolean haveSameGrid(List<Slice> slices)
+	{
+		Slice first = slices.get(0);
+		for (Slice slice : slices)
+		{
+			if ((slice.rows != first.rows) || (slice.columns != first.columns) ||
+				 (slice.width != first.width) || (slice.height != first.height))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isFinite(double[] values, int length)
+	{
+		if ((values == null) || (values.length != length))
+		{
+			return false;
+		}
+		for (double value : values)
+		{
+			if (Double.isNaN(value) || Double.isInfinite(value))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isParallel(double[] a, double[] b)
+	{
+		return Math.abs(dot(a, b)) >= 1-OrientationTolerance;
+	}
+
+	private static double[] scale(double[] a, double factor)
+	{
+		return new double[] {a[0]*factor, a[1]*factor, a[2]*factor};
+	}
+
+	private SeriesGeometry()
+	{}
+
+	private static final class Slice
+	{
+		private final OhifViewerInputInstance instance;
+		private final double[] position;
+		private final double[] row;
+		private final double[] column;
+		private final double[] normal;
+		private final int rows;
+		private final int columns;
+		private final double width;
+		private final double height;
+		private double distance;
+
+		/**
+		 * @return the slice or null if the instance has no usable geometry
+		 */
+		static Slice create(OhifViewerInputInstance instance)
+		{
+			OhifViewerInputInstanceMetadata md = instance.getMetadata();
+			if ((md == null) || (md.getNumberOfFrames() > 1) ||
+				 !isFinite(md.getImagePositionPatient(), 3) ||
+				 !isFinite(md.getImageOrientationPatient(), 6) ||
+				 !isFinite(md.getPixelSpacing(), 2))
+			{
+				return null;
+			}
+			double[] iop = md.getImageOrientationPatient();
+			double[] row = {iop[0], iop[1], iop[2]};
+			double[] column = {iop[3], iop[4], iop[5]};
+			double[] normal = cross(row, column);
+			double length = Math.sqrt(dot(normal, normal));
+			if (length < OrientationTolerance)
+			{
+				return null;
+			}
+			return new Slice(instance, md, row, column,
+				scale(normal, 1/length));
+		}
+
+		private Slice(OhifViewerInputInstance instance,
+			OhifViewerInputInstanceMetadata md, double[] row, double[] column,
+			double[] normal)
+		{
+			this.instance = instance;
+			this.row = row;
+			this.column = column;
+			this.normal = normal;
+			position = md.getImagePositionPatient();
+			rows = md.getRows();
+			columns = md.getColumns();
+			// Pixel spacing is between rows then between columns
+			double[] spacing = md.getPixelSpacing();
+			width = Math.max(columns-1, 0)*spacing[1];
+			height = Math.max(rows-1, 0)*spacing[0];
+		}
+	}
+
+	private static final class SliceComparator implements Comparator<Slice>
+	{
+		@Override
+		public int compare(Slice a, Slice b)
+		{
+			int result = Double.compare(a.distance, b.distance);
+			if (result != 0)
+			{
+				return result;
+			}
+			OhifViewerInputInstanceMetadata mdA = a.instance.getMetadata();
+			OhifViewerInputInstanceMetadata mdB = b.instance.getMetadata();
+			result = Integer.compare(mdA.getInstanceNumber(),
+				mdB.getInstanceNumber());
+			if (result != 0)
+			{
+				return result;
+			}
+			String uidA = mdA.getSOPInstanceUID();
+			String uidB = mdB.getSOPInstanceUID();
+			if (uidA == null)
+			{
+				return (uidB == null) ? 0 : -1;
+			}
+			return (uidB == null) ? 1 : uidA.compareTo(uidB);
+		}
+	}
+}
@@ -0,0 +1,198 @@
+/*********************************************************************
+ * Copyright (c) 2023, Institute of Cancer Research
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * (1) Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ * (2) Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ * (3) Neither the name of the Institute of Cancer Research nor the
+ *     names of its contributors may be used to endorse or promote
+ *     products derived from this software without specific prior
+ *     written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+package org.nrg.xnatx.ohifviewer.inputcreator;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.nrg.xnatx.plugin.PluginCode;
+import org.nrg.xnatx.plugin.PluginException;
+
+/**
+ * Single-flight registry of session JSON builds. Only one build of a session
+ * runs at a time in the process, and a request for a session whose build is
+ * in flight waits for that build and shares its outcome instead of walking
+ * the DICOM again.
+ * <p>
+ * A request that must see changes made before it was issued, such as a
+ * rebuild triggered by modified DICOM, cannot share a build that may have
+ * read the session before the change. It waits for the build in flight and
+ * then runs or joins the next one, so a burst of such requests still costs a
+ * single further build.
+ * <p>
+ * A request waiting on a build in flight raises the build's
+ * {@link BuildScheduler.Ticket} to its own priority, so an interactive request
+ * joining a bulk build is not left waiting for a bulk slot.
+ *
+ * @author jamesd
+ */
+final class SessionBuildRegistry
+{
+	private final ConcurrentMap<String,Flight> inFlight =
+		new ConcurrentHashMap<>();
+	private final AtomicLong builds = new AtomicLong();
+	private final AtomicLong joins = new AtomicLong();
+
+	/**
+	 * Runs the build of the session unless one is in flight.
+	 * @param sessionId the session ID
+	 * @param fresh true if a build in flight when called cannot be shared
+	 * @param ticket the ticket the build is scheduled with, which also gives
+	 * the priority this request raises a build in flight to
+	 * @param build the build
+	 * @return true if the build was run by this call, false if an in-flight
+	 * build was shared
+	 * @throws PluginException if the build run or shared fails
+	 */
+	boolean run(String sessionId, boolean fresh, BuildScheduler.Ticket ticket,
+		Build build) throws PluginException
+	{
+		boolean shareable = !fresh;
+		while (true)
+		{
+			Flight flight = new Flight(ticket);
+			Flight current = inFlight.putIfAbsent(sessionId, flight);
+			if (current == null)
+			{
+				builds.incrementAndGet();
+				try
+				{
+					build.run();
+				}
+				catch (Throwable ex)
+				{
+					// Deregister before completion so no waiter can share a
+					// finished build
+					inFlight.remove(sessionId, flight);
+					flight.done.completeExceptionally(ex);
+					throw ex;
+				}
+				inFlight.remove(sessionId, flight);
+				flight.done.complete(null);
+				return true;
+			}
+			current.ticket.raise(ticket.getPriority());
+			try
+			{
+				await(current.done);
+			}
+			catch (PluginException ex)
+			{
+				if (shareable)
+				{
+					throw ex;
+				}
+			}
+			if (shareable)
+			{
+				joins.incrementAndGet();
+				return false;
+			}
+			// Any later build started after this call
+			shareable = true;
+		}
+	}
+
+	/**
+	 * @return the number of builds run
+	 */
+	long getBuildCount()
+	{
+		return builds.get();
+	}
+
+	/**
+	 * @return the number of sessions with a build in flight
+	 */
+	int getInFlightCount()
+	{
+		return inFlight.size();
+	}
+
+	/**
+	 * @return the number of requests that shared a build in flight
+	 */
+	long getJoinCount()
+	{
+		return joins.get();
+	}
+
+	private void await(CompletableFuture<Void> flight) throws PluginException
+	{
+		try
+		{
+			flight.get();
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new PluginException(
+				"Interrupted waiting for session JSON creation",
+				PluginCode.HttpInternalError, ex);
+		}
+		catch (ExecutionException ex)
+		{
+			Throwable cause = ex.getCause();
+			if (cause instanceof PluginException)
+			{
+				throw (PluginException) cause;
+			}
+			throw new PluginException(
+				"Session JSON creation failed: "+cause.getMessage(),
+				PluginCode.HttpInternalError, cause);
+		}
+	}
+
+	private static final class Flight
+	{
+		private final CompletableFuture<Void> done = new CompletableFuture<>();
+		private final BuildScheduler.Ticket ticket;
+
+		Flight(BuildScheduler.Ticket ticket)
+		{
+			this.ticket = ticket;
+		}
+	}
+
+	/**
+	 * A session JSON build.
+	 */
+	interface Build
+	{
+		void run() throws PluginException;
+	}
+}
@@ -0,0 +1,594 @@
+/*********************************************************************
+ * Copyright (c) 2023, Institute of Cancer Research
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * (1) Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ * (2) Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ * (3) Neither the name of the Institute of Cancer Research nor the
+ *     names of its contributors may be used to endorse or promote
+ *     products derived from this software without specific prior
+ *     written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+package org.nrg.xnatx.ohifviewer.inputcreator;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.internal.bind.JsonTreeReader;
+import com.google.gson.internal.bind.JsonTreeWriter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Session JSON format from revision 3. Instance metadata values that are the
+ * same for every instance of a series are written once in a "metadata" object
+ * on the series and left out of the instances, which then only hold what
+ * differs between them such as position, instance number and SOP instance
+ * UID. From revision 4, if the instances of a series share a directory its URL
+ * is written once as the series' "urlPrefix" and each instance's "url" holds
+ * only the file name. A series with a single instance is written as before.
+ * <p>
+ * The Gson from {@link #createGson()} writes this format and expands it again
+ * when reading series. Clients that only understand the expanded format can be
+ * served the output of {@link #expand(Reader, Writer)}.
+ *
+ * @author jamesd
+ */
+final class SessionJsonFormat
+{
+	static final String Metadata = "metadata";
+	static final String Url = "url";
+	static final String UrlPrefix = "urlPrefix";
+	private static final String Instances = "instances";
+	private static final String Series = "series";
+	private static final String Studies = "studies";
+
+	/**
+	 * Returns a Gson that writes series with hoisted metadata and expands it
+	 * when reading.
+	 * @return the Gson
+	 */
+	static Gson createGson()
+	{
+		return new GsonBuilder().serializeSpecialFloatingPointValues()
+			.registerTypeAdapterFactory(new InstanceAdapterFactory())
+			.registerTypeAdapterFactory(new HoistingAdapterFactory())
+			.create();
+	}
+
+	/**
+	 * Returns a Gson that writes the expanded format of revision 2.
+	 * @return the Gson
+	 */
+	static Gson createExpandedGson()
+	{
+		return new GsonBuilder().serializeSpecialFloatingPointValues()
+			.registerTypeAdapterFactory(new InstanceAdapterFactory())
+			.create();
+	}
+
+	/**
+	 * Copies session JSON with hoisted metadata to the expanded format, one
+	 * series at a time. The output is identical to that of the expanded Gson
+	 * for the same session.
+	 * @param reader the hoisted JSON
+	 * @param writer the destination
+	 * @throws IOException if either side fails or the input is not session JSON
+	 */
+	static void expand(Reader reader, Writer writer) throws IOException
+	{
+		Gson hoisted = createGson();
+		Gson expanded = createExpandedGson();
+		TypeAdapter<JsonElement> elementAdapter = hoisted.getAdapter(
+			JsonElement.class);
+		JsonReader in = new JsonReader(reader);
+		in.setLenient(true);
+		JsonWriter out = expanded.newJsonWriter(writer);
+
+		in.beginObject();
+		out.beginObject();
+		while (in.hasNext())
+		{
+			String name = in.nextName();
+			out.name(name);
+			if (!Studies.equals(name) || (in.peek() != JsonToken.BEGIN_ARRAY))
+			{
+				expanded.toJson(elementAdapter.read(in), out);
+				continue;
+			}
+			in.beginArray();
+			out.beginArray();
+			while (in.hasNext())
+			{
+				expandStudy(in, out, hoisted, expanded, elementAdapter);
+			}
+			in.endArray();
+			out.endArray();
+		}
+		in.endObject();
+		out.endObject();
+		out.flush();
+	}
+
+	/**
+	 * Copies session JSON in the expanded format to the hoisted format. Any
+	 * content other than the series is copied unchanged.
+	 * @param json the expanded JSON
+	 * @param writer the destination
+	 * @throws IOException if the output cannot be written
+	 */
+	static void hoist(String json, Writer writer) throws IOException
+	{
+		Gson gson = createGson();
+		JsonElement root = gson.fromJson(json, JsonElement.class);
+		JsonElement studies = ((root != null) && root.isJsonObject())
+			? root.getAsJsonObject().get(Studies)
+			: null;
+		if ((studies != null) && studies.isJsonArray())
+		{
+			for (JsonElement study : studies.getAsJsonArray())
+			{
+				JsonElement series = study.isJsonObject()
+					? study.getAsJsonObject().get(Series)
+					: null;
+				if ((series == null) || !series.isJsonArray())
+				{
+					continue;
+				}
+				JsonArray seriesArray = series.getAsJsonArray();
+				for (int i=0; i<seriesArray.size(); i++)
+				{
+					if (seriesArray.get(i).isJsonObject())
+					{
+						seriesArray.set(i,
+							hoist(seriesArray.get(i).getAsJsonObject()));
+					}
+				}
+			}
+		}
+		JsonWriter out = gson.newJsonWriter(writer);
+		gson.toJson(root, out);
+		out.flush();
+	}
+
+	/**
+	 * Hoists the metadata values and URL prefix shared by all instances of a
+	 * series. Null values are treated as absent.
+	 * @param series the series, whose instances are modified
+	 * @return the series with hoisted values, or the input if nothing is
+	 * shared
+	 */
+	static JsonObject hoist(JsonObject series)
+	{
+		JsonElement instancesElement = series.get(Instances);
+		if ((instancesElement == null) || !instancesElement.isJsonArray() ||
+			 series.has(Metadata) || series.has(UrlPrefix))
+		{
+			return series;
+		}
+		JsonArray instances = instancesElement.getAsJsonArray();
+		if (instances.size() < 2)
+		{
+			return series;
+		}
+		List<JsonObject> instanceObjs = new ArrayList<>(instances.size());
+		for (JsonElement instance : instances)
+		{
+			if (!instance.isJsonObject())
+			{
+				return series;
+			}
+			instanceObjs.add(instance.getAsJsonObject());
+		}
+		JsonObject shared = hoistMetadata(instanceObjs);
+		String urlPrefix = hoistUrlPrefix(instanceObjs);
+		if ((shared == null) && (urlPrefix == null))
+		{
+			return series;
+		}
+
+		JsonObject result = new JsonObject();
+		for (Map.Entry<String,JsonElement> entry : series.entrySet())
+		{
+			if (!Instances.equals(entry.getKey()))
+			{
+				result.add(entry.getKey(), entry.getValue());
+			}
+		}
+		if (shared != null)
+		{
+			result.add(Metadata, shared);
+		}
+		if (urlPrefix != null)
+		{
+			result.addProperty(UrlPrefix, urlPrefix);
+		}
+		result.add(Instances, instances);
+		return result;
+	}
+
+	/**
+	 * Copies the hoisted metadata and URL prefix of a series back into its
+	 * instances and removes them from the series. Metadata values held by an
+	 * instance take precedence.
+	 * @param series the series to expand in place
+	 */
+	static void expand(JsonObject series)
+	{
+		JsonElement sharedElement = series.remove(Metadata);
+		JsonElement urlPrefixElement = series.remove(UrlPrefix);
+		JsonElement instances = series.get(Instances);
+		if ((instances == null) || !instances.isJsonArray())
+		{
+			return;
+		}
+		JsonObject shared = ((sharedElement != null) &&
+			sharedElement.isJsonObject()) ? sharedElement.getAsJsonObject() : null;
+		String urlPrefix = isString(urlPrefixElement)
+			? urlPrefixElement.getAsString()
+			: null;
+		for (JsonElement instance : instances.getAsJsonArray())
+		{
+			if (!instance.isJsonObject())
+			{
+				continue;
+			}
+			JsonObject instanceObj = instance.getAsJsonObject();
+			if (shared != null)
+			{
+				expandMetadata(instanceObj, shared);
+			}
+			JsonElement url = instanceObj.get(Url);
+			if ((urlPrefix != null) && isString(url))
+			{
+				instanceObj.addProperty(Url, urlPrefix+url.getAsString());
+			}
+		}
+	}
+
+	private static void expandStudy(JsonReader in, JsonWriter out,
+		Gson hoisted, Gson expanded, TypeAdapter<JsonElement> elementAdapter)
+		throws IOException
+	{
+		if (in.peek() != JsonToken.BEGIN_OBJECT)
+		{
+			expanded.toJson(elementAdapter.read(in), out);
+			return;
+		}
+		in.beginObject();
+		out.beginObject();
+		while (in.hasNext())
+		{
+			String name = in.nextName();
+			out.name(name);
+			if (!Series.equals(name) || (in.peek() != JsonToken.BEGIN_ARRAY))
+			{
+				expanded.toJson(elementAdapter.read(in), out);
+				continue;
+			}
+			in.beginArray();
+			out.beginArray();
+			while (in.hasNext())
+			{
+				// Round trip through the object so numbers, including NaN, are
+				// written exactly as the expanded Gson writes them
+				OhifViewerInputSeries series = hoisted.fromJson(in,
+					OhifViewerInputSeries.class);
+				expanded.toJson(series, OhifViewerInputSeries.class, out);
+			}
+			in.endArray();
+			out.endArray();
+		}
+		in.endObject();
+		out.endObject();
+	}
+
+	private static void expandMetadata(JsonObject instance, JsonObject shared)
+	{
+		JsonElement md = instance.get(Metadata);
+		if ((md == null) || !md.isJsonObject())
+		{
+			md = new JsonObject();
+			instance.add(Metadata, md);
+		}
+		JsonObject mdObj = md.getAsJsonObject();
+		for (Map.Entry<String,JsonElement> entry : shared.entrySet())
+		{
+			JsonElement value = mdObj.get(entry.getKey());
+			if ((value == null) || value.isJsonNull())
+			{
+				mdObj.add(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Removes the metadata values shared by all instances.
+	 * @return the shared values or null if there are none
+	 */
+	private static JsonObject hoistMetadata(List<JsonObject> instances)
+	{
+		List<JsonObject> metadata = new ArrayList<>(instances.size());
+		for (JsonObject instance : instances)
+		{
+			JsonElement md = instance.get(Metadata);
+			if ((md == null) || !md.isJsonObject())
+			{
+				return null;
+			}
+			metadata.add(md.getAsJsonObject());
+		}
+
+		JsonObject shared = new JsonObject();
+		JsonObject first = metadata.get(0);
+		for (Map.Entry<String,JsonElement> entry : first.entrySet())
+		{
+			if (!entry.getValue().isJsonNull() &&
+				 isShared(entry.getKey(), entry.getValue(), metadata))
+			{
+				shared.add(entry.getKey(), entry.getValue());
+			}
+		}
+		if (shared.entrySet().isEmpty())
+		{
+			return null;
+		}
+		for (JsonObject md : metadata)
+		{
+			for (Map.Entry<String,JsonElement> entry : shared.entrySet())
+			{
+				md.remove(entry.getKey());
+			}
+		}
+		return shared;
+	}
+
+	/**
+	 * Reduces the URLs of the instances to their file names if they are all in
+	 * the same directory.
+	 * @return the directory URL or null if they differ
+	 */
+	private static String hoistUrlPrefix(List<JsonObject> instances)
+	{
+		String prefix = null;
+		for (JsonObject instance : instances)
+		{
+			JsonElement url = instance.get(Url);
+			if (!isString(url))
+			{
+				return null;
+			}
+			String value = url.getAsString();
+			int idx = value.lastIndexOf('/')+1;
+			if (idx == 0)
+			{
+				return null;
+			}
+			if (prefix == null)
+			{
+				prefix = value.substring(0, idx);
+			}
+			else if ((idx != prefix.length()) || !value.startsWith(prefix))
+			{
+				return null;
+			}
+		}
+		int length = prefix.length();
+		for (JsonObject instance : instances)
+		{
+			instance.addProperty(Url,
+				instance.get(Url).getAsString().substring(length));
+		}
+		return prefix;
+	}
+
+	private static boolean isString(JsonElement element)
+	{
+		return (element != null) && element.isJsonPrimitive() &&
+			element.getAsJsonPrimitive().isString();
+	}
+
+	private static boolean isShared(String name, JsonElement value,
+		List<JsonObject> metadata)
+	{
+		for (JsonObject md : metadata)
+		{
+			JsonElement other = md.get(name);
+			if ((other == null) || !value.equals(other))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private SessionJsonFormat()
+	{}
+
+	private static final class HoistingAdapterFactory
+		implements TypeAdapterFactory
+	{
+		@Override
+		public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type)
+		{
+			if (type.getRawType() != OhifViewerInputSeries.class)
+			{
+				return null;
+			}
+			final TypeAdapter<T> delegate = gson.getDelegateAdapter(this, type);
+			final TypeAdapter<JsonElement> elementAdapter = gson.getAdapter(
+				JsonElement.class);
+			return new TypeAdapter<T>()
+			{
+				@Override
+				public void write(JsonWriter out, T value) throws IOException
+				{
+					if (value == null)
+					{
+						out.nullValue();
+						return;
+					}
+					// Lenient like the writer, TypeAdapter.toJsonTree() rejects
+					// NaN values
+					JsonTreeWriter treeWriter = new JsonTreeWriter();
+					treeWriter.setLenient(true);
+					treeWriter.setSerializeNulls(false);
+					delegate.write(treeWriter, value);
+					JsonElement tree = treeWriter.get();
+					if (tree.isJsonObject())
+					{
+						tree = hoist(tree.getAsJsonObject());
+					}
+					elementAdapter.write(out, tree);
+				}
+
+				@Override
+				public T read(JsonReader in) throws IOException
+				{
+					JsonElement tree = elementAdapter.read(in);
+					if (tree.isJsonObject())
+					{
+						expand(tree.getAsJsonObject());
+					}
+					// As above for reading
+					JsonTreeReader treeReader = new JsonTreeReader(tree);
+					treeReader.setLenient(true);
+					return delegate.read(treeReader);
+				}
+			};
+		}
+	}
+
+	/**
+	 * Writes instances with their full URL and shares the URL prefixes of the
+	 * instances read.
+	 */
+	private static final class InstanceAdapterFactory
+		implements TypeAdapterFactory
+	{
+		@Override
+		@SuppressWarnings("unchecked")
+		public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type)
+		{
+			if (type.getRawType() != OhifViewerInputInstance.class)
+			{
+				return null;
+			}
+			return (TypeAdapter<T>) new InstanceAdapter(
+				gson.getAdapter(OhifViewerInputInstanceMetadata.class));
+		}
+	}
+
+	private static final class InstanceAdapter
+		extends TypeAdapter<OhifViewerInputInstance>
+	{
+		private final TypeAdapter<OhifViewerInputInstanceMetadata> metadataAdapter;
+		private final ConcurrentMap<String,String> urlPrefixes =
+			new ConcurrentHashMap<>();
+
+		InstanceAdapter(
+			TypeAdapter<OhifViewerInputInstanceMetadata> metadataAdapter)
+		{
+			this.metadataAdapter = metadataAdapter;
+		}
+
+		@Override
+		public void write(JsonWriter out, OhifViewerInputInstance instance)
+			throws IOException
+		{
+			if (instance == null)
+			{
+				out.nullValue();
+				return;
+			}
+			out.beginObject();
+			if (instance.getMetadata() != null)
+			{
+				out.name(Metadata);
+				metadataAdapter.write(out, instance.getMetadata());
+			}
+			String url = instance.getUrl();
+			if (url != null)
+			{
+				out.name(Url).value(url);
+			}
+			out.endObject();
+		}
+
+		@Override
+		public OhifViewerInputInstance read(JsonReader in) throws IOException
+		{
+			if (in.peek() == JsonToken.NULL)
+			{
+				in.nextNull();
+				return null;
+			}
+			OhifViewerInputInstanceMetadata metadata = null;
+			String url = null;
+			in.beginObject();
+			while (in.hasNext())
+			{
+				String name = in.nextName();
+				if (Metadata.equals(name))
+				{
+					metadata = metadataAdapter.read(in);
+				}
+				else if (Url.equals(name) && (in.peek() == JsonToken.STRING))
+				{
+					url = in.nextString();
+				}
+				else
+				{
+					in.skipValue();
+				}
+			}
+			in.endObject();
+			if (url == null)
+			{
+				return new OhifViewerInputInstance(metadata, null, null);
+			}
+			int idx = url.lastIndexOf('/')+1;
+			String prefix = url.substring(0, idx);
+			String shared = urlPrefixes.putIfAbsent(prefix, prefix);
+			return new OhifViewerInputInstance(metadata,
+				(shared != null) ? shared : prefix, url.substring(idx));
+		}
+	}
+}
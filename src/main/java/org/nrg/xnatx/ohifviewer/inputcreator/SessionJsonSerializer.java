@@ -0,0 +1,959 @@
+/*********************************************************************
+ * Copyright (c) 2023, Institute of Cancer Research
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * (1) Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ * (2) Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ * (3) Neither the name of the Institute of Cancer Research nor the
+ *     names of its contributors may be used to endorse or promote
+ *     products derived from this software without specific prior
+ *     written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+package org.nrg.xnatx.ohifviewer.inputcreator;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * Writes session JSON from the {@link OhifViewerInput} tree without
+ * reflection or an intermediate JSON tree. The output is byte-identical to
+ * that of the Gson from {@link SessionJsonFormat#createGson()}: fields in
+ * declaration order with nulls left out, strings escaped as Gson escapes them
+ * with HTML-safe escaping, numbers as <code>Integer.toString</code> and
+ * <code>Double.toString</code> write them and the shared metadata and URL
+ * prefix of each series hoisted by the same rules as
+ * {@link SessionJsonFormat#hoist(com.google.gson.JsonObject)}.
+ * <p>
+ * Characters are collected in a buffer and written to the output in blocks.
+ * Integers and doubles with integral values below 10<sup>7</sup>, the common
+ * case for DICOM attributes, are formatted into the buffer without
+ * allocating.
+ * <p>
+ * A session can be written whole with {@link #write(OhifViewerInput)} or a
+ * piece at a time, as {@link SessionJsonStreamWriter} does, with
+ * {@link #beginSession(String)}, {@link #beginStudy()},
+ * {@link #writeSeries(OhifViewerInputSeries)}, {@link #endStudy} and
+ * {@link #endSession()}. Instances are not thread safe.
+ *
+ * @author jamesd
+ */
+final class SessionJsonSerializer
+{
+	private static final int BufferSize = 8192;
+	// Double.toString() switches to computerized scientific notation here
+	private static final double PlainLimit = 1e7;
+	private static final String[] Replacements = createReplacements();
+	private static final Field[] MetadataFields = createMetadataFields();
+
+	private final Writer out;
+	private final char[] buffer = new char[BufferSize];
+	private final char[] digits = new char[20];
+	private final boolean[] shared = new boolean[MetadataFields.length];
+	private int position = 0;
+	// True until the first element of the innermost open array is written
+	private boolean first = true;
+
+	/**
+	 * @param out the destination
+	 */
+	SessionJsonSerializer(Writer out)
+	{
+		this.out = out;
+	}
+
+	/**
+	 * Writes a whole session. The output is flushed.
+	 * @param input the session
+	 * @throws IOException if the output cannot be written
+	 */
+	void write(OhifViewerInput input) throws IOException
+	{
+		if (input == null)
+		{
+			append("null");
+			flush();
+			return;
+		}
+		beginSession(input.getTransactionId());
+		for (OhifViewerInputStudy study : input.getStudiesView())
+		{
+			if (study == null)
+			{
+				separate();
+				append("null");
+				first = false;
+				continue;
+			}
+			beginStudy();
+			for (OhifViewerInputSeries series : study.getSerializedSeriesView())
+			{
+				writeSeries(series);
+			}
+			endStudy(study);
+		}
+		endSession();
+	}
+
+	/**
+	 * Starts the session object and opens its array of studies.
+	 * @param transactionId the transaction ID, left out if null
+	 * @throws IOException if the output cannot be written
+	 */
+	void beginSession(String transactionId) throws IOException
+	{
+		append('{');
+		if (transactionId != null)
+		{
+			append("\"transactionId\":");
+			writeString(transactionId);
+			append(',');
+		}
+		append("\"studies\":[");
+		first = true;
+	}
+
+	/**
+	 * Starts a study and opens its array of series.
+	 * @throws IOException if the output cannot be written
+	 */
+	void beginStudy() throws IOException
+	{
+		separate();
+		append("{\"series\":[");
+		first = true;
+	}
+
+	/**
+	 * Writes a series of the open study with its shared metadata and URL
+	 * prefix hoisted.
+	 * @param series the series
+	 * @throws IOException if the output cannot be written
+	 */
+	void writeSeries(OhifViewerInputSeries series) throws IOException
+	{
+		separate();
+		first = false;
+		if (series == null)
+		{
+			append("null");
+			return;
+		}
+		List<OhifViewerInputInstance> instances = series.getInstancesView();
+		boolean hoistable = isHoistable(instances);
+		boolean hoistMetadata = hoistable && findSharedMetadata(instances);
+		String urlPrefix = hoistable ? findUrlPrefix(instances) : null;
+
+		append('{');
+		boolean comma = false;
+		comma = stringField("Modality", series.getModality(), comma);
+		comma = stringField("SeriesDate", series.getSeriesDate(), comma);
+		comma = stringField("SeriesDescription", series.getSeriesDescription(),
+			comma);
+		comma = stringField("SeriesInstanceUID", series.getSeriesInstanceUid(),
+			comma);
+		name("SeriesNumber", comma);
+		writeLong(series.getSeriesNumber());
+		stringField("SeriesTime", series.getSeriesTime(), true);
+		SeriesGeometry geometry = series.getGeometry();
+		if (geometry != null)
+		{
+			name("geometry", true);
+			writeGeometry(geometry);
+		}
+		if (hoistMetadata)
+		{
+			name(SessionJsonFormat.Metadata, true);
+			writeMetadata(instances.get(0).getMetadata(), true, true);
+		}
+		if (urlPrefix != null)
+		{
+			name(SessionJsonFormat.UrlPrefix, true);
+			writeString(urlPrefix);
+		}
+		name("instances", true);
+		append('[');
+		int urlPrefixLength = (urlPrefix != null) ? urlPrefix.length() : 0;
+		for (int i=0; i<instances.size(); i++)
+		{
+			if (i > 0)
+			{
+				append(',');
+			}
+			writeInstance(instances.get(i), hoistMetadata, urlPrefixLength);
+		}
+		append("]}");
+	}
+
+	/**
+	 * Writes series of the open study that another serializer has already
+	 * written, comma separated, with {@link #writeSeries}.
+	 * @param json the series, nothing is written if empty
+	 * @throws IOException if the output cannot be written
+	 */
+	void writeSerializedSeries(String json) throws IOException
+	{
+		if (json.isEmpty())
+		{
+			return;
+		}
+		separate();
+		first = false;
+		append(json);
+	}
+
+	/**
+	 * Closes the array of series and writes the remaining attributes of the
+	 * study.
+	 * @param study the study's attributes, its series are not written
+	 * @throws IOException if the output cannot be written
+	 */
+	void endStudy(OhifViewerInputStudy study) throws IOException
+	{
+		append(']');
+		stringField("PatientID", study.getPatientId(), true);
+		stringField("PatientName", study.getPatientName(), true);
+		stringField("StudyDate", study.getStudyDate(), true);
+		stringField("StudyDescription", study.getStudyDescription(), true);
+		stringField("StudyInstanceUID", study.getStudyInstanceUid(), true);
+		stringField("StudyTime", study.getStudyTime(), true);
+		append('}');
+		first = false;
+	}
+
+	/**
+	 * Closes the array of studies and the session and flushes the output.
+	 * @throws IOException if the output cannot be written
+	 */
+	void endSession() throws IOException
+	{
+		append("]}");
+		flush();
+	}
+
+	/**
+	 * Writes the buffered characters to the output and flushes it.
+	 * @throws IOException if the output cannot be written
+	 */
+	void flush() throws IOException
+	{
+		drain();
+		out.flush();
+	}
+
+	/**
+	 * True if the instances of a series are candidates for hoisting: at least
+	 * two and none null.
+	 */
+	private static boolean isHoistable(List<OhifViewerInputInstance> instances)
+	{
+		if (instances.size() < 2)
+		{
+			return false;
+		}
+		for (OhifViewerInputInstance instance : instances)
+		{
+			if (instance == null)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Marks the metadata fields with the same non-null value in every
+	 * instance.
+	 * @return true if any field is shared
+	 */
+	private boolean findSharedMetadata(List<OhifViewerInputInstance> instances)
+	{
+		for (OhifViewerInputInstance instance : instances)
+		{
+			if (instance.getMetadata() == null)
+			{
+				return false;
+			}
+		}
+		OhifViewerInputInstanceMetadata firstMd = instances.get(0).getMetadata();
+		boolean any = false;
+		for (int i=0; i<MetadataFields.length; i++)
+		{
+			Field field = MetadataFields[i];
+			boolean isShared = !field.isNull(firstMd);
+			for (int j=1; isShared && (j<instances.size()); j++)
+			{
+				OhifViewerInputInstanceMetadata md = instances.get(j).getMetadata();
+				isShared = !field.isNull(md) && field.isEqual(firstMd, md);
+			}
+			shared[i] = isShared;
+			any |= isShared;
+		}
+		return any;
+	}
+
+	/**
+	 * Returns the directory URL shared by all instances or null if any URL
+	 * is missing, has no directory or is in a different directory.
+	 */
+	private static String findUrlPrefix(List<OhifViewerInputInstance> instances)
+	{
+		String prefix = null;
+		for (OhifViewerInputInstance instance : instances)
+		{
+			String directory;
+			if (isSplit(instance))
+			{
+				directory = instance.getUrlPrefix();
+			}
+			else
+			{
+				String url = instance.getUrl();
+				if (url == null)
+				{
+					return null;
+				}
+				int idx = url.lastIndexOf('/')+1;
+				if (idx == 0)
+				{
+					return null;
+				}
+				directory = url.substring(0, idx);
+			}
+			if (prefix == null)
+			{
+				prefix = directory;
+			}
+			else if ((directory != prefix) && !directory.equals(prefix))
+			{
+				return null;
+			}
+		}
+		return prefix;
+	}
+
+	/**
+	 * True if the instance's URL prefix is exactly the directory of its URL,
+	 * so the URL need not be built to split it.
+	 */
+	private static boolean isSplit(OhifViewerInputInstance instance)
+	{
+		String urlPrefix = instance.getUrlPrefix();
+		String file = instance.getFile();
+		return (urlPrefix != null) && (file != null) && urlPrefix.endsWith("/") &&
+			(file.indexOf('/') < 0);
+	}
+
+	private void writeInstance(OhifViewerInputInstance instance,
+		boolean hoistMetadata, int urlPrefixLength) throws IOException
+	{
+		if (instance == null)
+		{
+			append("null");
+			return;
+		}
+		append('{');
+		boolean comma = false;
+		if (instance.getMetadata() != null)
+		{
+			name(SessionJsonFormat.Metadata, false);
+			writeMetadata(instance.getMetadata(), hoistMetadata, false);
+			comma = true;
+		}
+		if (instance.getFile() != null)
+		{
+			name(SessionJsonFormat.Url, comma);
+			if (urlPrefixLength == 0)
+			{
+				// As the concatenation in getUrl()
+				append('"');
+				appendEscaped(String.valueOf(instance.getUrlPrefix()), 0);
+				appendEscaped(instance.getFile(), 0);
+				append('"');
+			}
+			else if (isSplit(instance))
+			{
+				writeString(instance.getFile());
+			}
+			else
+			{
+				append('"');
+				appendEscaped(instance.getUrl(), urlPrefixLength);
+				append('"');
+			}
+		}
+		append('}');
+	}
+
+	/**
+	 * Writes the non-null metadata fields, all of them if the series' metadata
+	 * is not hoisted, otherwise only the shared or only the unshared fields.
+	 */
+	private void writeMetadata(OhifViewerInputInstanceMetadata md,
+		boolean hoisted, boolean sharedOnly) throws IOException
+	{
+		append('{');
+		boolean comma = false;
+		for (int i=0; i<MetadataFields.length; i++)
+		{
+			Field field = MetadataFields[i];
+			if ((hoisted && (shared[i] != sharedOnly)) || field.isNull(md))
+			{
+				continue;
+			}
+			name(field.name, comma);
+			field.write(this, md);
+			comma = true;
+		}
+		append('}');
+	}
+
+	private void writeGeometry(SeriesGeometry geometry) throws IOException
+	{
+		append("{\"reconstructable\":");
+		append(geometry.isReconstructable() ? "true" : "false");
+		if (geometry.getSliceNormal() != null)
+		{
+			name("sliceNormal", true);
+			writeDoubles(geometry.getSliceNormal());
+		}
+		if (geometry.getSliceSpacing() != null)
+		{
+			name("sliceSpacing", true);
+			writeDouble(geometry.getSliceSpacing());
+		}
+		if (geometry.isUniformSpacing() != null)
+		{
+			name("uniformSpacing", true);
+			append(geometry.isUniformSpacing() ? "true" : "false");
+		}
+		if (geometry.getBoundingBoxMin() != null)
+		{
+			name("boundingBoxMin", true);
+			writeDoubles(geometry.getBoundingBoxMin());
+		}
+		if (geometry.getBoundingBoxMax() != null)
+		{
+			name("boundingBoxMax", true);
+			writeDoubles(geometry.getBoundingBoxMax());
+		}
+		append('}');
+	}
+
+	/**
+	 * Writes a string field unless the value is null.
+	 * @return true if a field has now been written
+	 */
+	private boolean stringField(String name, String value, boolean comma)
+		throws IOException
+	{
+		if (value == null)
+		{
+			return comma;
+		}
+		name(name, comma);
+		writeString(value);
+		return true;
+	}
+
+	/**
+	 * Writes a field name that needs no escaping.
+	 */
+	private void name(String name, boolean comma) throws IOException
+	{
+		if (comma)
+		{
+			append(',');
+		}
+		append('"');
+		append(name);
+		append("\":");
+	}
+
+	private void separate() throws IOException
+	{
+		if (!first)
+		{
+			append(',');
+		}
+	}
+
+	private void writeString(String value) throws IOException
+	{
+		append('"');
+		appendEscaped(value, 0);
+		append('"');
+	}
+
+	private void writeStrings(String[] values) throws IOException
+	{
+		append('[');
+		for (int i=0; i<values.length; i++)
+		{
+			if (i > 0)
+			{
+				append(',');
+			}
+			if (values[i] == null)
+			{
+				append("null");
+			}
+			else
+			{
+				writeString(values[i]);
+			}
+		}
+		append(']');
+	}
+
+	private void writeDoubles(double[] values) throws IOException
+	{
+		append('[');
+		for (int i=0; i<values.length; i++)
+		{
+			if (i > 0)
+			{
+				append(',');
+			}
+			writeDouble(values[i]);
+		}
+		append(']');
+	}
+
+	/**
+	 * Writes a double as {@link Double#toString(double)} does.
+	 */
+	private void writeDouble(double value) throws IOException
+	{
+		if ((value == Math.rint(value)) && (Math.abs(value) < PlainLimit))
+		{
+			if (Double.doubleToRawLongBits(value) < 0)
+			{
+				// Includes -0.0
+				append('-');
+			}
+			writeLong((long) Math.abs(value));
+			append(".0");
+			return;
+		}
+		append(Double.toString(value));
+	}
+
+	private void writeLong(long value) throws IOException
+	{
+		if (value == Long.MIN_VALUE)
+		{
+			append(Long.toString(value));
+			return;
+		}
+		if (value < 0)
+		{
+			append('-');
+			value = -value;
+		}
+		int count = 0;
+		do
+		{
+			digits[count++] = (char) ('0'+(value % 10));
+			value /= 10;
+		}
+		while (value != 0);
+		while (count > 0)
+		{
+			append(digits[--count]);
+		}
+	}
+
+	/**
+	 * Appends a string from an offset with the escaping of Gson's HTML-safe
+	 * <code>JsonWriter</code>.
+	 */
+	private void appendEscaped(String value, int from) throws IOException
+	{
+		int length = value.length();
+		for (int i=from; i<length; i++)
+		{
+			char c = value.charAt(i);
+			String replacement;
+			if (c < 128)
+			{
+				replacement = Replacements[c];
+			}
+			else if (c == '\u2028')
+			{
+				replacement = "\\u2028";
+			}
+			else if (c == '\u2029')
+			{
+				replacement = "\\u2029";
+			}
+			else
+			{
+				replacement = null;
+			}
+			if (replacement == null)
+			{
+				append(c);
+			}
+			else
+			{
+				append(replacement);
+			}
+		}
+	}
+
+	private void append(char c) throws IOException
+	{
+		if (position == buffer.length)
+		{
+			drain();
+		}
+		buffer[position++] = c;
+	}
+
+	private void append(String value) throws IOException
+	{
+		int length = value.length();
+		if (length > buffer.length-position)
+		{
+			drain();
+			if (length > buffer.length)
+			{
+				out.write(value);
+				return;
+			}
+		}
+		value.getChars(0, length, buffer, position);
+		position += length;
+	}
+
+	private void drain() throws IOException
+	{
+		if (position > 0)
+		{
+			out.write(buffer, 0, position);
+			position = 0;
+		}
+	}
+
+	private static String[] createReplacements()
+	{
+		String[] replacements = new String[128];
+		for (int i=0; i<0x20; i++)
+		{
+			replacements[i] = String.format("\\u%04x", i);
+		}
+		replacements['"'] = "\\\"";
+		replacements['\\'] = "\\\\";
+		replacements['\t'] = "\\t";
+		replacements['\b'] = "\\b";
+		replacements['\n'] = "\\n";
+		replacements['\r'] = "\\r";
+		replacements['\f'] = "\\f";
+		replacements['<'] = "\\u003c";
+		replacements['>'] = "\\u003e";
+		replacements['&'] = "\\u0026";
+		replacements['='] = "\\u003d";
+		replacements['\''] = "\\u0027";
+		return replacements;
+	}
+
+	/**
+	 * The fields of {@link OhifViewerInputInstanceMetadata} in declaration
+	 * order, which is the order Gson writes them in.
+	 */
+	private static Field[] createMetadataFields()
+	{
+		return new Field[]
+		{
+			new IntField("AcquisitionNumber",
+				OhifViewerInputInstanceMetadata::getAcquisitionNumber),
+			new IntField("BitsAllocated",
+				OhifViewerInputInstanceMetadata::getBitsAllocated),
+			new IntField("BitsStored",
+				OhifViewerInputInstanceMetadata::getBitsStored),
+			new IntField("Columns", OhifViewerInputInstanceMetadata::getColumns),
+			new StringField("FrameOfReferenceUID",
+				OhifViewerInputInstanceMetadata::getFrameOfReferenceUID),
+			new IntField("HighBit", OhifViewerInputInstanceMetadata::getHighBit),
+			new DoublesField("ImageOrientationPatient",
+				OhifViewerInputInstanceMetadata::getImageOrientationPatient),
+			new DoublesField("ImagePositionPatient",
+				OhifViewerInputInstanceMetadata::getImagePositionPatient),
+			new StringsField("ImageType",
+				OhifViewerInputInstanceMetadata::getImageType),
+			new IntField("InstanceNumber",
+				OhifViewerInputInstanceMetadata::getInstanceNumber),
+			new IntField("NumberOfFrames",
+				OhifViewerInputInstanceMetadata::getNumberOfFrames),
+			new StringField("PhotometricInterpretation",
+				OhifViewerInputInstanceMetadata::getPhotometricInterpretation),
+			new IntField("PixelRepresentation",
+				OhifViewerInputInstanceMetadata::getPixelRepresentation),
+			new DoublesField("PixelSpacing",
+				OhifViewerInputInstanceMetadata::getPixelSpacing),
+			new DoubleField("RescaleIntercept",
+				OhifViewerInputInstanceMetadata::getRescaleIntercept),
+			new DoubleField("RescaleSlope",
+				OhifViewerInputInstanceMetadata::getRescaleSlope),
+			new StringField("RescaleType",
+				OhifViewerInputInstanceMetadata::getRescaleType),
+			new IntField("Rows", OhifViewerInputInstanceMetadata::getRows),
+			new IntField("SamplesPerPixel",
+				OhifViewerInputInstanceMetadata::getSamplesPerPixel),
+			new StringField("SOPClassUID",
+				OhifViewerInputInstanceMetadata::getSOPClassUID),
+			new StringField("SOPInstanceUID",
+				OhifViewerInputInstanceMetadata::getSOPInstanceUID),
+			new DoublesField("WindowWidth",
+				OhifViewerInputInstanceMetadata::getWindowWidth),
+			new DoublesField("WindowCenter",
+				OhifViewerInputInstanceMetadata::getWindowCenter)
+		};
+	}
+
+	/**
+	 * Equality of doubles as Gson's <code>JsonPrimitive</code> compares them,
+	 * so -0.0 equals 0.0 and NaN equals NaN.
+	 */
+	private static boolean isEqual(double a, double b)
+	{
+		return (a == b) || (Double.isNaN(a) && Double.isNaN(b));
+	}
+
+	/**
+	 * A metadata field with the null test and equality Gson's JSON tree uses
+	 * when hoisting.
+	 */
+	private abstract static class Field
+	{
+		final String name;
+
+		Field(String name)
+		{
+			this.name = name;
+		}
+
+		abstract boolean isNull(OhifViewerInputInstanceMetadata md);
+
+		abstract boolean isEqual(OhifViewerInputInstanceMetadata a,
+			OhifViewerInputInstanceMetadata b);
+
+		abstract void write(SessionJsonSerializer serializer,
+			OhifViewerInputInstanceMetadata md) throws IOException;
+	}
+
+	private static final class IntField extends Field
+	{
+		private final ToIntFunction<OhifViewerInputInstanceMetadata> getter;
+
+		IntField(String name,
+			ToIntFunction<OhifViewerInputInstanceMetadata> getter)
+		{
+			super(name);
+			this.getter = getter;
+		}
+
+		@Override
+		boolean isNull(OhifViewerInputInstanceMetadata md)
+		{
+			return false;
+		}
+
+		@Override
+		boolean isEqual(OhifViewerInputInstanceMetadata a,
+			OhifViewerInputInstanceMetadata b)
+		{
+			return getter.applyAsInt(a) == getter.applyAsInt(b);
+		}
+
+		@Override
+		void write(SessionJsonSerializer serializer,
+			OhifViewerInputInstanceMetadata md) throws IOException
+		{
+			serializer.writeLong(getter.applyAsInt(md));
+		}
+	}
+
+	private static final class DoubleField extends Field
+	{
+		private final ToDoubleFunction<OhifViewerInputInstanceMetadata> getter;
+
+		DoubleField(String name,
+			ToDoubleFunction<OhifViewerInputInstanceMetadata> getter)
+		{
+			super(name);
+			this.getter = getter;
+		}
+
+		@Override
+		boolean isNull(OhifViewerInputInstanceMetadata md)
+		{
+			return false;
+		}
+
+		@Override
+		boolean isEqual(OhifViewerInputInstanceMetadata a,
+			OhifViewerInputInstanceMetadata b)
+		{
+			return SessionJsonSerializer.isEqual(getter.applyAsDouble(a),
+				getter.applyAsDouble(b));
+		}
+
+		@Override
+		void write(SessionJsonSerializer serializer,
+			OhifViewerInputInstanceMetadata md) throws IOException
+		{
+			serializer.writeDouble(getter.applyAsDouble(md));
+		}
+	}
+
+	private static final class StringField extends Field
+	{
+		private final Function<OhifViewerInputInstanceMetadata,String> getter;
+
+		StringField(String name,
+			Function<OhifViewerInputInstanceMetadata,String> getter)
+		{
+			super(name);
+			this.getter = getter;
+		}
+
+		@Override
+		boolean isNull(OhifViewerInputInstanceMetadata md)
+		{
+			return getter.apply(md) == null;
+		}
+
+		@Override
+		boolean isEqual(OhifViewerInputInstanceMetadata a,
+			OhifViewerInputInstanceMetadata b)
+		{
+			return getter.apply(a).equals(getter.apply(b));
+		}
+
+		@Override
+		void write(SessionJsonSerializer serializer,
+			OhifViewerInputInstanceMetadata md) throws IOException
+		{
+			serializer.writeString(getter.apply(md));
+		}
+	}
+
+	private static final class DoublesField extends Field
+	{
+		private final Function<OhifViewerInputInstanceMetadata,double[]> getter;
+
+		DoublesField(String name,
+			Function<OhifViewerInputInstanceMetadata,double[]> getter)
+		{
+			super(name);
+			this.getter = getter;
+		}
+
+		@Override
+		boolean isNull(OhifViewerInputInstanceMetadata md)
+		{
+			return getter.apply(md) == null;
+		}
+
+		@Override
+		boolean isEqual(OhifViewerInputInstanceMetadata a,
+			OhifViewerInputInstanceMetadata b)
+		{
+			double[] aValues = getter.apply(a);
+			double[] bValues = getter.apply(b);
+			if (aValues.length != bValues.length)
+			{
+				return false;
+			}
+			for (int i=0; i<aValues.length; i++)
+			{
+				if (!SessionJsonSerializer.isEqual(aValues[i], bValues[i]))
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		void write(SessionJsonSerializer serializer,
+			OhifViewerInputInstanceMetadata md) throws IOException
+		{
+			serializer.writeDoubles(getter.apply(md));
+		}
+	}
+
+	private static final class StringsField extends Field
+	{
+		private final Function<OhifViewerInputInstanceMetadata,String[]> getter;
+
+		StringsField(String name,
+			Function<OhifViewerInputInstanceMetadata,String[]> getter)
+		{
+			super(name);
+			this.getter = getter;
+		}
+
+		@Override
+		boolean isNull(OhifViewerInputInstanceMetadata md)
+		{
+			return getter.apply(md) == null;
+		}
+
+		@Override
+		boolean isEqual(OhifViewerInputInstanceMetadata a,
+			OhifViewerInputInstanceMetadata b)
+		{
+			String[] aValues = getter.apply(a);
+			String[] bValues = getter.apply(b);
+			if (aValues.length != bValues.length)
+			{
+				return false;
+			}
+			for (int i=0; i<aValues.length; i++)
+			{
+				if ((aValues[i] == null) ? (bValues[i] != null)
+					: !aValues[i].equals(bValues[i]))
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		void write(SessionJsonSerializer serializer,
+			OhifViewerInputInstanceMetadata md) throws IOException
+		{
+			serializer.writeStrings(getter.apply(md));
+		}
+	}
+}
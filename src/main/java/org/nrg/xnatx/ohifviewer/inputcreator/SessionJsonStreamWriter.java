@@ -0,0 +1,236 @@
+/*********************************************************************
+ * Copyright (c) 2023, Institute of Cancer Research
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * (1) Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ * (2) Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ * (3) Neither the name of the Institute of Cancer Research nor the
+ *     names of its contributors may be used to endorse or promote
+ *     products derived from this software without specific prior
+ *     written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+package org.nrg.xnatx.ohifviewer.inputcreator;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes session JSON as instances are merged instead of building the whole
+ * study/series/instance tree first. The output is identical to serializing the
+ * tree built by {@link CustomDicomReceiver} with
+ * {@link SessionJsonSerializer}.
+ * <p>
+ * The series of the first study are written to the output at the end of each
+ * scan. The first study must be closed before any other can be written, so the
+ * series of other studies are serialized to text at the end of each scan and
+ * the text is kept until {@link #finish()}, rather than their instances. A
+ * session of several studies still holds the JSON of all but the first in
+ * memory. A series is assumed
+ * to be complete at the end of the scan in which it was first seen and its
+ * instances are put into slice order when it is written. If a later scan adds
+ * an instance to a series that has already been written,
+ * {@link #merge(ScannedInstance)} returns false and the output must be
+ * discarded.
+ *
+ * @author jamesd
+ */
+final class SessionJsonStreamWriter
+{
+	private static final Logger logger = LoggerFactory.getLogger(
+		SessionJsonStreamWriter.class);
+
+	private final SessionJsonSerializer writer;
+	private final Map<String,StudyState> studies = new LinkedHashMap<>();
+	private final Set<String> uids = new HashSet<>();
+	private StudyState firstStudy = null;
+
+	/**
+	 * Starts the session document.
+	 * @param out the output
+	 * @param transactionId the transaction ID
+	 * @throws IOException if the output cannot be written
+	 */
+	SessionJsonStreamWriter(Writer out, String transactionId)
+		throws IOException
+	{
+		writer = new SessionJsonSerializer(out);
+		writer.beginSession(transactionId);
+	}
+
+	/**
+	 * Writes the series of the first study seen so far and serializes those of
+	 * other studies to their text. Called at the end of each scan.
+	 * @throws IOException if the output cannot be written
+	 */
+	void endScan() throws IOException
+	{
+		if (firstStudy == null)
+		{
+			return;
+		}
+		for (StudyState study : studies.values())
+		{
+			SessionJsonSerializer studyWriter = (study == firstStudy)
+				? writer : study.getSeriesWriter();
+			for (SeriesState series : study.series.values())
+			{
+				writeSeries(studyWriter, series);
+			}
+			studyWriter.flush();
+		}
+	}
+
+	/**
+	 * Closes the first study, writes any other studies and ends the document.
+	 * @throws IOException if the output cannot be written
+	 */
+	void finish() throws IOException
+	{
+		endScan();
+		for (StudyState study : studies.values())
+		{
+			if (study != firstStudy)
+			{
+				writer.beginStudy();
+				writer.writeSerializedSeries(study.seriesText.toString());
+				study.seriesText = null;
+				study.seriesWriter = null;
+			}
+			writer.endStudy(study.attrs);
+		}
+		writer.endSession();
+	}
+
+	/**
+	 * Adds the metadata for a single file with the same semantics as
+	 * {@link CustomDicomReceiver#merge(ScannedInstance)}.
+	 * @param scanned the metadata, null is ignored
+	 * @return false if the instance belongs to a series already written
+	 * @throws IOException if the output cannot be written
+	 */
+	boolean merge(ScannedInstance scanned) throws IOException
+	{
+		if (scanned == null)
+		{
+			return true;
+		}
+		String uid = scanned.getUid();
+		if ((uid != null) && uids.contains(uid))
+		{
+			return true;
+		}
+
+		StudyState study = studies.get(scanned.getStudyUid());
+		if (study == null)
+		{
+			study = new StudyState(scanned.getStudy());
+			studies.put(scanned.getStudyUid(), study);
+			if (firstStudy == null)
+			{
+				firstStudy = study;
+				writer.beginStudy();
+			}
+		}
+
+		String seriesUid = scanned.getSeriesUid();
+		SeriesState series = study.series.get(seriesUid);
+		if (series == null)
+		{
+			series = new SeriesState(scanned.getSeries());
+			study.series.put(seriesUid, series);
+		}
+
+		OhifViewerInputInstance instance = scanned.getInstance();
+		if (instance == null)
+		{
+			logger.warn("Series UID "+seriesUid+" has a null or empty scan ID");
+			return true;
+		}
+		if (series.series == null)
+		{
+			logger.debug("Series UID {} continues after its scan", seriesUid);
+			return false;
+		}
+
+		series.series.addInstances(instance);
+		uids.add(uid);
+		return true;
+	}
+
+	private void writeSeries(SessionJsonSerializer studyWriter,
+		SeriesState series) throws IOException
+	{
+		if (series.series == null)
+		{
+			return;
+		}
+		series.series.orderInstances();
+		studyWriter.writeSeries(series.series);
+		series.series = null;
+	}
+
+	private static final class SeriesState
+	{
+		// Null once written
+		private OhifViewerInputSeries series;
+
+		SeriesState(OhifViewerInputSeries series)
+		{
+			this.series = series.copyAttributes();
+		}
+	}
+
+	private static final class StudyState
+	{
+		private final OhifViewerInputStudy attrs;
+		private final Map<String,SeriesState> series = new LinkedHashMap<>();
+		// Series written so far, other than the first study's
+		private StringWriter seriesText = null;
+		private SessionJsonSerializer seriesWriter = null;
+
+		StudyState(OhifViewerInputStudy study)
+		{
+			attrs = study.copyAttributes();
+		}
+
+		SessionJsonSerializer getSeriesWriter()
+		{
+			if (seriesWriter == null)
+			{
+				seriesText = new StringWriter();
+				seriesWriter = new SessionJsonSerializer(seriesText);
+			}
+			return seriesWriter;
+		}
+	}
+}
@@ -0,0 +1,357 @@
+/*********************************************************************
+ * Copyright (c) 2023, Institute of Cancer Research
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * (1) Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ * (2) Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ * (3) Neither the name of the Institute of Cancer Research nor the
+ *     names of its contributors may be used to endorse or promote
+ *     products derived from this software without specific prior
+ *     written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+package org.nrg.xnatx.ohifviewer.inputcreator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PreDestroy;
+import org.nrg.xdat.om.XnatImagesessiondata;
+import org.nrg.xft.security.UserI;
+import org.nrg.xnatx.ohifviewer.ViewerPreferences;
+import org.nrg.xnatx.plugin.PluginUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Debounced, deduplicating queue of session JSON rebuilds triggered by
+ * workflow events. A session is rebuilt once no event for it has arrived for
+ * the quiet period, so a burst of events for the same session costs a single
+ * rebuild, and the rebuilds run on the queue's own workers rather than the
+ * thread that delivered the event. The rebuilds are scheduled at
+ * {@link BuildPriority#Event}, behind builds users are waiting for and ahead
+ * of bulk generation.
+ * <p>
+ * A session is never rebuilt twice at once. An event arriving while its
+ * rebuild runs queues a further rebuild, as the running one may have read
+ * the session before the change. A session receiving events continuously is
+ * rebuilt at the latest a fixed number of quiet periods after its first
+ * event.
+ *
+ * @author jamesd
+ */
+@Component
+public class SessionRebuildQueue
+{
+	private static final Logger logger = LoggerFactory.getLogger(
+		SessionRebuildQueue.class);
+	private static final long TickMillis = 1000;
+	private static final int MaxQuietPeriods = 10;
+	// Rebuilds running at once, each also waits for a build slot
+	private static final int WorkerThreads = 2;
+
+	private final JsonMetadataHandler jsonHandler;
+	// Guarded by this
+	private final Map<String,Pending> pending = new HashMap<>();
+	private final Set<String> running = new HashSet<>();
+	private ScheduledExecutorService dispatcher = null;
+	private ExecutorService workers = null;
+	private boolean stopped = false;
+
+	private final AtomicLong events = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong rebuilds = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong totalLagMillis = new AtomicLong();
+	private final AtomicLong maxLagMillis = new AtomicLong();
+	private volatile long lastLagMillis = 0;
+
+	@Autowired
+	public SessionRebuildQueue(final JsonMetadataHandler jsonHandler)
+	{
+		this.jsonHandler = jsonHandler;
+	}
+
+	/**
+	 * Queues a rebuild of the session's JSON as the user, once the session has
+	 * been quiet for the quiet period. A rebuild already queued for the
+	 * session is postponed and takes the latest user instead, and its
+	 * completion is shared.
+	 * @param sessionId the session ID
+	 * @param user the user
+	 * @return a future completed once the rebuilt JSON is stored, or
+	 * completed exceptionally if the rebuild fails or is discarded
+	 */
+	public synchronized CompletableFuture<Void> submit(String sessionId,
+		UserI user)
+	{
+		if (stopped)
+		{
+			logger.warn("Rebuild queue stopped, session {} not queued", sessionId);
+			CompletableFuture<Void> discarded = new CompletableFuture<>();
+			discarded.completeExceptionally(new IllegalStateException(
+				"Session JSON rebuild queue stopped"));
+			return discarded;
+		}
+		events.incrementAndGet();
+		long now = System.currentTimeMillis();
+		long quietMillis = getQuietMillis();
+		Pending queued = pending.get(sessionId);
+		if (queued == null)
+		{
+			queued = new Pending(user, now, now+quietMillis);
+			pending.put(sessionId, queued);
+		}
+		else
+		{
+			coalesced.incrementAndGet();
+			queued.user = user;
+			queued.due = Math.min(now+quietMillis,
+				queued.firstEvent+MaxQuietPeriods*quietMillis);
+		}
+		if (dispatcher == null)
+		{
+			AtomicInteger threadCount = new AtomicInteger();
+			workers = Executors.newFixedThreadPool(WorkerThreads,
+				(Runnable runnable) ->
+				{
+					Thread thread = new Thread(runnable,
+						"ohif-json-rebuild-"+threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+			dispatcher = Executors.newSingleThreadScheduledExecutor(
+				(Runnable runnable) ->
+				{
+					Thread thread = new Thread(runnable, "ohif-json-rebuild-queue");
+					thread.setDaemon(true);
+					return thread;
+				});
+			dispatcher.scheduleWithFixedDelay(this::dispatch, TickMillis,
+				TickMillis, TimeUnit.MILLISECONDS);
+		}
+		return queued.done;
+	}
+
+	/**
+	 * Returns the queue statistics: the sessions waiting and being rebuilt,
+	 * the events received and coalesced into a queued rebuild, the rebuilds
+	 * and failures, and the lag from a session's first event to the end of
+	 * its rebuild.
+	 * @return the statistics by name
+	 */
+	public Map<String,Object> getStatistics()
+	{
+		Map<String,Object> stats = new LinkedHashMap<>();
+		synchronized (this)
+		{
+			stats.put("depth", pending.size());
+			stats.put("running", running.size());
+		}
+		stats.put("quietSeconds", ViewerPreferences.getRegenerationQuietSeconds());
+		stats.put("events", events.get());
+		stats.put("coalesced", coalesced.get());
+		long done = rebuilds.get()+failures.get();
+		stats.put("rebuilds", rebuilds.get());
+		stats.put("failures", failures.get());
+		stats.put("lastLagMillis", lastLagMillis);
+		stats.put("meanLagMillis", (done > 0) ? totalLagMillis.get()/done : 0);
+		stats.put("maxLagMillis", maxLagMillis.get());
+		return stats;
+	}
+
+	@PreDestroy
+	public synchronized void stop()
+	{
+		stopped = true;
+		if (dispatcher != null)
+		{
+			dispatcher.shutdownNow();
+			workers.shutdownNow();
+		}
+		if (!pending.isEmpty())
+		{
+			logger.info("{} queued session JSON rebuilds discarded at shutdown",
+				pending.size());
+			for (Pending job : pending.values())
+			{
+				job.done.completeExceptionally(new IllegalStateException(
+					"Session JSON rebuild queue stopped"));
+			}
+			pending.clear();
+		}
+	}
+
+	private void dispatch()
+	{
+		List<Map.Entry<String,Pending>> due;
+		try
+		{
+			due = takeDue();
+		}
+		catch (RuntimeException ex)
+		{
+			// Keep dispatching, nothing was taken
+			logger.error("Session JSON rebuild queue failure", ex);
+			return;
+		}
+		for (Map.Entry<String,Pending> entry : due)
+		{
+			String sessionId = entry.getKey();
+			Pending job = entry.getValue();
+			try
+			{
+				workers.execute(() -> rebuild(sessionId, job));
+			}
+			catch (RuntimeException ex)
+			{
+				// Taken sessions must leave running and their futures complete
+				logger.error("Session {} JSON rebuild not started", sessionId, ex);
+				requeue(sessionId, job, ex);
+			}
+		}
+	}
+
+	private void requeue(String sessionId, Pending job, RuntimeException cause)
+	{
+		synchronized (this)
+		{
+			if (!stopped)
+			{
+				running.remove(sessionId);
+				Pending queued = pending.get(sessionId);
+				if (queued == null)
+				{
+					// Still due, retried on the next tick
+					pending.put(sessionId, job);
+					return;
+				}
+				// An event arrived since, its rebuild covers this one too
+				queued.done.whenComplete((Void result, Throwable ex) ->
+				{
+					if (ex == null)
+					{
+						job.done.complete(null);
+					}
+					else
+					{
+						job.done.completeExceptionally(ex);
+					}
+				});
+				return;
+			}
+		}
+		failures.incrementAndGet();
+		finish(sessionId, job);
+		job.done.completeExceptionally(cause);
+	}
+
+	private synchronized List<Map.Entry<String,Pending>> takeDue()
+	{
+		List<Map.Entry<String,Pending>> due = new ArrayList<>();
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<String,Pending>> iter = pending.entrySet().iterator();
+		while (iter.hasNext())
+		{
+			Map.Entry<String,Pending> entry = iter.next();
+			if ((entry.getValue().due > now) || running.contains(entry.getKey()))
+			{
+				continue;
+			}
+			iter.remove();
+			running.add(entry.getKey());
+			due.add(entry);
+		}
+		return due;
+	}
+
+	private void rebuild(String sessionId, Pending job)
+	{
+		try
+		{
+			XnatImagesessiondata sessionData = PluginUtils.getImageSessionData(
+				sessionId, job.user);
+			jsonHandler.createAndStoreJsonConfig(sessionData, job.user, true,
+				BuildPriority.Event);
+			rebuilds.incrementAndGet();
+			finish(sessionId, job);
+			job.done.complete(null);
+		}
+		catch (Exception ex)
+		{
+			failures.incrementAndGet();
+			logger.warn("Session {} JSON rebuild failed", sessionId, ex);
+			finish(sessionId, job);
+			job.done.completeExceptionally(ex);
+		}
+	}
+
+	private void finish(String sessionId, Pending job)
+	{
+		// Before completing the future, so its callbacks see the session idle
+		synchronized (this)
+		{
+			running.remove(sessionId);
+		}
+		long lag = System.currentTimeMillis()-job.firstEvent;
+		lastLagMillis = lag;
+		totalLagMillis.addAndGet(lag);
+		maxLagMillis.accumulateAndGet(lag, Math::max);
+	}
+
+	private static long getQuietMillis()
+	{
+		return ViewerPreferences.getRegenerationQuietSeconds()*1000L;
+	}
+
+	private static final class Pending
+	{
+		private UserI user;
+		private final long firstEvent;
+		private long due;
+		private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+		Pending(UserI user, long firstEvent, long due)
+		{
+			this.user = user;
+			this.firstEvent = firstEvent;
+			this.due = due;
+		}
+	}
+}
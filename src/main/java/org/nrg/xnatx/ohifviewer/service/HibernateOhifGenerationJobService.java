@@ -0,0 +1,251 @@
+/*********************************************************************
+ * Copyright (c) 2023, Institute of Cancer Research
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * (1) Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ * (2) Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ * (3) Neither the name of the Institute of Cancer Research nor the
+ *     names of its contributors may be used to endorse or promote
+ *     products derived from this software without specific prior
+ *     written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+package org.nrg.xnatx.ohifviewer.service;
+
+import org.apache.commons.lang3.StringUtils;
+import org.nrg.framework.orm.hibernate.AbstractHibernateEntityService;
+import org.nrg.xnatx.ohifviewer.data.OhifGenerationJobItemRepository;
+import org.nrg.xnatx.ohifviewer.data.OhifGenerationJobRepository;
+import org.nrg.xnatx.ohifviewer.entity.OhifGenerationJob;
+import org.nrg.xnatx.ohifviewer.entity.OhifGenerationJobItem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+@Service
+public class HibernateOhifGenerationJobService
+	extends AbstractHibernateEntityService<OhifGenerationJob, OhifGenerationJobRepository>
+	implements OhifGenerationJobService
+{
+	private final static Logger logger =
+		LoggerFactory.getLogger(HibernateOhifGenerationJobService.class);
+
+	private final OhifGenerationJobItemRepository itemDao;
+
+	@Autowired
+	public HibernateOhifGenerationJobService(final OhifGenerationJobItemRepository itemDao) {
+		this.itemDao = itemDao;
+	}
+
+	@Override
+	@Transactional
+	public OhifGenerationJob submit(OhifGenerationJob job, Collection<String> sessionIds) {
+		job.setStatus(OhifGenerationJob.Status.Queued);
+		job.setEnumerated(job.getScope() != OhifGenerationJob.Scope.Site);
+		create(job);
+		if (!job.isEnumerated()) {
+			logger.info("Generation job {} queued for every session", job.getId());
+			return job;
+		}
+		Set<String> uniqueIds = new HashSet<>(sessionIds);
+		createItems(job.getId(), uniqueIds);
+		logger.info("Generation job {} queued for {} sessions", job.getId(),
+			uniqueIds.size());
+		return job;
+	}
+
+	@Override
+	@Transactional
+	public int enumerateSessions(int pageSize) {
+		int added = 0;
+		for (OhifGenerationJob job : getDao().findActive()) {
+			if (job.isEnumerated() || (itemDao.countByStatus(job.getId(),
+					OhifGenerationJobItem.Status.Pending) >= pageSize)) {
+				continue;
+			}
+			List<String> sessionIds = getDao().findImageSessionIds(
+				job.getSessionCursor(), pageSize);
+			createItems(job.getId(), sessionIds);
+			if (!sessionIds.isEmpty()) {
+				job.setSessionCursor(sessionIds.get(sessionIds.size()-1));
+			}
+			if (sessionIds.size() < pageSize) {
+				job.setEnumerated(true);
+				logger.info("Generation job {} sessions enumerated", job.getId());
+			}
+			update(job);
+			added += sessionIds.size();
+		}
+		return added;
+	}
+
+	@Override
+	@Transactional(readOnly = true)
+	public List<OhifGenerationJob> getActiveJobs() {
+		return getDao().findActive();
+	}
+
+	@Override
+	@Transactional(readOnly = true)
+	public List<OhifGenerationJob> getRecentJobs(int maxCount) {
+		return getDao().findRecent(maxCount);
+	}
+
+	@Override
+	@Transactional(readOnly = true)
+	public Map<OhifGenerationJobItem.Status,Long> getItemCounts(long jobId) {
+		return itemDao.countByStatus(jobId);
+	}
+
+	@Override
+	@Transactional(readOnly = true)
+	public List<OhifGenerationJobItem> getItems(long jobId,
+		OhifGenerationJobItem.Status status, int maxCount) {
+		return itemDao.findByStatus(jobId, status, maxCount);
+	}
+
+	@Override
+	@Transactional
+	public boolean cancel(long jobId) {
+		OhifGenerationJob job = retrieve(jobId);
+		if ((job == null) || !job.isActive()) {
+			return false;
+		}
+		getDao().updateStatus(jobId, OhifGenerationJob.Status.Cancelled);
+		int cancelled = itemDao.updateStatus(jobId,
+			OhifGenerationJobItem.Status.Pending,
+			OhifGenerationJobItem.Status.Cancelled);
+		logger.info("Generation job {} cancelled with {} sessions pending", jobId,
+			cancelled);
+		return true;
+	}
+
+	@Override
+	@Transactional
+	public List<OhifGenerationJobItem> claimItems(int maxCount) {
+		// Share the batch between the active jobs so they progress together,
+		// passing any share a job cannot use on to the jobs after it
+		List<OhifGenerationJob> jobs = getDao().findActive();
+		List<OhifGenerationJobItem> items = new ArrayList<>();
+		Date now = new Date();
+		for (int i=0; (i<jobs.size()) && (items.size() < maxCount); i++) {
+			OhifGenerationJob job = jobs.get(i);
+			int remaining = maxCount-items.size();
+			int share = (remaining+jobs.size()-i-1)/(jobs.size()-i);
+			List<OhifGenerationJobItem> jobItems = itemDao.findDue(job.getId(),
+				now, share);
+			for (OhifGenerationJobItem item : jobItems) {
+				item.setStatus(OhifGenerationJobItem.Status.Running);
+				item.setAttempts(item.getAttempts()+1);
+				item.setClaimed(now);
+				itemDao.update(item);
+			}
+			if (!jobItems.isEmpty() && (job.getStatus() == OhifGenerationJob.Status.Queued)) {
+				job.setStatus(OhifGenerationJob.Status.Running);
+				update(job);
+			}
+			items.addAll(jobItems);
+		}
+		return items;
+	}
+
+	@Override
+	@Transactional
+	public void releaseItems(Collection<Long> itemIds) {
+		for (Long itemId : itemIds) {
+			OhifGenerationJobItem item = itemDao.retrieve(itemId);
+			item.setStatus(OhifGenerationJobItem.Status.Pending);
+			item.setAttempts(item.getAttempts()-1);
+			itemDao.update(item);
+		}
+	}
+
+	@Override
+	@Transactional
+	public void completeItem(long itemId, boolean skipped) {
+		OhifGenerationJobItem item = itemDao.retrieve(itemId);
+		item.setStatus(skipped
+			? OhifGenerationJobItem.Status.Skipped
+			: OhifGenerationJobItem.Status.Complete);
+		item.setLastError(null);
+		itemDao.update(item);
+	}
+
+	@Override
+	@Transactional
+	public void failItem(long itemId, String error, Date nextAttempt) {
+		OhifGenerationJobItem item = itemDao.retrieve(itemId);
+		item.setLastError(StringUtils.abbreviate(error,
+			OhifGenerationJobItem.MaxErrorLength));
+		if (nextAttempt != null) {
+			item.setStatus(OhifGenerationJobItem.Status.Pending);
+			item.setNextAttempt(nextAttempt);
+		} else {
+			item.setStatus(OhifGenerationJobItem.Status.Failed);
+		}
+		itemDao.update(item);
+	}
+
+	@Override
+	@Transactional
+	public int completeFinishedJobs() {
+		return getDao().completeFinished();
+	}
+
+	@Override
+	@Transactional
+	public int resetInterruptedItems() {
+		return itemDao.resetRunning();
+	}
+
+	@Override
+	@Transactional
+	public int reclaimExpiredItems(Date claimedBefore, int maxAttempts) {
+		return itemDao.reclaimRunning(claimedBefore, maxAttempts,
+			"Generation lease expired");
+	}
+
+	private void createItems(long jobId, Collection<String> sessionIds) {
+		Date now = new Date();
+		for (String sessionId : sessionIds) {
+			OhifGenerationJobItem item = new OhifGenerationJobItem();
+			item.setJobId(jobId);
+			item.setSessionId(sessionId);
+			item.setStatus(OhifGenerationJobItem.Status.Pending);
+			item.setNextAttempt(now);
+			itemDao.create(item);
+		}
+	}
+}
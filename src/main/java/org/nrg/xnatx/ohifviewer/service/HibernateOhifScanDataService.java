@@ -0,0 +1,108 @@
+/*********************************************************************
+ * Copyright (c) 2023, Institute of Cancer Research
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * (1) Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ * (2) Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ * (3) Neither the name of the Institute of Cancer Research nor the
+ *     names of its contributors may be used to endorse or promote
+ *     products derived from this software without specific prior
+ *     written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+package org.nrg.xnatx.ohifviewer.service;
+
+import org.nrg.framework.orm.hibernate.AbstractHibernateEntityService;
+import org.nrg.xnatx.ohifviewer.data.OhifScanDataRepository;
+import org.nrg.xnatx.ohifviewer.entity.OhifScanData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+@Service
+public class HibernateOhifScanDataService
+	extends AbstractHibernateEntityService<OhifScanData, OhifScanDataRepository>
+	implements OhifScanDataService
+{
+	private final static Logger logger =
+		LoggerFactory.getLogger(HibernateOhifScanDataService.class);
+
+	@Override
+	@Transactional(readOnly = true)
+	public List<OhifScanData> getScanData(String sessionId) {
+		List<OhifScanData> scanData = getDao().findByProperty("sessionId", sessionId);
+		return (scanData != null) ? scanData : new ArrayList<OhifScanData>();
+	}
+
+	/**
+	 * Replaces the stored fragments of a session. Fragments with an unchanged
+	 * fingerprint are left untouched and those of scans no longer present are
+	 * deleted.
+	 */
+	@Override
+	@Transactional
+	public void replaceScanData(String sessionId, List<OhifScanData> scanData) {
+		Map<String,OhifScanData> existing = new HashMap<>();
+		for (OhifScanData data : getScanData(sessionId)) {
+			existing.put(data.getScanId(), data);
+		}
+		int written = 0;
+		for (OhifScanData data : scanData) {
+			OhifScanData current = existing.remove(data.getScanId());
+			if (current == null) {
+				create(data);
+				written++;
+				continue;
+			}
+			if (Objects.equals(current.getFingerprint(), data.getFingerprint())) {
+				continue;
+			}
+			current.setFingerprint(data.getFingerprint());
+			current.setScanJson(data.getScanJson());
+			update(current);
+			written++;
+		}
+		for (OhifScanData stale : existing.values()) {
+			delete(stale);
+		}
+		logger.debug("Session {} scan data: {} written, {} deleted", sessionId,
+			written, existing.size());
+	}
+
+	@Override
+	@Transactional
+	public void deleteScanData(String sessionId) {
+		for (OhifScanData data : getScanData(sessionId)) {
+			delete(data);
+		}
+	}
+}
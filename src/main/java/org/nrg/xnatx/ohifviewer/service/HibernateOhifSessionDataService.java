@@ -35,9 +35,12 @@
 package org.nrg.xnatx.ohifviewer.service;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.hibernate.ObjectNotFoundException;
+import org.hibernate.engine.jdbc.BlobProxy;
 import org.nrg.framework.orm.hibernate.AbstractHibernateEntityService;
 import org.nrg.xnatx.ohifviewer.data.OhifSessionDataRepository;
 import org.nrg.xnatx.ohifviewer.entity.OhifSessionData;
@@ -45,15 +48,31 @@ import org.nrg.xnatx.plugin.PluginCode;
 import org.nrg.xnatx.plugin.PluginException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
-import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.sql.Blob;
 import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 @Service
 @JsonIgnoreProperties(value = { "created" })
@@ -64,18 +83,32 @@ public class HibernateOhifSessionDataService
 	private final static Logger logger =
 		LoggerFactory.getLogger(HibernateOhifSessionDataService.class);
 
+	private final OhifSessionJsonCache cache;
+
+	@Autowired
+	public HibernateOhifSessionDataService(final OhifSessionJsonCache cache) {
+		this.cache = cache;
+	}
+
+    /**
+     * Upserts the session data in a single transaction. The JSON is written
+     * by an update statement, so neither the existing entity nor its JSON is
+     * loaded, and the row is only created if the update finds none. If
+     * another transaction creates the row first, the unique session ID fails
+     * the insert with a constraint violation, and calling again updates the
+     * row instead.
+     */
     @Override
     @Transactional
     public OhifSessionData createOrUpdate(OhifSessionData ohifSessionData) {
-        OhifSessionData existing = this.getSessionData(ohifSessionData.getSessionId());
-        if (existing == null) {
+        cache.invalidate(ohifSessionData.getSessionId());
+        int updated = getDao().updateSessionJson(ohifSessionData.getSessionId(),
+            ohifSessionData.getRevision(), ohifSessionData.getContentHash(),
+            ohifSessionData.getFingerprint(), ohifSessionData.getSessionJsonGzip());
+        if (updated == 0) {
             return create(ohifSessionData);
         }
-
-        existing.setRevision(ohifSessionData.getRevision());
-        existing.setSessionJson(ohifSessionData.getSessionJson());
-        update(existing);
-        return existing;
+        return ohifSessionData;
     }
     
 	@Override
@@ -88,11 +121,59 @@ public class HibernateOhifSessionDataService
 		}
 	}
 
+	@Override
+	@Transactional
+	public void delete(OhifSessionData ohifSessionData) {
+		cache.invalidate(ohifSessionData.getSessionId());
+		super.delete(ohifSessionData);
+	}
+
+	@Override
+	@Transactional
+	public void delete(long id) {
+		OhifSessionData ohifSessionData = retrieve(id);
+		if (ohifSessionData != null) {
+			cache.invalidate(ohifSessionData.getSessionId());
+		}
+		super.delete(id);
+	}
+
+	@Override
+	@Transactional(readOnly = true)
+	public OhifSessionJsonVersion getSessionJsonVersion(String sessionId) {
+		Object[] row = getDao().findJsonVersion(sessionId);
+		if (row == null) {
+			return null;
+		}
+		return new OhifSessionJsonVersion((String) row[0], (String) row[1],
+			(Date) row[2]);
+	}
+
+	@Override
+	@Transactional(readOnly = true)
+	public String getSessionFingerprint(String sessionId) {
+		return getDao().findFingerprint(sessionId);
+	}
+
+	@Override
+	@Transactional(readOnly = true)
+	public Map<String,OhifSessionJsonVersion> getSessionJsonVersions(
+		Collection<String> sessionIds) {
+		Map<String,OhifSessionJsonVersion> versions = new HashMap<>();
+		if (sessionIds.isEmpty()) {
+			return versions;
+		}
+		for (Object[] row : getDao().findJsonVersions(sessionIds)) {
+			versions.put((String) row[0], new OhifSessionJsonVersion(
+				(String) row[1], (String) row[2], (Date) row[3]));
+		}
+		return versions;
+	}
+
 	@Override
 	@Transactional(readOnly = true)
 	public void transferSessionJson(String sessionId, Writer writer) throws PluginException {
-		Reader reader = getSessionJsonReader(sessionId);
-		try {
+		try (Reader reader = getSessionJsonReader(sessionId)) {
 			IOUtils.copyLarge(reader, writer);
 		} catch (IOException e) {
 			if (StringUtils.contains(e.getClass().getName(), "ClientAbortException")) {
@@ -100,22 +181,136 @@ public class HibernateOhifSessionDataService
 				return;
 			}
 			throw new PluginException("Failed to copy stream,", e);
+		} catch (SQLException e) {
+			throw new PluginException("Failed to obtain stream", e);
+		}
+	}
+
+	/**
+	 * Writes the session's UTF-8 JSON to the output stream. Compressed JSON is
+	 * copied unchanged when gzip output is requested and decompressed as it is
+	 * copied otherwise, from the cache where possible. Legacy uncompressed JSON
+	 * is compressed as it is copied if required.
+	 */
+	@Override
+	@Transactional(readOnly = true)
+	public void transferSessionJson(String sessionId, OutputStream os, boolean gzip)
+		throws PluginException {
+		try {
+			InputStream gzipStream = getSessionJsonGzipStream(sessionId);
+			if (gzipStream != null) {
+				try (InputStream is = gzip ? gzipStream : new GZIPInputStream(gzipStream)) {
+					IOUtils.copyLarge(is, os);
+				}
+				return;
+			}
+			OutputStream target = gzip ? new GZIPOutputStream(os) : os;
+			Writer writer = new OutputStreamWriter(target, StandardCharsets.UTF_8);
+			try (Reader reader = findSessionData(sessionId).getSessionJson().getCharacterStream()) {
+				IOUtils.copyLarge(reader, writer);
+			}
+			writer.flush();
+			if (gzip) {
+				((GZIPOutputStream) target).finish();
+			}
+		} catch (IOException e) {
+			if (StringUtils.contains(e.getClass().getName(), "ClientAbortException")) {
+				logger.debug("Client aborted request");
+				return;
+			}
+			throw new PluginException("Failed to copy stream,", e);
+		} catch (SQLException e) {
+			throw new PluginException("Failed to obtain stream", e);
+		}
+	}
+
+	@Override
+	@Transactional(readOnly = true)
+	public void readSessionJson(String sessionId, SessionJsonCallback callback)
+		throws PluginException {
+		try (Reader reader = getSessionJsonReader(sessionId)) {
+			callback.read(reader);
+		} catch (IOException e) {
+			if (StringUtils.contains(e.getClass().getName(), "ClientAbortException")) {
+				logger.debug("Client aborted request");
+				return;
+			}
+			throw new PluginException("Failed to read stream,", e);
+		} catch (SQLException e) {
+			throw new PluginException("Failed to obtain stream", e);
+		}
+	}
+
+	/**
+	 * Compresses the JSON of stored data that predates compression.
+	 */
+	@Override
+	@Transactional
+	public int compressSessionJson(int maxCount) throws PluginException {
+		List<Long> ids = getDao().findUncompressedIds(maxCount);
+		for (Long id : ids) {
+			OhifSessionData ohifSessionData = getDao().retrieve(id);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			MessageDigest digest = DigestUtils.getSha256Digest();
+			try (Reader reader = ohifSessionData.getSessionJson().getCharacterStream();
+				 Writer writer = new OutputStreamWriter(new DigestOutputStream(
+					 new GZIPOutputStream(bytes), digest), StandardCharsets.UTF_8)) {
+				IOUtils.copyLarge(reader, writer);
+			} catch (IOException | SQLException e) {
+				throw new PluginException("Failed to compress JSON for session " +
+					ohifSessionData.getSessionId(), e);
+			}
+			ohifSessionData.setContentHash(Hex.encodeHexString(digest.digest()));
+			ohifSessionData.setSessionJsonGzip(BlobProxy.generateProxy(bytes.toByteArray()));
+			ohifSessionData.setSessionJson(null);
+			update(ohifSessionData);
 		}
+		return ids.size();
 	}
 
-	private Reader getSessionJsonReader(String sessionId) throws PluginException {
+	private OhifSessionData findSessionData(String sessionId) throws PluginException {
 		logger.debug("Fetching session JSON for sessionId={}", sessionId);
 		OhifSessionData ohifSessionData = getDao().findByUniqueProperty("sessionId", sessionId);
 		if (ohifSessionData == null) {
 			throw new PluginException("JSON not found", PluginCode.FileNotFound);
 		}
+		return ohifSessionData;
+	}
 
-		Reader reader = null;
-		try {
-			reader = ohifSessionData.getSessionJson().getCharacterStream();
-		} catch (SQLException e) {
-			throw new PluginException("Failed to obtain stream", e);
+	/**
+	 * Returns a stream of the session's compressed JSON from the cache, or from
+	 * the database adding it to the cache if it fits.
+	 * @return the stream or null if the stored JSON predates compression
+	 */
+	private InputStream getSessionJsonGzipStream(String sessionId)
+		throws PluginException, IOException, SQLException {
+		InputStream cached = cache.get(sessionId);
+		if (cached != null) {
+			return cached;
+		}
+		long generation = cache.getGeneration();
+		Blob blob = findSessionData(sessionId).getSessionJsonGzip();
+		if (blob == null) {
+			return null;
+		}
+		if (!cache.fits(blob.length())) {
+			return blob.getBinaryStream();
+		}
+		byte[] gzip;
+		try (InputStream is = blob.getBinaryStream()) {
+			gzip = IOUtils.toByteArray(is);
+		}
+		cache.put(sessionId, gzip, generation);
+		return new ByteArrayInputStream(gzip);
+	}
+
+	private Reader getSessionJsonReader(String sessionId)
+		throws PluginException, IOException, SQLException {
+		InputStream gzipStream = getSessionJsonGzipStream(sessionId);
+		if (gzipStream != null) {
+			return new InputStreamReader(new GZIPInputStream(gzipStream),
+				StandardCharsets.UTF_8);
 		}
-		return reader;
+		return findSessionData(sessionId).getSessionJson().getCharacterStream();
 	}
 }
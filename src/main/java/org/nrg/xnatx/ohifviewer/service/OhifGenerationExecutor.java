@@ -0,0 +1,206 @@
+/*********************************************************************
+ * Copyright (c) 2023, Institute of Cancer Research
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * (1) Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ * (2) Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ * (3) Neither the name of the Institute of Cancer Research nor the
+ *     names of its contributors may be used to endorse or promote
+ *     products derived from this software without specific prior
+ *     written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+package org.nrg.xnatx.ohifviewer.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PreDestroy;
+import org.nrg.xnatx.ohifviewer.ViewerPreferences;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * The single executor for the plugin's bulk session JSON generation. Its work
+ * queue is bounded and, when full, a task is either run on the submitting
+ * thread, slowing the submitter to the rate the executor drains, or rejected.
+ * <p>
+ * The thread count and the choice of back-pressure are site settings read as
+ * tasks are submitted, so changes apply without a restart. The queue capacity
+ * is read when the first task is submitted. The DICOM header reading within
+ * each task is limited separately by the shared scan pool.
+ *
+ * @author jamesd
+ */
+@Component
+public class OhifGenerationExecutor
+{
+	private static final Logger logger = LoggerFactory.getLogger(
+		OhifGenerationExecutor.class);
+	private static final long KeepAliveSeconds = 60;
+
+	private final AtomicInteger threadCount = new AtomicInteger();
+	private final AtomicLong callerRuns = new AtomicLong();
+	private final AtomicLong rejections = new AtomicLong();
+	private ThreadPoolExecutor executor = null;
+	private boolean shutdown = false;
+
+	/**
+	 * Submits a task, running it on the calling thread or throwing if the
+	 * queue is full.
+	 * @param <T> the result type
+	 * @param task the task
+	 * @return the future result
+	 * @throws RejectedExecutionException if the queue is full and rejection is
+	 * configured, or the executor is shut down
+	 */
+	public <T> Future<T> submit(Callable<T> task)
+	{
+		return getExecutor().submit(task);
+	}
+
+	/**
+	 * @return the current number of generation threads
+	 */
+	public int getThreadCount()
+	{
+		return getExecutor().getMaximumPoolSize();
+	}
+
+	/**
+	 * Returns the executor statistics: the thread counts, the tasks running,
+	 * queued and completed, and the tasks run by submitters or rejected when
+	 * the queue was full.
+	 * @return the statistics by name
+	 */
+	public synchronized Map<String,Object> getStatistics()
+	{
+		Map<String,Object> stats = new LinkedHashMap<>();
+		stats.put("threads", (executor != null) ? executor.getMaximumPoolSize() : 0);
+		stats.put("poolSize", (executor != null) ? executor.getPoolSize() : 0);
+		stats.put("active", (executor != null) ? executor.getActiveCount() : 0);
+		stats.put("queued", (executor != null) ? executor.getQueue().size() : 0);
+		stats.put("queueCapacity", (executor != null)
+			? executor.getQueue().size()+executor.getQueue().remainingCapacity()
+			: 0);
+		stats.put("completed",
+			(executor != null) ? executor.getCompletedTaskCount() : 0);
+		stats.put("callerRuns", callerRuns.get());
+		stats.put("rejections", rejections.get());
+		return stats;
+	}
+
+	@PreDestroy
+	public synchronized void shutdown()
+	{
+		shutdown = true;
+		if (executor == null)
+		{
+			return;
+		}
+		executor.shutdownNow();
+		try
+		{
+			if (!executor.awaitTermination(10, TimeUnit.SECONDS))
+			{
+				logger.warn("Session JSON generation threads still running at shutdown");
+			}
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private synchronized ThreadPoolExecutor getExecutor()
+	{
+		if (shutdown)
+		{
+			throw new RejectedExecutionException(
+				"Session JSON generation executor is shut down");
+		}
+		int threads = ViewerPreferences.getMetadataGenerationThreads();
+		if (executor == null)
+		{
+			int queueSize = ViewerPreferences.getMetadataGenerationQueueSize();
+			logger.info("Creating session JSON generation executor with {} threads and queue of {}",
+				threads, queueSize);
+			executor = new ThreadPoolExecutor(threads, threads,
+				KeepAliveSeconds, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(queueSize),
+				(Runnable runnable) ->
+				{
+					Thread thread = new Thread(runnable,
+						"ohif-json-generation-"+threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				},
+				this::queueFull);
+			executor.allowCoreThreadTimeOut(true);
+		}
+		else if (executor.getMaximumPoolSize() != threads)
+		{
+			logger.info("Resizing session JSON generation executor to {} threads",
+				threads);
+			// Order keeps core <= maximum throughout
+			if (threads > executor.getMaximumPoolSize())
+			{
+				executor.setMaximumPoolSize(threads);
+				executor.setCorePoolSize(threads);
+			}
+			else
+			{
+				executor.setCorePoolSize(threads);
+				executor.setMaximumPoolSize(threads);
+			}
+		}
+		return executor;
+	}
+
+	private void queueFull(Runnable runnable, ThreadPoolExecutor pool)
+	{
+		if (pool.isShutdown())
+		{
+			throw new RejectedExecutionException(
+				"Session JSON generation executor is shut down");
+		}
+		if (ViewerPreferences.isMetadataGenerationRejectWhenFull())
+		{
+			rejections.incrementAndGet();
+			throw new RejectedExecutionException(
+				"Session JSON generation queue is full");
+		}
+		callerRuns.incrementAndGet();
+		runnable.run();
+	}
+}
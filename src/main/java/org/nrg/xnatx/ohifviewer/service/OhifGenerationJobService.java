@@ -0,0 +1,133 @@
+/*********************************************************************
+ * Copyright (c) 2023, Institute of Cancer Research
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * (1) Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ * (2) Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ * (3) Neither the name of the Institute of Cancer Research nor the
+ *     names of its contributors may be used to endorse or promote
+ *     products derived from this software without specific prior
+ *     written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+package org.nrg.xnatx.ohifviewer.service;
+
+import org.nrg.framework.orm.hibernate.BaseHibernateService;
+import org.nrg.xnatx.ohifviewer.entity.OhifGenerationJob;
+import org.nrg.xnatx.ohifviewer.entity.OhifGenerationJobItem;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+public interface OhifGenerationJobService extends BaseHibernateService<OhifGenerationJob> {
+    /**
+     * Queues a job to generate the JSON of the sessions. Site-wide jobs are
+     * queued without sessions, which are added by
+     * {@link #enumerateSessions(int)}.
+     * @return the job
+     */
+    OhifGenerationJob submit(OhifGenerationJob job, Collection<String> sessionIds);
+
+    /**
+     * @return the queued and running jobs, oldest first
+     */
+    List<OhifGenerationJob> getActiveJobs();
+
+    /**
+     * @return the most recently submitted jobs, newest first
+     */
+    List<OhifGenerationJob> getRecentJobs(int maxCount);
+
+    /**
+     * @return the number of the job's items in each status
+     */
+    Map<OhifGenerationJobItem.Status,Long> getItemCounts(long jobId);
+
+    List<OhifGenerationJobItem> getItems(long jobId, OhifGenerationJobItem.Status status, int maxCount);
+
+    /**
+     * Cancels a queued or running job. Items already running are allowed to
+     * finish.
+     * @return true if the job was cancelled
+     */
+    boolean cancel(long jobId);
+
+    /**
+     * Adds the next page of session IDs to each active site-wide job that has
+     * fewer than pageSize pending items, recording the last ID added in the
+     * same transaction so an interrupted job resumes from it.
+     * @return the number of items added
+     */
+    int enumerateSessions(int pageSize);
+
+    /**
+     * Marks up to maxCount due items of active jobs as running, counting an
+     * attempt, and marks their jobs running. The items are shared between the
+     * active jobs.
+     * @return the items
+     */
+    List<OhifGenerationJobItem> claimItems(int maxCount);
+
+    /**
+     * Returns claimed items that were not run to the queue, without counting
+     * the attempt.
+     */
+    void releaseItems(Collection<Long> itemIds);
+
+    /**
+     * Records a successful item, skipped if its session's JSON was already up
+     * to date.
+     */
+    void completeItem(long itemId, boolean skipped);
+
+    /**
+     * Records a failed attempt, to be retried no earlier than nextAttempt or,
+     * if that is null, not at all.
+     */
+    void failItem(long itemId, String error, Date nextAttempt);
+
+    /**
+     * Marks queued and running jobs complete once none of their items are
+     * pending or running.
+     * @return the number of jobs completed
+     */
+    int completeFinishedJobs();
+
+    /**
+     * Returns items left running by a restart to pending so they run again.
+     * @return the number of items reset
+     */
+    int resetInterruptedItems();
+
+    /**
+     * Returns items still running that were claimed before claimedBefore to
+     * pending, as their runs were lost, failing those that have had
+     * maxAttempts attempts.
+     * @return the number of items reclaimed
+     */
+    int reclaimExpiredItems(Date claimedBefore, int maxAttempts);
+}
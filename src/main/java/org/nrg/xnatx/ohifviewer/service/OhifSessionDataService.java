@@ -4,12 +4,59 @@ import org.nrg.framework.orm.hibernate.BaseHibernateService;
 import org.nrg.xnatx.ohifviewer.entity.OhifSessionData;
 import org.nrg.xnatx.plugin.PluginException;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.io.Writer;
+import java.util.Collection;
+import java.util.Map;
 
 public interface OhifSessionDataService extends BaseHibernateService<OhifSessionData> {
     OhifSessionData createOrUpdate(OhifSessionData ohifSessionData);
 
     OhifSessionData getSessionData(String sessionId);
 
+    /**
+     * Returns the revision and validators of a session's stored JSON without
+     * loading the JSON.
+     * @return the version or null if the session has no stored JSON
+     */
+    OhifSessionJsonVersion getSessionJsonVersion(String sessionId);
+
+    /**
+     * Returns the fingerprint of the files the session's stored JSON was
+     * created from without loading the JSON.
+     * @return the fingerprint or null if the session has no stored JSON or
+     * its JSON has no fingerprint
+     */
+    String getSessionFingerprint(String sessionId);
+
+    /**
+     * Returns the revisions and validators of the stored JSON of the sessions
+     * in a single query without loading the JSON.
+     * @return the versions by session ID, without sessions that have no
+     * stored JSON
+     */
+    Map<String,OhifSessionJsonVersion> getSessionJsonVersions(Collection<String> sessionIds);
+
     void transferSessionJson(String sessionId, Writer writer) throws PluginException;
+
+    void transferSessionJson(String sessionId, OutputStream os, boolean gzip) throws PluginException;
+
+    /**
+     * Passes a reader of the session's JSON to the callback while the stored
+     * JSON is open.
+     */
+    void readSessionJson(String sessionId, SessionJsonCallback callback) throws PluginException;
+
+    /**
+     * Compresses the JSON of up to maxCount stored sessions that only have
+     * uncompressed JSON.
+     * @return the number of sessions compressed
+     */
+    int compressSessionJson(int maxCount) throws PluginException;
+
+    interface SessionJsonCallback {
+        void read(Reader reader) throws IOException;
+    }
 }
@@ -0,0 +1,259 @@
+/*********************************************************************
+ * Copyright (c) 2023, Institute of Cancer Research
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * (1) Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ * (2) Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ * (3) Neither the name of the Institute of Cancer Research nor the
+ *     names of its contributors may be used to endorse or promote
+ *     products derived from this software without specific prior
+ *     written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+package org.nrg.xnatx.ohifviewer.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.nrg.xnatx.ohifviewer.ViewerPreferences;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Least recently used cache of compressed session JSON, bounded by the total
+ * size of the JSON held. The budget and whether the JSON is held in direct
+ * buffers outside the heap are site settings, read as entries are added so
+ * changes apply without a restart.
+ * <p>
+ * JSON read from the database is only added if no session was invalidated
+ * while it was read, so a reader that raced an update cannot cache the JSON
+ * it replaced.
+ *
+ * @author jamesd
+ */
+@Component
+public class OhifSessionJsonCache
+{
+	private static final Logger logger = LoggerFactory.getLogger(
+		OhifSessionJsonCache.class);
+
+	private final LinkedHashMap<String,ByteBuffer> entries =
+		new LinkedHashMap<>(16, 0.75f, true);
+	private long bytes = 0;
+	private long generation = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long rejections = 0;
+
+	/**
+	 * Returns a stream of the cached compressed JSON of a session.
+	 * @param sessionId the session ID
+	 * @return the stream or null if the session is not cached
+	 */
+	public synchronized InputStream get(String sessionId)
+	{
+		ByteBuffer buffer = entries.get(sessionId);
+		if (buffer == null)
+		{
+			misses++;
+			return null;
+		}
+		hits++;
+		return new ByteBufferInputStream(buffer.duplicate());
+	}
+
+	/**
+	 * Returns the invalidation count, to be passed to
+	 * {@link #put(String, byte[], long)} with JSON read after the call.
+	 * @return the generation
+	 */
+	public synchronized long getGeneration()
+	{
+		return generation;
+	}
+
+	/**
+	 * Returns true if JSON of the given size can be cached within the current
+	 * budget.
+	 * @param size the size of the compressed JSON
+	 * @return true if the JSON is worth reading into memory for the cache
+	 */
+	public boolean fits(long size)
+	{
+		return (size >= 0) && (size <= getBudget());
+	}
+
+	/**
+	 * Adds the compressed JSON of a session, evicting the least recently used
+	 * sessions to stay within the budget. Ignored if the JSON does not fit or
+	 * any session was invalidated since <code>generation</code> was read.
+	 * @param sessionId the session ID
+	 * @param gzip the compressed JSON
+	 * @param generation the generation read before the JSON
+	 */
+	public void put(String sessionId, byte[] gzip, long generation)
+	{
+		long budget = getBudget();
+		if (gzip.length > budget)
+		{
+			return;
+		}
+		ByteBuffer buffer = ViewerPreferences.isSessionJsonCacheOffHeap()
+			? ByteBuffer.allocateDirect(gzip.length)
+			: ByteBuffer.allocate(gzip.length);
+		buffer.put(gzip);
+		buffer.flip();
+		synchronized (this)
+		{
+			if (generation != this.generation)
+			{
+				rejections++;
+				return;
+			}
+			ByteBuffer previous = entries.put(sessionId, buffer);
+			if (previous != null)
+			{
+				bytes -= previous.capacity();
+			}
+			bytes += buffer.capacity();
+			evict(budget);
+		}
+	}
+
+	/**
+	 * Removes a session from the cache. Within a transaction the session is
+	 * removed again when it completes, so JSON read before the update commits
+	 * is not cached.
+	 * @param sessionId the session ID
+	 */
+	public void invalidate(final String sessionId)
+	{
+		remove(sessionId);
+		if (TransactionSynchronizationManager.isSynchronizationActive())
+		{
+			TransactionSynchronizationManager.registerSynchronization(
+				new TransactionSynchronizationAdapter()
+				{
+					@Override
+					public void afterCompletion(int status)
+					{
+						remove(sessionId);
+					}
+				});
+		}
+	}
+
+	/**
+	 * Returns the cache statistics.
+	 * @return the statistics by name
+	 */
+	public synchronized Map<String,Object> getStatistics()
+	{
+		Map<String,Object> stats = new LinkedHashMap<>();
+		stats.put("entries", entries.size());
+		stats.put("bytes", bytes);
+		stats.put("budgetBytes", getBudget());
+		stats.put("offHeap", ViewerPreferences.isSessionJsonCacheOffHeap());
+		stats.put("hits", hits);
+		stats.put("misses", misses);
+		stats.put("evictions", evictions);
+		stats.put("rejections", rejections);
+		return stats;
+	}
+
+	private void evict(long budget)
+	{
+		Iterator<Map.Entry<String,ByteBuffer>> iter =
+			entries.entrySet().iterator();
+		while ((bytes > budget) && iter.hasNext())
+		{
+			Map.Entry<String,ByteBuffer> eldest = iter.next();
+			bytes -= eldest.getValue().capacity();
+			iter.remove();
+			evictions++;
+			logger.debug("Evicted session {} JSON from cache", eldest.getKey());
+		}
+	}
+
+	private long getBudget()
+	{
+		return ViewerPreferences.getSessionJsonCacheMegabytes()*1024L*1024L;
+	}
+
+	private synchronized void remove(String sessionId)
+	{
+		generation++;
+		ByteBuffer buffer = entries.remove(sessionId);
+		if (buffer != null)
+		{
+			bytes -= buffer.capacity();
+		}
+	}
+
+	private static final class ByteBufferInputStream extends InputStream
+	{
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer)
+		{
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int available()
+		{
+			return buffer.remaining();
+		}
+
+		@Override
+		public int read()
+		{
+			return buffer.hasRemaining() ? (buffer.get() & 0xff) : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if (len == 0)
+			{
+				return 0;
+			}
+			if (!buffer.hasRemaining())
+			{
+				return -1;
+			}
+			int count = Math.min(len, buffer.remaining());
+			buffer.get(b, off, count);
+			return count;
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/*********************************************************************
+ * Copyright (c) 2023, Institute of Cancer Research
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * (1) Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ * (2) Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ * (3) Neither the name of the Institute of Cancer Research nor the
+ *     names of its contributors may be used to endorse or promote
+ *     products derived from this software without specific prior
+ *     written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+package org.nrg.xnatx.ohifviewer.service;
+
+import java.util.Date;
+
+/**
+ * The revision and HTTP validators of a session's stored JSON, read without
+ * loading the JSON itself.
+ */
+public class OhifSessionJsonVersion
+{
+	private final String revision;
+	private final String contentHash;
+	private final Date lastModified;
+
+	public OhifSessionJsonVersion(String revision, String contentHash,
+		Date lastModified)
+	{
+		this.revision = revision;
+		this.contentHash = contentHash;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * Returns a strong entity tag for the JSON, the hash of its content or,
+	 * for JSON stored before hashes were kept, its revision and last update
+	 * time.
+	 * @return the quoted entity tag
+	 */
+	public String getETag()
+	{
+		return "\""+getTag()+"\"";
+	}
+
+	/**
+	 * Returns a strong entity tag for the JSON expanded from the stored form,
+	 * which differs from that of the stored JSON.
+	 * @return the quoted entity tag
+	 */
+	public String getExpandedETag()
+	{
+		return "\""+getTag()+"-expanded\"";
+	}
+
+	/**
+	 * Returns a strong entity tag for one representation of the JSON. The
+	 * gzip encoded representation has its own tag, as its bytes differ from
+	 * the unencoded ones.
+	 * @param expanded true for the expanded JSON
+	 * @param gzip true for the gzip encoded representation
+	 * @return the quoted entity tag
+	 */
+	public String getETag(boolean expanded, boolean gzip)
+	{
+		return "\""+getTag()+(expanded ? "-expanded" : "")+
+			(gzip ? "-gz" : "")+"\"";
+	}
+
+	public String getContentHash()
+	{
+		return contentHash;
+	}
+
+	public Date getLastModified()
+	{
+		return lastModified;
+	}
+
+	/**
+	 * @return the last update time in milliseconds or -1 if unknown
+	 */
+	public long getLastModifiedMillis()
+	{
+		return (lastModified != null) ? lastModified.getTime() : -1;
+	}
+
+	public String getRevision()
+	{
+		return revision;
+	}
+
+	private String getTag()
+	{
+		return (contentHash != null)
+			? contentHash
+			: revision+"-"+getLastModifiedMillis();
+	}
+}
@@ -34,6 +34,7 @@
  *********************************************************************/
 package org.nrg.xnatx.ohifviewer.xapi;
 
+import com.google.common.util.concurrent.Striped;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
@@ -45,6 +46,7 @@ import org.nrg.framework.annotations.XapiRestController;
 import org.nrg.xapi.rest.AbstractXapiRestController;
 import org.nrg.xapi.rest.Experiment;
 import org.nrg.xapi.rest.Project;
+import org.nrg.xapi.rest.Subject;
 import org.nrg.xapi.rest.XapiRequestMapping;
 import org.nrg.xdat.model.XnatSubjectassessordataI;
 import org.nrg.xdat.om.XnatExperimentdata;
@@ -55,8 +57,17 @@ import org.nrg.xdat.security.helpers.AccessLevel;
 import org.nrg.xdat.security.services.RoleHolder;
 import org.nrg.xdat.security.services.UserManagementServiceI;
 import org.nrg.xft.security.UserI;
+import org.nrg.xnatx.ohifviewer.data.GenerationJobStatus;
+import org.nrg.xnatx.ohifviewer.data.SessionJsonStatus;
+import org.nrg.xnatx.ohifviewer.entity.OhifGenerationJob;
+import org.nrg.xnatx.ohifviewer.entity.OhifGenerationJobItem;
 import org.nrg.xnatx.ohifviewer.inputcreator.JsonMetadataHandler;
+import org.nrg.xnatx.ohifviewer.inputcreator.SessionRebuildQueue;
+import org.nrg.xnatx.ohifviewer.service.OhifGenerationExecutor;
+import org.nrg.xnatx.ohifviewer.service.OhifGenerationJobService;
 import org.nrg.xnatx.ohifviewer.service.OhifSessionDataService;
+import org.nrg.xnatx.ohifviewer.service.OhifSessionJsonCache;
+import org.nrg.xnatx.ohifviewer.service.OhifSessionJsonVersion;
 import org.nrg.xnatx.plugin.PluginCode;
 import org.nrg.xnatx.plugin.PluginException;
 import org.nrg.xnatx.plugin.PluginUtils;
@@ -64,28 +75,36 @@ import org.nrg.xnatx.plugin.Security;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  *
@@ -98,27 +117,45 @@ public class OhifViewerApi extends AbstractXapiRestController
 {
 	private static final Logger logger = LoggerFactory.getLogger(
 		OhifViewerApi.class);
+	// Sessions one batch status request may list
+	private static final int MaxExperimentIds = 1000;
+	// The bundled viewer reads only the expanded session JSON, clients that
+	// read the hoisted form ask for it
+	static final String DefaultFormat = "expanded";
 
-	private final Lock genAllJsonLock = new ReentrantLock();
+	private final ReadWriteLock siteJobLock = new ReentrantReadWriteLock();
+	private final Striped<Lock> projectJobLocks = Striped.lock(32);
 	private final JsonMetadataHandler jsonHandler;
     private final OhifSessionDataService ohifJsonService;
+	private final OhifSessionJsonCache sessionJsonCache;
+	private final OhifGenerationJobService jobService;
+	private final OhifGenerationExecutor generationExecutor;
+	private final SessionRebuildQueue rebuildQueue;
 
 	@Autowired
 	public OhifViewerApi(final JsonMetadataHandler jsonHandler,
 						 final OhifSessionDataService ohifJsonService,
+						 final OhifSessionJsonCache sessionJsonCache,
+						 final OhifGenerationJobService jobService,
+						 final OhifGenerationExecutor generationExecutor,
+						 final SessionRebuildQueue rebuildQueue,
 						 final UserManagementServiceI userManagementService,
 						 final RoleHolder roleHolder)
 	{
 		super(userManagementService, roleHolder);
 		this.jsonHandler = jsonHandler;
         this.ohifJsonService = ohifJsonService;
+		this.sessionJsonCache = sessionJsonCache;
+		this.jobService = jobService;
+		this.generationExecutor = generationExecutor;
+		this.rebuildQueue = rebuildQueue;
 		logger.info("OHIF Viewer XAPI initialised");
 	}
 
 	@ApiOperation(value = "Checks if Session level JSON exists")
 	@ApiResponses(
 	{
-		@ApiResponse(code = 200, message = "OK, the session JSON exists."),
+		@ApiResponse(code = 200, message = "OK, the session JSON exists. The ETag is that of the session JSON with the same Accept-Encoding."),
 		@ApiResponse(code = 403, message = "The user does not have permission to view the indicated experiment."),
 		@ApiResponse(code = 404, message = "The specified JSON does not exist."),
 		@ApiResponse(code = 500, message = "An unexpected error occurred."),
@@ -130,7 +167,9 @@ public class OhifViewerApi extends AbstractXapiRestController
 		restrictTo = AccessLevel.Read)
 	public ResponseEntity<String> doesStudyJsonExist(
 		final @ApiParam(value="Project ID") @PathVariable("projectId") @Project String projectId,
-		final @ApiParam(value="Experiment ID") @PathVariable("experimentId") @Experiment String experimentId)
+		final @ApiParam(value="Experiment ID") @PathVariable("experimentId") @Experiment String experimentId,
+		final @ApiParam(value="Format, expanded by default with the URL and metadata of every instance, or hoisted as stored for clients that read series level metadata and URL prefixes", allowableValues="expanded,hoisted") @RequestParam(value="format", required=false, defaultValue=DefaultFormat) String format,
+		HttpServletRequest request)
 		throws PluginException
 	{
 		UserI user = getSessionUser();
@@ -148,17 +187,124 @@ public class OhifViewerApi extends AbstractXapiRestController
 			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
 		}
 
-		if (!jsonHandler.isJsonValid(experimentId))
+		OhifSessionJsonVersion version = jsonHandler.getValidJsonVersion(
+			experimentId);
+		if (version == null)
 		{
 			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
 		}
-        return new ResponseEntity<>(HttpStatus.OK);
+        return ResponseEntity.ok()
+            .eTag(version.getETag(!isHoisted(format), acceptsGzip(request)))
+            .varyBy(HttpHeaders.ACCEPT_ENCODING)
+            .lastModified(version.getLastModifiedMillis())
+            .cacheControl(CacheControl.noCache().cachePrivate())
+            .build();
+	}
+
+	@ApiOperation(value = "Checks if session JSON exists for every session in the project.")
+	@ApiResponses(
+	{
+		@ApiResponse(code = 200, message = "The JSON status of each session in the project the user may read."),
+		@ApiResponse(code = 403, message = "The user does not have permission to view the indicated project."),
+		@ApiResponse(code = 500, message = "An unexpected error occurred."),
+	})
+	@XapiRequestMapping(
+		value = "projects/{projectId}/exists",
+		produces = MediaType.APPLICATION_JSON_VALUE,
+		method = RequestMethod.GET,
+		restrictTo = AccessLevel.Read)
+	public ResponseEntity<List<SessionJsonStatus>> doesProjectJsonExist(
+		final @ApiParam(value="Project ID") @PathVariable("projectId") @Project String projectId,
+		final @ApiParam(value="Format, expanded by default with the URL and metadata of every instance, or hoisted as stored for clients that read series level metadata and URL prefixes", allowableValues="expanded,hoisted") @RequestParam(value="format", required=false, defaultValue=DefaultFormat) String format)
+		throws PluginException
+	{
+		UserI user = getSessionUser();
+		Security.checkProject(user, projectId);
+		List<XnatImagesessiondata> sessions =
+			PluginUtils.getImageSessionDataByProject(projectId);
+		return new ResponseEntity<>(
+			getSessionJsonStatus(user, projectId, sessions, format), HttpStatus.OK);
+	}
+
+	@ApiOperation(value = "Checks if session JSON exists for every session in the subject.")
+	@ApiResponses(
+	{
+		@ApiResponse(code = 200, message = "The JSON status of each session of the subject in the project the user may read."),
+		@ApiResponse(code = 403, message = "The user does not have permission to view the indicated project."),
+		@ApiResponse(code = 500, message = "An unexpected error occurred."),
+	})
+	@XapiRequestMapping(
+		value = "projects/{projectId}/subjects/{subjectId}/exists",
+		produces = MediaType.APPLICATION_JSON_VALUE,
+		method = RequestMethod.GET,
+		restrictTo = AccessLevel.Read)
+	public ResponseEntity<List<SessionJsonStatus>> doesSubjectJsonExist(
+		final @ApiParam(value="Project ID") @PathVariable("projectId") @Project String projectId,
+		final @ApiParam(value="Subject ID") @PathVariable("subjectId") @Subject String subjectId,
+		final @ApiParam(value="Format, expanded by default with the URL and metadata of every instance, or hoisted as stored for clients that read series level metadata and URL prefixes", allowableValues="expanded,hoisted") @RequestParam(value="format", required=false, defaultValue=DefaultFormat) String format)
+		throws PluginException
+	{
+		UserI user = getSessionUser();
+		Security.checkProject(user, projectId);
+		XnatSubjectdata subjectData = XnatSubjectdata.getXnatSubjectdatasById(
+			subjectId, user, true);
+		if (subjectData == null)
+		{
+			throw new PluginException("Subject not found: "+subjectId,
+				PluginCode.HttpUnprocessableEntity);
+		}
+		List<XnatImagesessiondata> sessions = new ArrayList<>();
+		for (XnatSubjectassessordataI assessorData :
+			subjectData.getExperiments_experiment())
+		{
+			if (assessorData instanceof XnatImagesessiondata)
+			{
+				sessions.add((XnatImagesessiondata) assessorData);
+			}
+		}
+		return new ResponseEntity<>(
+			getSessionJsonStatus(user, projectId, sessions, format), HttpStatus.OK);
+	}
+
+	@ApiOperation(value = "Checks if session JSON exists for each of the listed sessions.")
+	@ApiResponses(
+	{
+		@ApiResponse(code = 200, message = "The JSON status of each listed session in the project the user may read."),
+		@ApiResponse(code = 400, message = "More than "+MaxExperimentIds+" experiment IDs were listed."),
+		@ApiResponse(code = 403, message = "The user does not have permission to view the indicated project."),
+		@ApiResponse(code = 500, message = "An unexpected error occurred."),
+	})
+	@XapiRequestMapping(
+		value = "projects/{projectId}/exists",
+		consumes = MediaType.APPLICATION_JSON_VALUE,
+		produces = MediaType.APPLICATION_JSON_VALUE,
+		method = RequestMethod.POST,
+		restrictTo = AccessLevel.Read)
+	public ResponseEntity<List<SessionJsonStatus>> doSessionsJsonExist(
+		final @ApiParam(value="Project ID") @PathVariable("projectId") @Project String projectId,
+		final @ApiParam(value="Experiment IDs, at most "+MaxExperimentIds) @RequestBody List<String> experimentIds,
+		final @ApiParam(value="Format, expanded by default with the URL and metadata of every instance, or hoisted as stored for clients that read series level metadata and URL prefixes", allowableValues="expanded,hoisted") @RequestParam(value="format", required=false, defaultValue=DefaultFormat) String format)
+		throws PluginException
+	{
+		if (experimentIds.size() > MaxExperimentIds)
+		{
+			throw new PluginException("At most "+MaxExperimentIds+
+				" experiment IDs may be listed, "+experimentIds.size()+" were",
+				PluginCode.HttpBadRequest);
+		}
+		UserI user = getSessionUser();
+		Security.checkProject(user, projectId);
+		List<XnatImagesessiondata> sessions =
+			PluginUtils.getImageSessionDataByIds(new LinkedHashSet<>(experimentIds));
+		return new ResponseEntity<>(
+			getSessionJsonStatus(user, projectId, sessions, format), HttpStatus.OK);
 	}
 
 	@ApiOperation(value = "Returns the session JSON for the specified experiment ID.")
 	@ApiResponses(
 	{
 		@ApiResponse(code = 200, message = "The session was located and properly rendered to JSON."),
+		@ApiResponse(code = 304, message = "The session JSON matches the If-None-Match or If-Modified-Since validators."),
 		@ApiResponse(code = 403, message = "The user does not have permission to view the indicated experiment."),
 		@ApiResponse(code = 500, message = "An unexpected error occurred.")
 	})
@@ -171,7 +317,8 @@ public class OhifViewerApi extends AbstractXapiRestController
 	public void getExperimentJson(
 		final @ApiParam(value="Project ID") @PathVariable("projectId") @Project String projectId,
 		final @ApiParam(value="Experiment ID") @PathVariable("experimentId") @Experiment String experimentId,
-        HttpServletResponse response)
+		final @ApiParam(value="Format, expanded by default with the URL and metadata of every instance, or hoisted as stored for clients that read series level metadata and URL prefixes", allowableValues="expanded,hoisted") @RequestParam(value="format", required=false, defaultValue=DefaultFormat) String format,
+        HttpServletRequest request, HttpServletResponse response)
 		throws PluginException
 	{
 		UserI user = getSessionUser();
@@ -190,15 +337,38 @@ public class OhifViewerApi extends AbstractXapiRestController
             return;
 		}
 
-        if (!jsonHandler.isJsonValid(experimentId)) {
+        OhifSessionJsonVersion version = jsonHandler.getValidJsonVersion(experimentId);
+        if (version == null) {
             // Revision check failed? Recreate regardless
             jsonHandler.createAndStoreJsonConfig(sessionData, user);
+            version = jsonHandler.getValidJsonVersion(experimentId);
+        }
+        // Answer revalidation before the stored JSON is opened. The gzip and
+        // identity representations differ, so each has its own ETag.
+        boolean hoisted = isHoisted(format);
+        boolean gzip = acceptsGzip(request);
+        response.setHeader(HttpHeaders.CACHE_CONTROL,
+            CacheControl.noCache().cachePrivate().getHeaderValue());
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if ((version != null) && new ServletWebRequest(request, response)
+                .checkNotModified(version.getETag(!hoisted, gzip),
+                    version.getLastModifiedMillis())) {
+            logger.debug("Session JSON not modified");
+            return;
+        }
+        // Stored compressed and hoisted, sent unchanged to clients that ask
+        // for the hoisted format and accept gzip. Other clients have it
+        // expanded on the fly.
+        response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+        if (gzip) {
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
         }
-        try (
-                OutputStreamWriter outputStreamWriter = new OutputStreamWriter(response.getOutputStream());
-                BufferedWriter writer = new BufferedWriter(outputStreamWriter)
-        ) {
-            ohifJsonService.transferSessionJson(experimentId, writer);
+        try (OutputStream os = response.getOutputStream()) {
+            if (hoisted) {
+                ohifJsonService.transferSessionJson(experimentId, os, gzip);
+            } else {
+                jsonHandler.transferExpandedJson(experimentId, os, gzip);
+            }
             logger.debug("Finished the transfer of session JSON");
         } catch (IOException e) {
             if (StringUtils.contains(e.getClass().getName(), "ClientAbortException")) {
@@ -246,114 +416,233 @@ public class OhifViewerApi extends AbstractXapiRestController
 		return new ResponseEntity<>(HttpStatus.OK);
 	}
 
-	@ApiOperation(value = "Generates the session JSON for every session in the project.")
+	@ApiOperation(value = "Queues a job to generate the session JSON for every session in the project.")
 	@ApiResponses(
 	{
-		@ApiResponse(code = 201, message = "The JSON metadata has been created for every session in the project."),
+		@ApiResponse(code = 202, message = "The job has been queued. Its progress, with the number of sessions regenerated, skipped and failed, is available from jobs/{jobId}."),
 		@ApiResponse(code = 403, message = "The user does not have permission to perform this action."),
-		@ApiResponse(code = 423, message = "This process is already underway and is locked."),
+		@ApiResponse(code = 423, message = "The project is locked by a queued or running job for the site or the project. The response is that job."),
 		@ApiResponse(code = 500, message = "An unexpected error occurred.")
 	})
 	@XapiRequestMapping(
 		value = "projects/{projectId}",
+		produces = MediaType.APPLICATION_JSON_VALUE,
 		method = RequestMethod.POST,
 		restrictTo = AccessLevel.Admin
 	)
-	public ResponseEntity<String> postGenerateProjectJson(
-		final @ApiParam(value="Project ID") @PathVariable("projectId") @Project String projectId)
+	public ResponseEntity<GenerationJobStatus> postGenerateProjectJson(
+		final @ApiParam(value="Project ID") @PathVariable("projectId") @Project String projectId,
+		final @ApiParam(value="Only regenerate sessions whose files changed since their JSON was created") @RequestParam(value="staleOnly", required=false, defaultValue="false") boolean staleOnly)
 		throws PluginException
 	{
-		// Don't allow more generate all processes to be started if one is already
-		// running
-		if (!genAllJsonLock.tryLock())
-		{
-			return new ResponseEntity<>(HttpStatus.LOCKED);
-		}
-		HttpStatus status;
-		try
-		{
-			logger.info("Project "+projectId+" metadata creation requested");
-			status = generateProjectMetadata(projectId);
-			logger.info("Project "+projectId+" metadata creation complete");
-		}
-		finally
-		{
-			genAllJsonLock.unlock();
-		}
-		return new ResponseEntity<>(status);
+		logger.info("Project "+projectId+" metadata creation requested");
+		return submitJob(OhifGenerationJob.Scope.Project, projectId, null,
+			staleOnly, () -> getProjectSessionIds(projectId));
 	}
 
-	@ApiOperation(value = "Generates the session JSON for every session in the subject.")
+	@ApiOperation(value = "Queues a job to generate the session JSON for every session in the subject.")
 	@ApiResponses(
 	{
-		@ApiResponse(code = 201, message = "The JSON metadata has been created for every session in the subject."),
+		@ApiResponse(code = 202, message = "The job has been queued. Its progress, with the number of sessions regenerated, skipped and failed, is available from jobs/{jobId}."),
 		@ApiResponse(code = 403, message = "The user does not have permission to perform this action."),
-		@ApiResponse(code = 423, message = "This process is already underway and is locked."),
+		@ApiResponse(code = 423, message = "The project is locked by a queued or running job for the site or the project. The response is that job."),
 		@ApiResponse(code = 500, message = "An unexpected error occurred.")
 	})
 	@XapiRequestMapping(
 		value = "projects/{projectId}/subjects/{subjectId}",
+		produces = MediaType.APPLICATION_JSON_VALUE,
 		method = RequestMethod.POST,
 		restrictTo = AccessLevel.Admin
 	)
-	public ResponseEntity<String> postGenerateSubjectJson(
+	public ResponseEntity<GenerationJobStatus> postGenerateSubjectJson(
 		final @ApiParam(value="Project ID") @PathVariable("projectId") @Project String projectId,
-		final @ApiParam(value="Subject ID") @PathVariable("subjectId") @Project String subjectId)
+		final @ApiParam(value="Subject ID") @PathVariable("subjectId") @Project String subjectId,
+		final @ApiParam(value="Only regenerate sessions whose files changed since their JSON was created") @RequestParam(value="staleOnly", required=false, defaultValue="false") boolean staleOnly)
 		throws PluginException
 	{
-		// Don't allow more generate all processes to be started if one is already
-		// running
-		if (!genAllJsonLock.tryLock())
-		{
-			return new ResponseEntity<>(HttpStatus.LOCKED);
-		}
-		HttpStatus status;
-		try
+		logger.info("Subject "+subjectId+" metadata creation requested");
+		return submitJob(OhifGenerationJob.Scope.Subject, projectId, subjectId,
+			staleOnly, () -> getSubjectSessionIds(projectId, subjectId));
+	}
+
+	@ApiOperation(value = "Queues a job to generate the session JSON for every session in the database.")
+	@ApiResponses(
+	{
+		@ApiResponse(code = 202, message = "The job has been queued. Its progress, with the number of sessions regenerated, skipped and failed, is available from jobs/{jobId}."),
+		@ApiResponse(code = 403, message = "The user does not have permission to perform this action."),
+		@ApiResponse(code = 423, message = "The site is locked by a queued or running job. The response is that job."),
+		@ApiResponse(code = 500, message = "An unexpected error occurred.")
+	})
+	@XapiRequestMapping(
+		value = "generate-all-metadata",
+		produces = MediaType.APPLICATION_JSON_VALUE,
+		method = RequestMethod.POST,
+		restrictTo = AccessLevel.Admin
+	)
+	public ResponseEntity<GenerationJobStatus> setAllJson(
+		final @ApiParam(value="Only regenerate sessions whose files changed since their JSON was created") @RequestParam(value="staleOnly", required=false, defaultValue="false") boolean staleOnly) throws PluginException
+	{
+		logger.info("All projects metadata creation requested");
+		// Sessions are paged in by the job runner
+		return submitJob(OhifGenerationJob.Scope.Site, null, null, staleOnly,
+			Collections::emptyList);
+	}
+
+	@ApiOperation(value = "Returns the most recently submitted session JSON generation jobs.")
+	@ApiResponses(
+	{
+		@ApiResponse(code = 200, message = "The jobs, newest first."),
+		@ApiResponse(code = 403, message = "The user does not have permission to perform this action."),
+		@ApiResponse(code = 500, message = "An unexpected error occurred.")
+	})
+	@XapiRequestMapping(
+		value = "jobs",
+		produces = MediaType.APPLICATION_JSON_VALUE,
+		method = RequestMethod.GET,
+		restrictTo = AccessLevel.Admin
+	)
+	public ResponseEntity<List<GenerationJobStatus>> getJobs(
+		final @ApiParam(value="Maximum number of jobs") @RequestParam(value="limit", required=false, defaultValue="20") int limit)
+	{
+		List<GenerationJobStatus> jobs = new ArrayList<>();
+		for (OhifGenerationJob job : jobService.getRecentJobs(limit))
 		{
-			logger.info("Subject "+subjectId+" metadata creation requested");
-			status = generateSubjectMetadata(projectId, subjectId);
-			logger.info("Subject "+subjectId+" metadata creation complete");
+			jobs.add(getJobStatus(job));
 		}
-		finally
+		return new ResponseEntity<>(jobs, HttpStatus.OK);
+	}
+
+	@ApiOperation(value = "Returns the status and progress of a session JSON generation job.")
+	@ApiResponses(
+	{
+		@ApiResponse(code = 200, message = "The job status."),
+		@ApiResponse(code = 403, message = "The user does not have permission to perform this action."),
+		@ApiResponse(code = 404, message = "The job does not exist."),
+		@ApiResponse(code = 500, message = "An unexpected error occurred.")
+	})
+	@XapiRequestMapping(
+		value = "jobs/{jobId}",
+		produces = MediaType.APPLICATION_JSON_VALUE,
+		method = RequestMethod.GET,
+		restrictTo = AccessLevel.Admin
+	)
+	public ResponseEntity<GenerationJobStatus> getJob(
+		final @ApiParam(value="Job ID") @PathVariable("jobId") long jobId)
+	{
+		OhifGenerationJob job = jobService.retrieve(jobId);
+		if (job == null)
 		{
-			genAllJsonLock.unlock();
+			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
 		}
-		return new ResponseEntity<>(status);
+		return new ResponseEntity<>(getJobStatus(job), HttpStatus.OK);
 	}
 
-	@ApiOperation(value = "Generates the session JSON for every session in the database.")
+	@ApiOperation(value = "Returns the sessions of a generation job that failed every attempt.")
 	@ApiResponses(
 	{
-		@ApiResponse(code = 201, message = "The JSON metadata has been created for every session in the database."),
+		@ApiResponse(code = 200, message = "The session ID, attempts and last error of each failed session."),
 		@ApiResponse(code = 403, message = "The user does not have permission to perform this action."),
-		@ApiResponse(code = 423, message = "This process is already underway and is locked."),
+		@ApiResponse(code = 404, message = "The job does not exist."),
 		@ApiResponse(code = 500, message = "An unexpected error occurred.")
 	})
 	@XapiRequestMapping(
-		value = "generate-all-metadata",
-		method = RequestMethod.POST,
+		value = "jobs/{jobId}/failures",
+		produces = MediaType.APPLICATION_JSON_VALUE,
+		method = RequestMethod.GET,
 		restrictTo = AccessLevel.Admin
 	)
-	public ResponseEntity<String> setAllJson() throws PluginException
+	public ResponseEntity<List<Map<String,Object>>> getJobFailures(
+		final @ApiParam(value="Job ID") @PathVariable("jobId") long jobId,
+		final @ApiParam(value="Maximum number of sessions") @RequestParam(value="limit", required=false, defaultValue="1000") int limit)
 	{
-		// Don't allow more generate all processes to be started if one is already
-		// running
-		if (!genAllJsonLock.tryLock())
+		if (jobService.retrieve(jobId) == null)
 		{
-			return new ResponseEntity<>(HttpStatus.LOCKED);
+			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
 		}
-		HttpStatus status;
-		try
+		List<Map<String,Object>> failures = new ArrayList<>();
+		for (OhifGenerationJobItem item : jobService.getItems(jobId,
+			OhifGenerationJobItem.Status.Failed, limit))
 		{
-			logger.info("All projects metadata creation requested");
-			status = generateAllMetadata();
-			logger.info("All projects metadata creation complete");
+			Map<String,Object> failure = new LinkedHashMap<>();
+			failure.put("sessionId", item.getSessionId());
+			failure.put("attempts", item.getAttempts());
+			failure.put("error", item.getLastError());
+			failure.put("updated", item.getTimestamp());
+			failures.add(failure);
 		}
-		finally
+		return new ResponseEntity<>(failures, HttpStatus.OK);
+	}
+
+	@ApiOperation(value = "Cancels a queued or running session JSON generation job.",
+		notes = "Sessions already being generated are allowed to finish.")
+	@ApiResponses(
+	{
+		@ApiResponse(code = 200, message = "The job has been cancelled. The response is its status."),
+		@ApiResponse(code = 403, message = "The user does not have permission to perform this action."),
+		@ApiResponse(code = 404, message = "The job does not exist."),
+		@ApiResponse(code = 409, message = "The job has already finished."),
+		@ApiResponse(code = 500, message = "An unexpected error occurred.")
+	})
+	@XapiRequestMapping(
+		value = "jobs/{jobId}/cancel",
+		produces = MediaType.APPLICATION_JSON_VALUE,
+		method = RequestMethod.POST,
+		restrictTo = AccessLevel.Admin
+	)
+	public ResponseEntity<GenerationJobStatus> cancelJob(
+		final @ApiParam(value="Job ID") @PathVariable("jobId") long jobId)
+	{
+		if (jobService.retrieve(jobId) == null)
 		{
-			genAllJsonLock.unlock();
+			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
 		}
-		return new ResponseEntity<>(status);
+		boolean cancelled = jobService.cancel(jobId);
+		OhifGenerationJob job = jobService.retrieve(jobId);
+		return new ResponseEntity<>(getJobStatus(job),
+			cancelled ? HttpStatus.OK : HttpStatus.CONFLICT);
+	}
+
+	@ApiOperation(value = "Returns the session JSON service metrics.")
+	@ApiResponses(
+	{
+		@ApiResponse(code = 200, message = "The metrics by component."),
+		@ApiResponse(code = 403, message = "The user does not have permission to perform this action."),
+		@ApiResponse(code = 500, message = "An unexpected error occurred.")
+	})
+	@XapiRequestMapping(
+		value = "metrics",
+		produces = MediaType.APPLICATION_JSON_VALUE,
+		method = RequestMethod.GET,
+		restrictTo = AccessLevel.Admin
+	)
+	public ResponseEntity<Map<String,Object>> getMetrics()
+	{
+		Map<String,Object> metrics = new LinkedHashMap<>();
+		metrics.put("sessionJsonCache", sessionJsonCache.getStatistics());
+		metrics.put("sessionJsonBuilds", jsonHandler.getBuildStatistics());
+		metrics.put("generationExecutor", generationExecutor.getStatistics());
+		metrics.put("rebuildQueue", rebuildQueue.getStatistics());
+		return new ResponseEntity<>(metrics, HttpStatus.OK);
+	}
+
+	@ApiOperation(value = "Returns the phase timings and counts of session JSON generation.",
+		notes = "Totals since startup with the 50th, 95th and 99th percentiles over the most recent builds.")
+	@ApiResponses(
+	{
+		@ApiResponse(code = 200, message = "The generation metrics."),
+		@ApiResponse(code = 403, message = "The user does not have permission to perform this action."),
+		@ApiResponse(code = 500, message = "An unexpected error occurred.")
+	})
+	@XapiRequestMapping(
+		value = "metrics/generation",
+		produces = MediaType.APPLICATION_JSON_VALUE,
+		method = RequestMethod.GET,
+		restrictTo = AccessLevel.Admin
+	)
+	public ResponseEntity<Map<String,Object>> getGenerationMetrics()
+	{
+		return new ResponseEntity<>(jsonHandler.getGenerationStatistics(),
+			HttpStatus.OK);
 	}
 
 	private StreamingResponseBody createResponseBody(String input)
@@ -371,63 +660,166 @@ public class OhifViewerApi extends AbstractXapiRestController
 		return srb;
 	}
 
-	private HttpStatus generateAllMetadata() throws PluginException
+	private GenerationJobStatus getJobStatus(OhifGenerationJob job)
 	{
-		UserI user = getSessionUser();
-		List<XnatExperimentdata> experiments =
-			XnatExperimentdata.getAllXnatExperimentdatas(user, true);
-		List<String> exptIds = getImageSessionIds(experiments);
-		return generateMetadata(exptIds);
+		return new GenerationJobStatus(job,
+			jobService.getItemCounts(job.getId()));
 	}
 
-	private HttpStatus generateMetadata(List<String> exptIds)
+	/**
+	 * Returns the JSON status of the sessions that are in the project and that
+	 * the user may read there. Permissions are checked once per session type
+	 * and the stored versions are read in one query, without the JSON.
+	 */
+	private List<SessionJsonStatus> getSessionJsonStatus(UserI user,
+		String projectId, List<XnatImagesessiondata> sessions, String format)
 		throws PluginException
 	{
-		// Create image session JSON in a multithreaded fashion if available
-		int numThreads = Runtime.getRuntime().availableProcessors();
-		numThreads = (numThreads > 4) ? 4 : numThreads;
-		logger.info("Thread count for parallel JSON creation: " + numThreads);
-		ExecutorService service = Executors.newFixedThreadPool(numThreads);
+		Map<String,Boolean> readableTypes = new HashMap<>();
+		Map<String,XnatImagesessiondata> readable = new LinkedHashMap<>();
+		for (XnatImagesessiondata sessionData : sessions)
+		{
+			if (!PluginUtils.isSharedIntoProject(sessionData, projectId))
+			{
+				continue;
+			}
+			String xsiType = sessionData.getXSIType();
+			Boolean canRead = readableTypes.get(xsiType);
+			if (canRead == null)
+			{
+				canRead = Security.canRead(user, xsiType+"/project", projectId);
+				readableTypes.put(xsiType, canRead);
+			}
+			if (canRead)
+			{
+				readable.put(sessionData.getId(), sessionData);
+			}
+		}
 
-		UserI user = getSessionUser();
-		List<Callable<Void>> tasks = new ArrayList<>();
-		for (String id : exptIds)
+		Map<String,OhifSessionJsonVersion> versions =
+			ohifJsonService.getSessionJsonVersions(readable.keySet());
+		boolean hoisted = isHoisted(format);
+		List<SessionJsonStatus> statusList = new ArrayList<>();
+		for (XnatImagesessiondata sessionData : readable.values())
 		{
-			logger.info("ImageSession ID: "+id);
-			tasks.add((Callable<Void>) () ->
+			OhifSessionJsonVersion version = versions.get(sessionData.getId());
+			if (version == null)
 			{
-				jsonHandler.createAndStoreJsonConfig(id, user);
-				return null;
-			});
+				statusList.add(new SessionJsonStatus(sessionData.getId(),
+					sessionData.getLabel(), false, null, false, null));
+				continue;
+			}
+			statusList.add(new SessionJsonStatus(sessionData.getId(),
+				sessionData.getLabel(), true, version.getRevision(),
+				jsonHandler.isJsonValid(version),
+				hoisted ? version.getETag() : version.getExpandedETag()));
 		}
-		try
+		return statusList;
+	}
+
+	/**
+	 * Queues a generation job for the sessions unless an active job holds a
+	 * conflicting lock. A site-wide job locks the site exclusively, while
+	 * project and subject jobs share the site and lock their project
+	 * exclusively, so jobs for different projects run together. The same
+	 * locks, held in process, serialise the conflict check, the query for the
+	 * sessions and the submission.
+	 */
+	private ResponseEntity<GenerationJobStatus> submitJob(
+		OhifGenerationJob.Scope scope, String projectId, String subjectId,
+		boolean staleOnly, SessionIdQuery query) throws PluginException
+	{
+		boolean site = (scope == OhifGenerationJob.Scope.Site);
+		Lock siteLock = site ? siteJobLock.writeLock() : siteJobLock.readLock();
+		Lock projectLock = site ? null : projectJobLocks.get(projectId);
+		siteLock.lock();
+		if (projectLock != null)
 		{
-			service.invokeAll(tasks);
+			projectLock.lock();
 		}
-		catch (InterruptedException ex)
+		try
 		{
-			throw new PluginException(
-				"JSON creation interrupted: "+ex.getMessage(),
-				PluginCode.HttpInternalError, ex);
+			for (OhifGenerationJob active : jobService.getActiveJobs())
+			{
+				if (site || (active.getScope() == OhifGenerationJob.Scope.Site) ||
+					Objects.equals(active.getProjectId(), projectId))
+				{
+					logger.info("Generation lock for {} {} held by job {}",
+						scope, site ? "site" : projectId, active.getId());
+					return new ResponseEntity<>(getJobStatus(active),
+						HttpStatus.LOCKED);
+				}
+			}
+			OhifGenerationJob job = new OhifGenerationJob();
+			job.setScope(scope);
+			job.setProjectId(projectId);
+			job.setSubjectId(subjectId);
+			job.setStaleOnly(staleOnly);
+			job.setUsername(getSessionUser().getUsername());
+			job = jobService.submit(job, query.getSessionIds());
+			return new ResponseEntity<>(getJobStatus(job), HttpStatus.ACCEPTED);
 		}
 		finally
 		{
-			service.shutdown();
+			if (projectLock != null)
+			{
+				projectLock.unlock();
+			}
+			siteLock.unlock();
 		}
-		return HttpStatus.CREATED;
 	}
 
-	private HttpStatus generateProjectMetadata(String projectId)
+	/**
+	 * Returns true if the requested session JSON format keeps series metadata
+	 * hoisted as stored. Only clients asking for the hoisted format get it,
+	 * others get the expanded format every viewer can read.
+	 */
+	static boolean isHoisted(String format)
+	{
+		return "hoisted".equalsIgnoreCase(format);
+	}
+
+	/**
+	 * Returns true if the request's Accept-Encoding allows gzip.
+	 */
+	private static boolean acceptsGzip(HttpServletRequest request)
+	{
+		String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+		if (StringUtils.isBlank(acceptEncoding))
+		{
+			return false;
+		}
+		for (String coding : acceptEncoding.split(","))
+		{
+			String[] parts = coding.trim().split(";");
+			String name = parts[0].trim();
+			if (!name.equalsIgnoreCase("gzip") && !name.equals("*"))
+			{
+				continue;
+			}
+			for (int i=1; i<parts.length; i++)
+			{
+				String param = parts[i].trim().replace(" ", "");
+				if (param.matches("q=0(\\.0*)?"))
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	private List<String> getProjectSessionIds(String projectId)
 		throws PluginException
 	{
 		UserI user = getSessionUser();
 		XnatProjectdata projectData = XnatProjectdata.getProjectByIDorAlias(
 			projectId, user, false);
-		List<String> exptIds = getImageSessionIds(projectData.getExperiments());
-		return generateMetadata(exptIds);
+		return getImageSessionIds(projectData.getExperiments());
 	}
 
-	private HttpStatus generateSubjectMetadata(String projectId,
+	private List<String> getSubjectSessionIds(String projectId,
 		String subjectId) throws PluginException
 	{
 		UserI user = getSessionUser();
@@ -448,8 +840,7 @@ public class OhifViewerApi extends AbstractXapiRestController
 				exptIds.add(assessorData.getId());
 			}
 		}
-		return generateMetadata(exptIds);
-		
+		return exptIds;
 	}
 
 	private List<String> getImageSessionIds(List<XnatExperimentdata> experiments)
@@ -465,4 +856,11 @@ public class OhifViewerApi extends AbstractXapiRestController
 		return exptIds;
 	}
 
+	/**
+	 * A query for the IDs of the sessions a generation job covers.
+	 */
+	private interface SessionIdQuery
+	{
+		List<String> getSessionIds() throws PluginException;
+	}
 }
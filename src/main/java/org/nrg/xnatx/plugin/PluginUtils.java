@@ -42,6 +42,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -260,6 +261,29 @@ public class PluginUtils
 		return (sessionList != null) ? sessionList : new ArrayList<>();
 	}
 
+	/**
+	 * Returns the image sessions with the IDs in a single query, without
+	 * security checks.
+	 * @param ids the session IDs
+	 * @return the sessions found
+	 */
+	public static List<XnatImagesessiondata> getImageSessionDataByIds(
+		Collection<String> ids)
+	{
+		if (ids.isEmpty())
+		{
+			return new ArrayList<>();
+		}
+		CriteriaCollection cc = new CriteriaCollection("OR");
+		for (String id : ids)
+		{
+			cc.addClause("xnat:imageSessionData/ID", id);
+		}
+		List<XnatImagesessiondata> sessionList =
+			XnatImagesessiondata.getXnatImagesessiondatasByField(cc, null, false);
+		return (sessionList != null) ? sessionList : new ArrayList<>();
+	}
+
 	/**
 	 *
 	 * @param sessionData
@@ -399,6 +423,58 @@ public class PluginUtils
 		return catPaths;
 	}
 
+	/**
+	 * Get the files listed by the entries of a catalog. Relative entry URIs
+	 * are resolved against the directory containing the catalog.
+	 * @param catalogPath	path to the catalog xml
+	 * @return the files in catalog order
+	 * @throws PluginException if the catalog cannot be read
+	 */
+	public static List<File> getCatalogEntryFiles(String catalogPath)
+		throws PluginException
+	{
+		List<File> files = new ArrayList<>();
+		File catalogFile = new File(catalogPath);
+		Document doc;
+		try (InputStream is = new FileInputStream(catalogFile))
+		{
+			doc = streamToDoc(is);
+		}
+		catch (IOException ex)
+		{
+			throw new PluginException("Catalog error: "+catalogPath,
+				PluginCode.IO, ex);
+		}
+		Node node = Xml.getFirstMatch(doc.getDocumentElement(), "cat:entries");
+		if (node == null)
+		{
+			return files;
+		}
+		File catalogDir = catalogFile.getParentFile();
+		NodeList children = node.getChildNodes();
+		for (int i=0; i<children.getLength(); i++)
+		{
+			Node child = children.item(i);
+			if (!child.getNodeName().equals("cat:entry"))
+			{
+				continue;
+			}
+			Node uriNode = child.getAttributes().getNamedItem("URI");
+			if (uriNode == null)
+			{
+				continue;
+			}
+			String uri = uriNode.getTextContent();
+			if (StringUtils.isNullOrEmpty(uri))
+			{
+				continue;
+			}
+			File file = new File(uri);
+			files.add(file.isAbsolute() ? file : new File(catalogDir, uri));
+		}
+		return files;
+	}
+
 	/**
 	 * Get path to scan data
 	 * @param sessionData 	the session object
@@ -174,6 +174,36 @@ public class Security
 		logger.debug("Session visible to user "+user.getUsername()+": "+sessionId);
 	}
 
+	/**
+	 * Returns whether the user has read permission for the element value,
+	 * without throwing if not.
+	 * @param user the user
+	 * @param element the element
+	 * @param value the value
+	 * @return true if the user may read
+	 * @throws PluginException if the permission check fails
+	 */
+	public static boolean canRead(UserI user, String element, String value)
+		throws PluginException
+	{
+		if (user == null)
+		{
+			throw new PluginException("User must not be null",
+				PluginCode.HttpUnprocessableEntity);
+		}
+		try
+		{
+			return Permissions.canRead(user, element, value);
+		}
+		catch (Exception ex)
+		{
+			throw new PluginException(
+				"Permission check error. User= "+user.getUsername()+
+					" Element= "+element,
+				PluginCode.HttpInternalError, ex);
+		}
+	}
+
 	/**
 	 * Returns the permissions the user has on the element in the project.
 	 * @param user the user
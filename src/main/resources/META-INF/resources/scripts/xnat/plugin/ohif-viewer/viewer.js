@@ -218,9 +218,54 @@ function checkSessionJSON(newTab, projectId, subjectId, experimentId, parentProj
 }
 
 function checkSubjectForSessionJSON(newTab, projectId, subjectId, parentProjectId) {
-  const subjectExperimentListUrl = XNAT.url.rootUrl('/data/archive/projects/'+ projectId + "/subjects/" + subjectId + "/experiments?format=json");
+  // One request returns the JSON status of every session of the subject
+  const subjectExistsUrl = XNAT.url.rootUrl("/xapi/viewer/projects/" + projectId + "/subjects/" + subjectId + "/exists");
+
+  const xhr = new XMLHttpRequest();
+
+  xhr.addEventListener('error', function () {
+    $('body').pleaseWait('stop');
+    console.error('Error in REST call!');
+  });
+
+  xhr.addEventListener('abort', function () {
+    $('body').pleaseWait('stop');
+    console.error('Request was aborted for some reason. Please contact your System Administrator.');
+  });
+
+  xhr.onload = function () {
+    if (xhr.status === 403) {
+      $('body').pleaseWait('stop');
+      XNAT.dialog.alert("Error", "You do not have permission to view the sessions of this subject.");
+      return;
+    }
+    if (xhr.status !== 200) {
+      // Servers without the subject status endpoint answer per session
+      checkSubjectSessionsForSessionJSON(newTab, projectId, subjectId, parentProjectId);
+      return;
+    }
+
+    const sessionList = xhr.response;
+    const sessionsThatNeedJSON = [];
+    for (let i = 0; i < sessionList.length; i++) {
+      if (!sessionList[i].valid) {
+        sessionsThatNeedJSON.push({
+          ID: sessionList[i].ID,
+          label: sessionList[i].label
+        });
+      }
+    }
+    generateJSONOpenSubjectViewer(sessionsThatNeedJSON, newTab, projectId, subjectId, parentProjectId);
+  };
 
-  console.log(subjectExperimentListUrl);
+  xhr.open("GET", subjectExistsUrl);
+  xhr.setRequestHeader('Accept', 'application/json');
+  xhr.responseType = "json";
+  xhr.send();
+}
+
+function checkSubjectSessionsForSessionJSON(newTab, projectId, subjectId, parentProjectId) {
+  const subjectExperimentListUrl = XNAT.url.rootUrl('/data/archive/projects/'+ projectId + "/subjects/" + subjectId + "/experiments?format=json");
 
   const xhr = new XMLHttpRequest();
 
@@ -235,10 +280,18 @@ function checkSubjectForSessionJSON(newTab, projectId, subjectId, parentProjectI
   });
 
   xhr.onload = function () {
-    const experimentList = xhr.response.ResultSet.Result;
+    if (xhr.status !== 200) {
+      $('body').pleaseWait('stop');
+      XNAT.dialog.alert("Error", "Unable to list the sessions of this subject, status: " + xhr.status +
+          ". Please check the server logs for more information.");
+      return;
+    }
 
-    console.log("on load, experimentList:");
-    console.log(experimentList);
+    const experimentList = xhr.response.ResultSet.Result;
+    if (experimentList.length === 0) {
+      generateJSONOpenSubjectViewer([], newTab, projectId, subjectId, parentProjectId);
+      return;
+    }
 
     let sessionsChecked = 0;
     const sessionsThatNeedJSON = [];
@@ -251,11 +304,7 @@ function checkSubjectForSessionJSON(newTab, projectId, subjectId, parentProjectI
 
       xhrExists[i] = new XMLHttpRequest();
 
-      console.log(experimentExistsUrl);
-
       xhrExists[i].onload = function () {
-        console.log(this.status);
-
         if (this.status === 404) {
           sessionsThatNeedJSON.push({
             ID: experimentId,
@@ -263,7 +312,6 @@ function checkSubjectForSessionJSON(newTab, projectId, subjectId, parentProjectI
           });
         }
         sessionsChecked++;
-        console.log(sessionsChecked);
         if (sessionsChecked === experimentList.length) {
           generateJSONOpenSubjectViewer(sessionsThatNeedJSON, newTab, projectId, subjectId, parentProjectId);
         }
@@ -283,11 +331,8 @@ function checkSubjectForSessionJSON(newTab, projectId, subjectId, parentProjectI
       xhrExists[i].responseType = "json";
       xhrExists[i].send();
     }
-
   };
 
-
-  console.log("GET " + subjectExperimentListUrl);
   xhr.open("GET", subjectExperimentListUrl);
   xhr.responseType = "json";
   xhr.send();
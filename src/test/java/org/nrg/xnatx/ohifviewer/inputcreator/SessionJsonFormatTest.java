@@ -0,0 +1,150 @@
+/*********************************************************************
+ * Copyright (c) 2023, Institute of Cancer Research
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * (1) Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ * (2) Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ * (3) Neither the name of the Institute of Cancer Research nor the
+ *     names of its contributors may be used to endorse or promote
+ *     products derived from this software without specific prior
+ *     written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+package org.nrg.xnatx.ohifviewer.inputcreator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+/**
+ * Checks that {@link SessionJsonFormat#expand(java.io.Reader, java.io.Writer)}
+ * rebuilds, from the stored JSON, the JSON that
+ * {@link CreateOhifViewerMetadata} wrote before series metadata and URL
+ * prefixes were hoisted. The golden session-baseline.json is a session of two
+ * studies and five series, with DICOM and secondary resources, serialized by
+ * the model and Gson of that revision.
+ *
+ * @author jamesd
+ */
+public class SessionJsonFormatTest
+{
+	private static final String Baseline = "session-baseline.json";
+
+	@Test
+	public void testExpandRestoresBaselineJson() throws IOException
+	{
+		String baseline = resource(Baseline);
+		String stored = store(baseline);
+		assertTrue(stored.contains("\"urlPrefix\":"));
+
+		StringWriter expanded = new StringWriter();
+		SessionJsonFormat.expand(new StringReader(stored), expanded);
+		assertEquals(baseline, expanded.toString());
+	}
+
+	@Test
+	public void testExpandRestoresBaselineUrls() throws IOException
+	{
+		String baseline = resource(Baseline);
+		String stored = store(baseline);
+		// Series whose instances share a resource store URLs relative to their
+		// prefix, the others store them in full
+		int relative = 0;
+		for (String url : getUrls(stored))
+		{
+			if (!url.startsWith("/data/experiments/"))
+			{
+				relative++;
+			}
+		}
+		assertEquals(9, relative);
+
+		StringWriter expanded = new StringWriter();
+		SessionJsonFormat.expand(new StringReader(stored), expanded);
+		List<String> expected = getUrls(baseline);
+		assertEquals(12, expected.size());
+		assertEquals(expected, getUrls(expanded.toString()));
+	}
+
+	/**
+	 * Returns the JSON stored for the session, as JsonMetadataHandler stores
+	 * it.
+	 */
+	private static String store(String json) throws IOException
+	{
+		OhifViewerInput input = SessionJsonFormat.createGson().fromJson(json,
+			OhifViewerInput.class);
+		StringWriter stored = new StringWriter();
+		new SessionJsonSerializer(stored).write(input);
+		return stored.toString();
+	}
+
+	/**
+	 * Returns the URLs of the instances in document order, relative to their
+	 * series URL prefix if it has one.
+	 */
+	private static List<String> getUrls(String json)
+	{
+		List<String> urls = new ArrayList<>();
+		JsonObject session = new JsonParser().parse(json).getAsJsonObject();
+		for (JsonElement study : session.getAsJsonArray("studies"))
+		{
+			for (JsonElement series :
+				study.getAsJsonObject().getAsJsonArray("series"))
+			{
+				for (JsonElement instance :
+					series.getAsJsonObject().getAsJsonArray("instances"))
+				{
+					urls.add(instance.getAsJsonObject().get("url").getAsString());
+				}
+			}
+		}
+		return urls;
+	}
+
+	private String resource(String name) throws IOException
+	{
+		try (InputStream stream = getClass().getResourceAsStream(name))
+		{
+			if (stream == null)
+			{
+				throw new IOException("Fixture not found: "+name);
+			}
+			return IOUtils.toString(stream, StandardCharsets.UTF_8);
+		}
+	}
+}
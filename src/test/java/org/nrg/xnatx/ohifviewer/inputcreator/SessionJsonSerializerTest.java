@@ -0,0 +1,119 @@
+/*********************************************************************
+ * Copyright (c) 2023, Institute of Cancer Research
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * (1) Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ * (2) Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ * (3) Neither the name of the Institute of Cancer Research nor the
+ *     names of its contributors may be used to endorse or promote
+ *     products derived from this software without specific prior
+ *     written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+package org.nrg.xnatx.ohifviewer.inputcreator;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+/**
+ * Checks {@link SessionJsonSerializer} against golden session JSON written by
+ * the hoisting Gson of {@link SessionJsonFormat}. Each fixture is an expanded
+ * session, read with the Gson, and the expected hoisted JSON it serialises to.
+ *
+ * @author jamesd
+ */
+public class SessionJsonSerializerTest
+{
+	private final Gson gson = SessionJsonFormat.createGson();
+
+	@Test
+	public void testCtSession() throws IOException
+	{
+		checkGolden("session-ct");
+	}
+
+	@Test
+	public void testMixedSession() throws IOException
+	{
+		checkGolden("session-mixed");
+	}
+
+	@Test
+	public void testStreamedMatchesWhole() throws IOException
+	{
+		OhifViewerInput input = read("session-mixed-input.json");
+		StringWriter writer = new StringWriter();
+		SessionJsonSerializer serializer = new SessionJsonSerializer(writer);
+		serializer.beginSession(input.getTransactionId());
+		for (OhifViewerInputStudy study : input.getStudiesView())
+		{
+			serializer.beginStudy();
+			for (OhifViewerInputSeries series : study.getSerializedSeriesView())
+			{
+				serializer.writeSeries(series);
+			}
+			serializer.endStudy(study);
+		}
+		serializer.endSession();
+		assertEquals(resource("session-mixed-expected.json"), writer.toString());
+	}
+
+	private void checkGolden(String name) throws IOException
+	{
+		OhifViewerInput input = read(name+"-input.json");
+		String expected = resource(name+"-expected.json");
+
+		StringWriter writer = new StringWriter();
+		new SessionJsonSerializer(writer).write(input);
+		assertEquals(expected, writer.toString());
+
+		// The golden JSON must stay that of the Gson the serializer replaces
+		assertEquals(expected, gson.toJson(input, OhifViewerInput.class));
+	}
+
+	private OhifViewerInput read(String name) throws IOException
+	{
+		return gson.fromJson(resource(name), OhifViewerInput.class);
+	}
+
+	private String resource(String name) throws IOException
+	{
+		try (InputStream stream = getClass().getResourceAsStream(name))
+		{
+			if (stream == null)
+			{
+				throw new IOException("Fixture not found: "+name);
+			}
+			return IOUtils.toString(stream, StandardCharsets.UTF_8);
+		}
+	}
+}
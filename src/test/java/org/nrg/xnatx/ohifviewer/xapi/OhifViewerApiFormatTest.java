@@ -0,0 +1,172 @@
+/*********************************************************************
+ * Copyright (c) 2023, Institute of Cancer Research
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * (1) Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ * (2) Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following
+ *     disclaimer in the documentation and/or other materials provided
+ *     with the distribution.
+ *
+ * (3) Neither the name of the Institute of Cancer Research nor the
+ *     names of its contributors may be used to endorse or promote
+ *     products derived from this software without specific prior
+ *     written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************/
+package org.nrg.xnatx.ohifviewer.xapi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.nrg.xnatx.ohifviewer.inputcreator.JsonMetadataHandler;
+import org.nrg.xnatx.ohifviewer.service.OhifSessionDataService;
+import org.nrg.xnatx.plugin.PluginException;
+import org.springframework.web.bind.annotation.RequestParam;
+
+/**
+ * Checks that session JSON requests without a format get the expanded JSON,
+ * with the URL and metadata of every instance, that viewers which do not
+ * read hoisted series metadata and URL prefixes depend on.
+ *
+ * @author jamesd
+ */
+public class OhifViewerApiFormatTest
+{
+	// Stored hoisted JSON of a CT session, written by SessionJsonSerializer
+	private static final String StoredJson =
+		"/org/nrg/xnatx/ohifviewer/inputcreator/session-ct-expected.json";
+
+	@Test
+	public void testFormatDefaultsToExpanded()
+	{
+		int formatParams = 0;
+		for (Method method : OhifViewerApi.class.getDeclaredMethods())
+		{
+			for (Annotation[] annotations : method.getParameterAnnotations())
+			{
+				for (Annotation annotation : annotations)
+				{
+					if (!(annotation instanceof RequestParam) ||
+						 !"format".equals(((RequestParam) annotation).value()))
+					{
+						continue;
+					}
+					formatParams++;
+					String defaultFormat = ((RequestParam) annotation).defaultValue();
+					assertEquals(method.getName(), "expanded", defaultFormat);
+					assertFalse(method.getName(),
+						OhifViewerApi.isHoisted(defaultFormat));
+				}
+			}
+		}
+		assertEquals(5, formatParams);
+		assertTrue(OhifViewerApi.isHoisted("hoisted"));
+		assertFalse(OhifViewerApi.isHoisted(null));
+	}
+
+	@Test
+	public void testDefaultFormatHasInstanceUrlAndMetadata()
+		throws IOException, PluginException
+	{
+		String stored = resource(StoredJson);
+		JsonMetadataHandler handler = new JsonMetadataHandler(
+			createSessionDataService(stored), null, null);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		// As the session JSON endpoint sends the default format
+		assertFalse(OhifViewerApi.isHoisted(OhifViewerApi.DefaultFormat));
+		handler.transferExpandedJson("XNAT_E00001", output, false);
+
+		JsonObject session = new JsonParser().parse(
+			new String(output.toByteArray(), StandardCharsets.UTF_8))
+			.getAsJsonObject();
+		int instances = 0;
+		for (JsonElement study : session.getAsJsonArray("studies"))
+		{
+			for (JsonElement seriesElement :
+				study.getAsJsonObject().getAsJsonArray("series"))
+			{
+				JsonObject series = seriesElement.getAsJsonObject();
+				assertFalse(series.has("metadata"));
+				assertFalse(series.has("urlPrefix"));
+				for (JsonElement instanceElement : series.getAsJsonArray("instances"))
+				{
+					JsonObject instance = instanceElement.getAsJsonObject();
+					String url = instance.get("url").getAsString();
+					assertTrue(url, url.startsWith(
+						"dicomweb:/data/experiments/XNAT_E00001/scans/"));
+					JsonObject metadata = instance.getAsJsonObject("metadata");
+					assertNotNull(metadata);
+					assertTrue(metadata.has("SOPInstanceUID"));
+					assertTrue(metadata.has("Rows"));
+					assertTrue(metadata.has("ImagePositionPatient"));
+					instances++;
+				}
+			}
+		}
+		assertEquals(8, instances);
+	}
+
+	private static OhifSessionDataService createSessionDataService(
+		String storedJson)
+	{
+		return (OhifSessionDataService) Proxy.newProxyInstance(
+			OhifSessionDataService.class.getClassLoader(),
+			new Class<?>[] {OhifSessionDataService.class},
+			(Object proxy, Method method, Object[] args) ->
+			{
+				if (!"readSessionJson".equals(method.getName()))
+				{
+					throw new UnsupportedOperationException(method.getName());
+				}
+				((OhifSessionDataService.SessionJsonCallback) args[1]).read(
+					new StringReader(storedJson));
+				return null;
+			});
+	}
+
+	private String resource(String name) throws IOException
+	{
+		try (InputStream stream = getClass().getResourceAsStream(name))
+		{
+			if (stream == null)
+			{
+				throw new IOException("Fixture not found: "+name);
+			}
+			return IOUtils.toString(stream, StandardCharsets.UTF_8);
+		}
+	}
+}